@@ -0,0 +1,96 @@
+/**
+ * AllocationCheck
+ * Verifies that the steady-state setters and event dispatch of ILI_Lights do not allocate.
+ * Every check is warmed up first, then the bytes allocated by this thread are measured with
+ * ThreadMXBean.getThreadAllocatedBytes(). A check that allocates is measured again (up to ATTEMPTS
+ * times), as the JIT may still be compiling the hot path. The sketch prints PASS or FAIL per check
+ * and exits with status 1 when any check allocates more than its budget, so it can be run headless
+ * (processing-java --sketch=AllocationCheck --run) as part of a release build.
+ *
+ * The Flight Recorder events of the library are only created while a recording enables them, so run
+ * this check without a recording: with the lights.jfc settings every change allocates an event.
+ */
+import ili.lights.*;
+import java.lang.management.ManagementFactory;
+
+int WARMUP      =  500000;
+int ITERATIONS  =  100000;
+int ATTEMPTS    =  5;
+
+com.sun.management.ThreadMXBean threads;
+boolean failed  =  false;
+
+ColorLight colorLight;
+CCTLight   cctLight;
+int        events  =  0;
+
+void setup() {
+  threads  =  (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  threads.setThreadAllocatedMemoryEnabled(true);
+
+  colorLight  =  new ColorLight();
+  cctLight    =  new CCTLight();
+  LightListener counter  =  new LightListener() {
+    public void lightEventReceived(LightEvent event) {
+      events++;
+    }
+  };
+  colorLight.addLightListener(counter);
+  cctLight.addLightListener(counter);
+
+  check("setIntensity", 0, new Runnable() {
+    int i = 0;
+    public void run() { colorLight.setIntensity(i++ & 0xFF); }
+  });
+  check("setColor", 0, new Runnable() {
+    int i = 0;
+    public void run() { colorLight.setColor(i++ & 0xFFFFFF); }
+  });
+  check("setHue(float)", 0, new Runnable() {
+    float hue = 0;
+    public void run() { hue = (hue + 0.5) % 255; colorLight.setHue(hue); }
+  });
+  check("setCCT", 0, new Runnable() {
+    int i = 0;
+    public void run() { cctLight.setCCT(i++ & 0xFF); }
+  });
+  check("event dispatch", 0, new Runnable() {
+    public void run() { colorLight.turnOff(); colorLight.turnOn(); }
+  });
+  //Event types that shared a cache slot in earlier versions, interleaved
+  check("setIntensity + setGreen", 0, new Runnable() {
+    int i = 0;
+    public void run() { colorLight.setIntensity(i & 0xFF); colorLight.setGreen(i++ & 0xFF); }
+  });
+  check("setColor + setBrightness", 0, new Runnable() {
+    int i = 0;
+    public void run() { colorLight.setColor(i & 0xFFFFFF); colorLight.setBrightness(i++ & 0xFF); }
+  });
+
+  println(failed ? "Allocation check FAILED" : "Allocation check passed");
+  System.exit(failed ? 1 : 0);
+}
+
+/**
+ * Runs the check until the JIT has settled, then fails it when every measured run allocates more
+ * than 'budget' bytes per call.
+ */
+void check(String name, long budget, Runnable hotPath) {
+  for (int i = 0; i < WARMUP; i++) {
+    hotPath.run();
+  }
+  long threadID   =  Thread.currentThread().getId();
+  long allocated  =  0;
+  boolean passed  =  false;
+  for (int attempt = 0; attempt < ATTEMPTS && !passed; attempt++) {
+    long before  =  threads.getThreadAllocatedBytes(threadID);
+    for (int i = 0; i < ITERATIONS; i++) {
+      hotPath.run();
+    }
+    allocated  =  threads.getThreadAllocatedBytes(threadID) - before;
+    //getThreadAllocatedBytes itself may allocate a few bytes, allow a small constant
+    passed     =  allocated <= budget * ITERATIONS + 1024;
+  }
+  failed         |= !passed;
+  println((passed ? "PASS " : "FAIL ") + name + ": " + allocated + " bytes in " + ITERATIONS + " calls");
+}
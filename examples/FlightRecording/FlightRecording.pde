@@ -0,0 +1,62 @@
+/**
+ * FlightRecording
+ * Records the Flight Recorder events of ILI_Lights (light changes, slow listeners and bulk operations)
+ * while a scene is recalled and a few thousand light sources change, using the settings of
+ * library/lights.jfc. Writes lights.jfr into the sketch folder and prints a summary of the recorded
+ * events; open the file in JDK Mission Control or print it with: jfr print --events ili.lights lights.jfr
+ * Runs headless and exits when done.
+ */
+import ili.lights.*;
+import java.nio.file.*;
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+
+int LIGHTS  =  1000;
+
+ArrayList<ColorLight> lights  =  new ArrayList<ColorLight>();
+
+void setup() {
+  for (int i = 0; i < LIGHTS; i++) {
+    ColorLight light  =  new ColorLight();
+    light.setLightID(i);
+    lights.add(light);
+  }
+  //A listener that is slow now and then, so it shows up as ili.lights.ListenerDispatch
+  lights.get(0).addLightListener(new LightListener() {
+    public void lightEventReceived(LightEvent event) {
+      delay(5);
+    }
+  });
+
+  Path output  =  Paths.get(sketchPath("lights.jfr"));
+  try {
+    Configuration settings  =  Configuration.create(Paths.get(sketchPath("../../library/lights.jfc")));
+    Recording recording     =  new Recording(settings);
+    recording.start();
+
+    SceneStore scenes  =  new SceneStore(lights);
+    scenes.capture("dark");
+    for (int i = 0; i < LIGHTS; i++) {
+      lights.get(i).setColor(color(i % 256, 128, 255 - i % 256) & 0xFFFFFF);
+      lights.get(i).setIntensity(i % 256);
+    }
+    scenes.recall("dark");
+
+    recording.stop();
+    recording.dump(output);
+    recording.close();
+
+    HashMap<String, Integer> counts  =  new HashMap<String, Integer>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(output)) {
+      String name  =  event.getEventType().getName();
+      counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+    }
+    for (String name : counts.keySet()) {
+      println(name + ": " + counts.get(name));
+    }
+  }
+  catch (Exception e) {
+    e.printStackTrace();
+  }
+  exit();
+}
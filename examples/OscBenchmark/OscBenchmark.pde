@@ -0,0 +1,107 @@
+/**
+ * OscBenchmark
+ * Measures the throughput of an OscServer over loopback UDP. A sender thread sends OSC bundles of
+ * /light/#/intensity messages for 10k light sources to the server, keeping at most WINDOW messages in
+ * flight so the socket buffer does not overflow, and the sketch prints the number of applied messages
+ * per second for a few bundle sizes. Runs headless and exits when done.
+ */
+import ili.lights.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+int LIGHTS    =  10000;
+int MESSAGES  =  2000000;
+int WINDOW    =  16384;
+int[] BUNDLE_SIZES  =  { 1, 16, 64, 256 };
+
+ArrayList<Light> lights  =  new ArrayList<Light>();
+
+void setup() {
+  for (int i = 0; i < LIGHTS; i++) {
+    Light light  =  new Light();
+    light.setLightID(i);
+    lights.add(light);
+  }
+  try {
+    OscServer server  =  new OscServer(lights, 0);
+    server.addRoute("/light/#/intensity", OscServer.INTENSITY);
+    server.start();
+    DatagramChannel sender  =  DatagramChannel.open();
+    sender.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+
+    //Warm up once, so the first measured run is not the JIT
+    run(server, sender, 64, MESSAGES / 4);
+    for (int size : BUNDLE_SIZES) {
+      double rate  =  run(server, sender, size, MESSAGES);
+      println("bundles of " + size + ": " + nf((float) rate, 0, 2) + " M msgs/s");
+    }
+    println("dropped: " + server.getDroppedCount());
+    sender.close();
+    server.close();
+  }
+  catch (IOException e) {
+    e.printStackTrace();
+  }
+  exit();
+}
+
+/**
+ * Sends 'messages' messages in bundles of 'size' and returns millions of applied messages per second.
+ */
+double run(OscServer server, DatagramChannel sender, int size, int messages) throws IOException {
+  //Bundles are built up front, so the sender only measures the server
+  ByteBuffer[] bundles  =  new ByteBuffer[64];
+  for (int b = 0; b < bundles.length; b++) {
+    bundles[b]  =  bundle(b * size, size);
+  }
+  long first    =  server.getMessageCount();
+  long start    =  System.nanoTime();
+  int sent      =  0;
+  int b         =  0;
+  while (sent < messages) {
+    //Lost packets never arrive, so stop waiting for them after 100ms
+    long waited  =  System.nanoTime();
+    while (sent - (server.getMessageCount() - first) > WINDOW && System.nanoTime() - waited < 100000000L) {
+      Thread.yield();
+    }
+    ByteBuffer bundle  =  bundles[b++ % bundles.length];
+    bundle.rewind();
+    sender.write(bundle);
+    sent  +=  size;
+  }
+  //Wait for the last packets, UDP may lose a few
+  long applied  =  server.getMessageCount() - first;
+  long last     =  System.nanoTime();
+  while (applied < sent && System.nanoTime() - last < 100000000L) {
+    long now  =  server.getMessageCount() - first;
+    if (now != applied) {
+      applied  =  now;
+      last     =  System.nanoTime();
+    }
+    Thread.yield();
+  }
+  return applied / ((System.nanoTime() - start) / 1e3);
+}
+
+/**
+ * Encodes a bundle of 'size' intensity messages, starting at light id 'first'.
+ */
+ByteBuffer bundle(int first, int size) {
+  ByteBuffer buffer  =  ByteBuffer.allocate(16 + size * 40);
+  buffer.put("#bundle".getBytes()).put((byte) 0).putLong(1);   //Time tag 1: immediately
+  for (int m = 0; m < size; m++) {
+    int lightID     =  (first + m) % LIGHTS;
+    byte[] address  =  ("/light/" + lightID + "/intensity").getBytes();
+    int padded      =  (address.length + 4) & ~3;
+    buffer.putInt(padded + 4 + 4);
+    buffer.put(address);
+    for (int p = address.length; p < padded; p++) {
+      buffer.put((byte) 0);
+    }
+    buffer.put((byte) ',').put((byte) 'i').put((byte) 0).put((byte) 0);
+    buffer.putInt((first + m) & 0xFF);
+  }
+  buffer.flip();
+  return buffer;
+}
@@ -0,0 +1,123 @@
+/**
+ * PartitionBenchmark
+ * Measures the throughput of mixed set-commands (intensity, colour, state) on 100k colour lights.
+ * Shared mode: every producer thread calls the setters of random light sources directly.
+ * Partitioned mode: the light sources are sharded over one LightPartitions partition per producer,
+ * and every producer submits its commands in CommandBatches.
+ * Both modes run with 1, 2, 4, ... threads up to the number of cores and print millions of commands
+ * per second and the speedup over a single thread. Runs headless and exits when done.
+ */
+import ili.lights.*;
+
+int LIGHTS    =  100000;
+int COMMANDS  =  4000000;
+int BATCH     =  4096;
+
+ArrayList<ColorLight> lights  =  new ArrayList<ColorLight>();
+
+void setup() {
+  for (int i = 0; i < LIGHTS; i++) {
+    ColorLight light  =  new ColorLight();
+    light.setLightID(i);
+    light.addLightListener(new LightListener() {
+      public void lightEventReceived(LightEvent event) { }
+    });
+    lights.add(light);
+  }
+  int cores  =  Runtime.getRuntime().availableProcessors();
+
+  //Warm up both paths once, so the first measured run is not the JIT
+  shared(cores);
+  partitioned(cores);
+
+  double sharedBase       =  0;
+  double partitionedBase  =  0;
+  for (int threads = 1; threads <= cores; threads *= 2) {
+    double shared       =  shared(threads);
+    double partitioned  =  partitioned(threads);
+    if (threads == 1) {
+      sharedBase       =  shared;
+      partitionedBase  =  partitioned;
+    }
+    println(threads + " threads: shared " + nf((float) shared, 0, 1) + " M/s (x" + nf((float) (shared / sharedBase), 0, 2) +
+            "), partitioned " + nf((float) partitioned, 0, 1) + " M/s (x" + nf((float) (partitioned / partitionedBase), 0, 2) + ")");
+  }
+  exit();
+}
+
+/**
+ * Every thread calls the setters of random light sources directly. Returns millions of commands per second.
+ */
+double shared(int threads) {
+  Thread[] producers  =  new Thread[threads];
+  final int perThread =  COMMANDS / threads;
+  long start  =  System.nanoTime();
+  for (int t = 0; t < threads; t++) {
+    final int seed  =  t;
+    producers[t]  =  new Thread(new Runnable() {
+      public void run() {
+        Random random  =  new Random(seed);
+        for (int i = 0; i < perThread; i++) {
+          ColorLight light  =  lights.get(random.nextInt(LIGHTS));
+          switch (i % 3) {
+            case 0:  light.setIntensity(i & 0xFF); break;
+            case 1:  light.setColor(i & 0xFFFFFF); break;
+            default: light.setState((i & 4) != 0); break;
+          }
+        }
+      }
+    });
+    producers[t].start();
+  }
+  join(producers);
+  return COMMANDS / ((System.nanoTime() - start) / 1e3);
+}
+
+/**
+ * Every thread submits batches of commands to one partition per thread. Returns millions of commands
+ * per second, measured until every command has been applied.
+ */
+double partitioned(int threads) {
+  final LightPartitions partitions  =  new LightPartitions(lights, threads, 65536);
+  Thread[] producers  =  new Thread[threads];
+  final int perThread =  COMMANDS / threads;
+  long start  =  System.nanoTime();
+  for (int t = 0; t < threads; t++) {
+    final int seed  =  t;
+    producers[t]  =  new Thread(new Runnable() {
+      public void run() {
+        Random random       =  new Random(seed);
+        CommandBatch batch  =  partitions.createBatch();
+        for (int i = 0; i < perThread; i++) {
+          int lightID  =  random.nextInt(LIGHTS);
+          switch (i % 3) {
+            case 0:  batch.setIntensity(lightID, i & 0xFF); break;
+            case 1:  batch.setColor(lightID, i & 0xFFFFFF); break;
+            default: batch.setState(lightID, (i & 4) != 0); break;
+          }
+          if (batch.size() >= BATCH) {
+            batch.submit();
+          }
+        }
+        batch.submit();
+      }
+    });
+    producers[t].start();
+  }
+  join(producers);
+  partitions.sync();
+  double result  =  COMMANDS / ((System.nanoTime() - start) / 1e3);
+  partitions.close();
+  return result;
+}
+
+void join(Thread[] threads) {
+  for (Thread thread : threads) {
+    try {
+      thread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * PixelMapperCheck
+ * Verifies that the PixelMapper keeps flat colours exact for every sampling area: a full white frame
+ * should map to exactly 0xFFFFFF and a flat grey frame to exactly that grey, also for areas of 100x100
+ * and 200x200 pixels. The sketch prints PASS or FAIL per area and exits with status 1 when any light
+ * source is off, so it can be run headless (processing-java --sketch=PixelMapperCheck --run).
+ */
+import ili.lights.*;
+
+int SOURCE  =  1000;
+int LIGHTS  =  64;
+int[] AREAS =  { 1, 3, 16, 100, 200 };
+
+boolean failed  =  false;
+
+void setup() {
+  int[] pixels  =  new int[SOURCE * SOURCE];
+  for (int area : AREAS) {
+    ArrayList<ColorLight> lights  =  new ArrayList<ColorLight>();
+    float[] x  =  new float[LIGHTS];
+    float[] y  =  new float[LIGHTS];
+    for (int i = 0; i < LIGHTS; i++) {
+      ColorLight light  =  new ColorLight();
+      light.setColor(0, false);
+      lights.add(light);
+      x[i]  =  (i * 37) % SOURCE;
+      y[i]  =  (i * 91) % SOURCE;
+    }
+    PixelMapper mapper  =  new PixelMapper(lights, x, y, SOURCE, SOURCE, area);
+    int wrong  =  0;
+    for (int flat : new int[] { 0xFFFFFF, 0x808080, 0x010203 }) {
+      java.util.Arrays.fill(pixels, 0xFF000000 | flat);
+      mapper.map(pixels);
+      for (ColorLight light : lights) {
+        if (light.getColor() != flat) {
+          wrong++;
+        }
+      }
+    }
+    boolean passed  =  wrong == 0;
+    failed         |=  !passed;
+    println((passed ? "PASS " : "FAIL ") + area + "x" + area + ": " + wrong + " wrong colours");
+  }
+  println(failed ? "Pixel mapper check FAILED" : "Pixel mapper check passed");
+  System.exit(failed ? 1 : 0);
+}
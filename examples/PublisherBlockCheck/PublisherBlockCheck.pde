@@ -0,0 +1,93 @@
+/**
+ * PublisherBlockCheck
+ * Verifies that the BLOCK overflow policy of a LightEventPublisher really stalls the writer. A subscriber
+ * with a buffer of one event does not request anything, so the first call of a setter fills the buffer
+ * and the second call should wait before it fires its event, until the subscriber requests more events.
+ * No event may be dropped. The sketch prints PASS or FAIL per setter and exits with status 1 when a
+ * setter did not block, so it can be run headless (processing-java --sketch=PublisherBlockCheck --run).
+ */
+import ili.lights.*;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+
+boolean failed  =  false;
+
+void setup() {
+  check("setHue", new Runnable() {
+    int i = 0;
+    public void run() { light.setHue(++i & 0xFF); }
+  });
+  check("setSaturation", new Runnable() {
+    int i = 0;
+    public void run() { light.setSaturation(++i & 0xFF); }
+  });
+  check("setBrightness", new Runnable() {
+    int i = 0;
+    public void run() { light.setBrightness(++i & 0xFF); }
+  });
+  check("setRed", new Runnable() {
+    int i = 0;
+    public void run() { light.setRed(++i & 0xFF); }
+  });
+  check("setIntensity", new Runnable() {
+    int i = 0;
+    public void run() { light.setIntensity(++i & 0xFF); }
+  });
+
+  println(failed ? "Publisher block check FAILED" : "Publisher block check passed");
+  System.exit(failed ? 1 : 0);
+}
+
+ColorLight light;
+volatile int calls;
+volatile int received;
+
+/**
+ * Calls the setter three times on a writer thread while the only subscriber has not requested any
+ * events. Fails when the writer does not wait in the second call, or when not all events arrive.
+ */
+void check(String name, final Runnable setter) {
+  light     =  new ColorLight();
+  calls     =  0;
+  received  =  0;
+  LightEventPublisher publisher  =  new LightEventPublisher(1, LightEventPublisher.BLOCK, ForkJoinPool.commonPool());
+  publisher.attach(light);
+  final Flow.Subscription[] subscription  =  new Flow.Subscription[1];
+  publisher.subscribe(new Flow.Subscriber<LightEvent>() {
+    public void onSubscribe(Flow.Subscription s) { subscription[0] = s; }
+    public void onNext(LightEvent event) { received++; }
+    public void onError(Throwable error) { error.printStackTrace(); }
+    public void onComplete() { }
+  });
+
+  Thread writer  =  new Thread(new Runnable() {
+    public void run() {
+      for (int i = 0; i < 3; i++) {
+        setter.run();
+        calls++;
+      }
+    }
+  });
+  writer.start();
+  boolean blocked  =  false;
+  int before       =  0;
+  try {
+    writer.join(500);
+    //The first event fills the buffer, the second call should wait before it fires
+    before   =  calls;
+    blocked  =  writer.isAlive() && before == 1;
+    subscription[0].request(Long.MAX_VALUE);
+    writer.join(5000);
+    long start  =  System.currentTimeMillis();
+    while (received < 3 && System.currentTimeMillis() - start < 5000) {
+      Thread.sleep(1);
+    }
+  }
+  catch (InterruptedException e) {
+    Thread.currentThread().interrupt();
+  }
+  boolean passed  =  blocked && !writer.isAlive() && received == 3;
+  failed         |=  !passed;
+  println((passed ? "PASS " : "FAIL ") + name + ": " + before + " of 3 calls done before waiting, " + received + " of 3 events received");
+  publisher.close();
+}
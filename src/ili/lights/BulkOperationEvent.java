@@ -0,0 +1,47 @@
+package ili.lights;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for an operation on many light sources at once, e.g. a scene recall, a merge
+ * or a crossfade step. Call begin() before and finish() after the operation. The event is disabled unless
+ * a recording enables it, e.g. with the lights.jfc settings.
+ */
+@Name( "ili.lights.BulkOperation" )
+@Label( "Bulk Operation" )
+@Description( "An operation on many light sources" )
+@Category( { "ili.lights" } )
+@StackTrace( false )
+@Enabled( false )
+final class BulkOperationEvent extends Event
+{
+  @Label( "Operation" )
+  String operation;
+  @Label( "Light Count" )
+  @Description( "Number of light sources the operation covers" )
+  int lights;
+  @Label( "Changed" )
+  @Description( "Number of light sources (or values) that changed" )
+  int changed;
+
+  /**
+   * Ends the event and records it if it is enabled and lasted longer than the threshold.
+   */
+  void finish( String operation, int lights, int changed )
+  {
+    this.end();
+    if( this.shouldCommit() )
+    {
+      this.operation  =  operation;
+      this.lights     =  lights;
+      this.changed    =  changed;
+      this.commit();
+    }
+  }
+}
@@ -12,9 +12,7 @@ public class CCTLight extends Light
   public static final int WHITE      =  0xF9F9ED;
   public static final int COOLWHITE  =  0x96C3E2;
   
-  int _maxCCT  =  255;
-  int _minCCT  =  0;
-  int _cct     =  128;  //Set the CCT standard in the middle
+  int _cct     =  128;  //Set the CCT standard in the middle, the range is part of the fixture profile
 
   /**
    * Create a new CCTLight source with standard parameters.
@@ -71,7 +69,9 @@ public class CCTLight extends Light
   {
     if ( newCCT != this._cct )
     {
-      this._cct  =  PApplet.constrain( newCCT, this._minCCT, this._maxCCT );
+      int previous  =  this._cct;
+      this._cct     =  PApplet.constrain( newCCT, this.getMinCCT(), this.getMaxCCT() );
+      this.changed( LightEvent.CCT, previous, this._cct );
       if( fireEvent )
       {
       	this.fireLightEvent(LightEvent.CCT);
@@ -110,7 +110,7 @@ public class CCTLight extends Light
    */
   public void setMinCCT( int cct )
   {
-    this._minCCT  =  cct;
+    this._profile  =  this._profile.withCCTRange( cct, this.getMaxCCT() );
   }
   /**
    * Returns the current low end of the colour temperature range (standard 0)
@@ -118,7 +118,7 @@ public class CCTLight extends Light
    */
   public int getMinCCT( )
   {
-    return this._minCCT;
+    return this._profile.getMinCCT();
   }
   /**
    * Sets the high end of the colour temperature range (standard 255)
@@ -126,7 +126,7 @@ public class CCTLight extends Light
    */
   public void setMaxCCT( int cct )
   {
-    this._maxCCT  =  cct;
+    this._profile  =  this._profile.withCCTRange( this.getMinCCT(), cct );
   }
   /**
    * Returns the high end of the colour temperature range (standard 255)
@@ -134,7 +134,22 @@ public class CCTLight extends Light
    */
   public int getMaxCCT()
   {
-    return this._maxCCT;
+    return this._profile.getMaxCCT();
+  }
+  /**
+   * Sets the fixture profile of this light source. The intensity and colour temperature are constrained
+   * to the ranges of the new profile.
+   * @param profile
+   */
+  public void setProfile( FixtureProfile profile )
+  {
+    super.setProfile( profile );
+    int previous  =  this._cct;
+    this._cct     =  PApplet.constrain( this._cct, profile.getMinCCT(), profile.getMaxCCT() );
+    if( this._cct != previous )
+    {
+      this.changed( LightEvent.CCT, previous, this._cct );
+    }
   }
   /**
    * Set the range in which the colour temperature should be (standard 0-255)
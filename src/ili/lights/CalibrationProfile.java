@@ -0,0 +1,133 @@
+package ili.lights;
+
+/**
+ * The CalibrationProfile describes how the values of a fixture are converted to hardware output:
+ * a dimming curve for the intensity, a gamma for the colour channels and a 3x3 colour-correction
+ * (white balance) matrix. All of this is compiled into lookup tables and a fixed-point matrix when
+ * the profile is created, so converting a value only takes table lookups and integer math.
+ * Profiles are immutable and can be shared by any number of fixtures of the same model.
+ *
+ * Output values are 16 bit (0-65535). Use OutputCalibration to apply profiles to a whole frame.
+ */
+public final class CalibrationProfile
+{
+  /** Output is proportional to the intensity **/
+  public static final int LINEAR      =  0;
+  /** Output is proportional to the square of the intensity **/
+  public static final int SQUARE      =  1;
+  /** Output follows the CIE 1931 lightness curve, perceived brightness is proportional to the intensity **/
+  public static final int CIE1931     =  2;
+
+  /** Number of fraction bits of the colour-correction matrix **/
+  static final int MATRIX_BITS        =  12;
+  /** Number of bits of the corrected colour channels, used as index in the gamma table **/
+  static final int CHANNEL_BITS       =  12;
+  /** Scales an 8 bit channel to CHANNEL_BITS, as 16.16 fixed point (4095 / 255) **/
+  private static final long CHANNEL_SCALE  =  (4095L << 16) / 255 + 1;
+
+  /** Profile without any correction for intensities in the range 0-255 **/
+  public static final CalibrationProfile IDENTITY  =  new CalibrationProfile( 255, LINEAR, 1, null );
+
+  private final int    _maxIntensity;
+  private final char[] _dimming;     //intensity -> 16 bit
+  private final char[] _gamma;       //12 bit channel -> 16 bit
+  private final int[]  _matrix;      //row major, Q12
+
+  /**
+   * Creates a profile with the specified dimming curve and colour gamma for intensities in the range
+   * 0-maxIntensity. The white balance is a row major 3x3 matrix that is multiplied with the (r, g, b)
+   * colour, or null for no correction.
+   * @param maxIntensity
+   * @param dimmingCurve LINEAR, SQUARE or CIE1931
+   * @param gamma
+   * @param whiteBalance
+   */
+  public CalibrationProfile( int maxIntensity, int dimmingCurve, float gamma, float[] whiteBalance )
+  {
+    if( whiteBalance != null && whiteBalance.length != 9 )
+    {
+      throw new IllegalArgumentException( "The white balance matrix needs 9 values" );
+    }
+    this._maxIntensity  =  Math.max( 1, maxIntensity );
+    this._dimming       =  new char[this._maxIntensity + 1];
+    for( int i = 0; i <= this._maxIntensity; i++ )
+    {
+      this._dimming[i]  =  (char) Math.round( curve( dimmingCurve, (double) i / this._maxIntensity ) * 65535 );
+    }
+
+    int channelMax  =  (1 << CHANNEL_BITS) - 1;
+    this._gamma     =  new char[channelMax + 1];
+    for( int i = 0; i <= channelMax; i++ )
+    {
+      this._gamma[i]  =  (char) Math.round( Math.pow( (double) i / channelMax, gamma ) * 65535 );
+    }
+
+    this._matrix    =  new int[9];
+    for( int i = 0; i < 9; i++ )
+    {
+      float value      =  whiteBalance == null ? ( i % 4 == 0 ? 1 : 0 ) : whiteBalance[i];
+      this._matrix[i]  =  Math.round( value * (1 << MATRIX_BITS) );
+    }
+  }
+
+  private static double curve( int dimmingCurve, double x )
+  {
+    switch( dimmingCurve )
+    {
+      case SQUARE:
+        return x * x;
+      case CIE1931:
+        double lightness  =  x * 100;
+        return lightness <= 8 ? lightness / 903.3 : Math.pow( (lightness + 16) / 116, 3 );
+      default:
+        return x;
+    }
+  }
+
+  /**
+   * Returns the highest intensity this profile expects.
+   * @return int
+   */
+  public int getMaxIntensity()
+  {
+    return this._maxIntensity;
+  }
+
+  /**
+   * Returns the 16 bit output level for the specified intensity.
+   * @param intensity
+   * @return int
+   */
+  public int dim( int intensity )
+  {
+    return this._dimming[intensity < 0 ? 0 : ( intensity > this._maxIntensity ? this._maxIntensity : intensity )];
+  }
+
+  /**
+   * Writes the calibrated 16 bit red, green and blue levels of the colour at the specified intensity
+   * into the output array, starting at the offset.
+   * @param color
+   * @param intensity
+   * @param output
+   * @param offset
+   */
+  public void apply( int color, int intensity, int[] output, int offset )
+  {
+    int r      =  color >> 16 & 0xFF;
+    int g      =  color >> 8 & 0xFF;
+    int b      =  color & 0xFF;
+    long level =  this.dim( intensity );
+    int[] m    =  this._matrix;
+    level      +=  level >>> 15;  //Scale 65535 to 65536, so full output stays 65535 after the shift
+    output[offset]      =  (int) ((this._gamma[channel( m[0] * r + m[1] * g + m[2] * b )] * level + 0x8000) >>> 16);
+    output[offset + 1]  =  (int) ((this._gamma[channel( m[3] * r + m[4] * g + m[5] * b )] * level + 0x8000) >>> 16);
+    output[offset + 2]  =  (int) ((this._gamma[channel( m[6] * r + m[7] * g + m[8] * b )] * level + 0x8000) >>> 16);
+  }
+
+  //Converts a Q12 weighted sum of 8 bit channels to a 12 bit gamma table index
+  private static int channel( int sum )
+  {
+    int value  =  (int) ((sum * CHANNEL_SCALE) >> (MATRIX_BITS + 16));
+    return value < 0 ? 0 : ( value > 4095 ? 4095 : value );
+  }
+}
@@ -0,0 +1,52 @@
+package ili.lights;
+
+/**
+ * A ChangeCursor remembers how far a consumer has read a ChangeFeed, and holds the indices of the
+ * light sources that changed in the last poll. Create one with ChangeFeed.createCursor() and reuse it
+ * for every poll.
+ */
+public class ChangeCursor
+{
+  long  _position  =  0;
+  int   _count     =  0;
+  final int[] _indices;
+
+  ChangeCursor( int lightCount )
+  {
+    this._indices  =  new int[lightCount];
+  }
+
+  /**
+   * Returns the sequence number up to which changes have been read.
+   * @return long
+   */
+  public long getPosition()
+  {
+    return this._position;
+  }
+  /**
+   * Returns the number of light sources that changed in the last poll.
+   * @return int
+   */
+  public int getCount()
+  {
+    return this._count;
+  }
+  /**
+   * Returns the index of the i-th light source that changed in the last poll.
+   * @param i
+   * @return int
+   */
+  public int getIndex( int i )
+  {
+    return this._indices[i];
+  }
+  /**
+   * Returns the array with the indices of the last poll. Only the first getCount() values are valid.
+   * @return int[]
+   */
+  public int[] getIndices()
+  {
+    return this._indices;
+  }
+}
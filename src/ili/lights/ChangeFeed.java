@@ -0,0 +1,193 @@
+package ili.lights;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The ChangeFeed keeps track of which light sources changed, for consumers that poll (e.g. a UI at
+ * 30Hz) instead of listening to every LightEvent. Every change increments a global sequence number
+ * and stores it as the last-changed sequence of the light source. A consumer keeps a ChangeCursor and
+ * calls poll( cursor ) to get the indices of all light sources that changed since its previous poll.
+ *
+ * The feed registers itself as a LightTracker on its light sources, so it also sees changes made
+ * without firing events (e.g. a scene recall). Code that changes light sources in other ways can report
+ * the change with markChanged(). Memory use only depends on the number of light sources, not on the
+ * number of changes.
+ *
+ * markChanged() does not lock. A light source that changes while a poll is running can be reported
+ * by that poll and again by the next one, so consumers should treat the indices as "read the current
+ * values", not as a count of changes. A change is never missed.
+ */
+public class ChangeFeed implements LightTracker
+{
+  /** Number of light sources per block; blocks without changes are skipped while polling **/
+  static final int BLOCK_SHIFT  =  6;
+
+  private final Light[] _lights;
+  private final IdentityHashMap<Light, Integer> _indices  =  new IdentityHashMap<Light, Integer>();
+  private final AtomicLong      _sequence  =  new AtomicLong( 0 );
+  private final AtomicInteger   _writers   =  new AtomicInteger( 0 );  //markChanged() calls in progress
+  private final AtomicLongArray _changed;
+  private final AtomicLongArray _blockChanged;
+
+  /**
+   * Creates a change feed for the specified light sources and starts listening to them. The index of
+   * a light source in the list is the index reported by the feed.
+   * @param lights
+   */
+  public ChangeFeed( List<? extends Light> lights )
+  {
+    this._lights        =  lights.toArray( new Light[lights.size()] );
+    this._changed       =  new AtomicLongArray( this._lights.length );
+    this._blockChanged  =  new AtomicLongArray( (this._lights.length >> BLOCK_SHIFT) + 1 );
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._indices.put( this._lights[i], i );
+      this._lights[i].addLightTracker( this );
+    }
+  }
+
+  /**
+   * Stops listening to the light sources.
+   */
+  public void close()
+  {
+    for( Light light : this._lights )
+    {
+      light.removeLightTracker( this );
+    }
+  }
+
+  /**
+   * Marks the light source as changed. Called by the light sources this feed tracks.
+   */
+  public void lightChanged( Light light )
+  {
+    Integer index  =  this._indices.get( light );
+    if( index != null )
+    {
+      this.markChanged( index );
+    }
+  }
+
+  /**
+   * Marks the light source at the specified index as changed.
+   * @param index
+   */
+  public void markChanged( int index )
+  {
+    //poll() only moves past a sequence when no writer is between taking it and storing it
+    this._writers.incrementAndGet();
+    long sequence  =  this._sequence.getAndIncrement() + 1;
+    raise( this._changed, index, sequence );
+    raise( this._blockChanged, index >> BLOCK_SHIFT, sequence );
+    this._writers.decrementAndGet();
+  }
+  //Stores the sequence unless a concurrent writer already stored a later one
+  private static void raise( AtomicLongArray array, int i, long sequence )
+  {
+    long current  =  array.get( i );
+    while( current < sequence && !array.compareAndSet( i, current, sequence ) )
+    {
+      current  =  array.get( i );
+    }
+  }
+
+  /**
+   * Returns the sequence number of the latest change.
+   * @return long
+   */
+  public long getSequence()
+  {
+    return this._sequence.get();
+  }
+  /**
+   * Returns the sequence number of the latest change of the light source at the specified index.
+   * @param index
+   * @return long
+   */
+  public long getLastChanged( int index )
+  {
+    return this._changed.get( index );
+  }
+  /**
+   * Returns the number of light sources in this feed.
+   * @return int
+   */
+  public int getLightCount()
+  {
+    return this._lights.length;
+  }
+  /**
+   * Returns the light source at the specified index.
+   * @param index
+   * @return Light
+   */
+  public Light getLight( int index )
+  {
+    return this._lights[index];
+  }
+
+  /**
+   * Creates a cursor that can be used with poll(). The first poll reports all light sources that
+   * changed since the feed was created.
+   * @return ChangeCursor
+   */
+  public ChangeCursor createCursor()
+  {
+    return new ChangeCursor( this._lights.length );
+  }
+
+  /**
+   * Fills the cursor with the indices of the light sources that changed since the previous poll and
+   * moves the cursor to the current sequence. Returns the number of changed light sources.
+   * @param cursor
+   * @return int
+   */
+  public int poll( ChangeCursor cursor )
+  {
+    //Read the sequence first: changes after this point are reported (again) by the next poll. While a
+    //writer is storing its change the cursor stays put, so that change is not skipped.
+    long sequence   =  this._sequence.get();
+    boolean stored  =  this._writers.get() == 0;
+    cursor._count  =  this.changesSince( cursor._position, cursor._indices );
+    if( stored )
+    {
+      cursor._position  =  sequence;
+    }
+    return cursor._count;
+  }
+
+  /**
+   * Writes the indices of the light sources that changed after the specified sequence number into the
+   * array and returns how many there are. The array needs room for all light sources.
+   * @param sequence
+   * @param indices
+   * @return int
+   */
+  public int changesSince( long sequence, int[] indices )
+  {
+    int count   =  0;
+    int blocks  =  this._blockChanged.length();
+    for( int b = 0; b < blocks; b++ )
+    {
+      if( this._blockChanged.get( b ) <= sequence )
+      {
+        continue;
+      }
+      int first  =  b << BLOCK_SHIFT;
+      int last   =  Math.min( this._lights.length, first + (1 << BLOCK_SHIFT) );
+      for( int i = first; i < last; i++ )
+      {
+        if( this._changed.get( i ) > sequence )
+        {
+          indices[count++]  =  i;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,73 @@
+package ili.lights;
+
+/**
+ * The ChaseEffect moves one or more pulses of a colour along the group. Every pulse has a bright head
+ * and a tail that fades out behind it.
+ */
+public class ChaseEffect extends Effect
+{
+  private volatile int _color;
+  private volatile int _width;   //Tail length, 16 bit fraction of the group
+  private volatile float _speed;
+  private volatile int _count  =  1;
+
+  /**
+   * Creates a chase of a single pulse.
+   * @param color the colour of the pulse
+   * @param width the length of the pulse, as part of the group (0-1)
+   * @param speed the number of times per second the pulse travels the group (negative runs backwards)
+   */
+  public ChaseEffect( int color, float width, float speed )
+  {
+    this.setColor( color );
+    this.setWidth( width );
+    this.setSpeed( speed );
+  }
+
+  /**
+   * Sets the colour of the pulses.
+   * @param color
+   */
+  public void setColor( int color )
+  {
+    this._color  =  color & 0xFFFFFF;
+  }
+  /**
+   * Sets the length of a pulse, as part of the distance between two pulses (0-1).
+   * @param width
+   */
+  public void setWidth( float width )
+  {
+    this._width  =  Math.max( 1, Math.round( Math.min( 1, width ) * 65536 ) );
+  }
+  /**
+   * Sets the number of times per second a pulse travels the group.
+   * @param speed
+   */
+  public void setSpeed( float speed )
+  {
+    this._speed  =  speed;
+  }
+  /**
+   * Sets the number of pulses that chase each other over the group (standard 1).
+   * @param count
+   */
+  public void setCount( int count )
+  {
+    this._count  =  Math.max( 1, count );
+  }
+
+  protected void render( float time, int[] positions, int[] colors, int first, int last )
+  {
+    int color   =  this._color;
+    int width   =  this._width;
+    int count   =  this._count;
+    int head    =  (int) ((long) Math.floor( time * this._speed * 65536 ) & 0xFFFF);
+    int fade    =  (256 << 16) / width;
+    for( int i = first; i < last; i++ )
+    {
+      int phase  =  (head - positions[i] * count) & 0xFFFF;  //Distance behind the head
+      colors[i]  =  phase < width ? scale( color, 256 - (phase * fade >>> 16) ) : 0;
+    }
+  }
+}
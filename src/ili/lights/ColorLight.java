@@ -113,9 +113,12 @@ public class ColorLight extends Light
     boolean updated  =  false;
     if ( this.getColor() != lightColor )
     {
-    	this.setRed( lightColor >> 16 & 0xFF, false );
-    	this.setGreen( lightColor >> 8 & 0xFF, false );
-    	this.setBlue( lightColor & 0xFF, false );
+    	int previous  =  this.getColor();
+    	this._red    =  lightColor >> 16 & 0xFF;
+    	this._green  =  lightColor >> 8 & 0xFF;
+    	this._blue   =  lightColor & 0xFF;
+    	this.updateHSB();
+    	this.changed( LightEvent.COLOR, previous, lightColor );
     	updated  =  true;
     	if( fireEvent )
     	{
@@ -170,12 +173,14 @@ public class ColorLight extends Light
    */
   public int setHue( int hue, boolean fireEvent )
   {
+	  int previous	=	this._hue;
 	  this._hue	=	hue;
+	  this.updateRGB();
+	  this.changed( LightEvent.HUE, previous, hue );
 	  if( fireEvent )
 	  {
 		  this.fireLightEvent(LightEvent.HUE);
 	  }
-	  this.updateRGB();
 	  return this.getColor();
   }
   /**
@@ -207,12 +212,14 @@ public class ColorLight extends Light
    */
   public int setSaturation( int saturation, boolean fireEvent )
   {
+	  int previous	=	this._saturation;
 	  this._saturation	=	saturation;
+	  this.updateRGB();
+	  this.changed( LightEvent.SATURATION, previous, saturation );
 	  if( fireEvent )
 	  {
 		  this.fireLightEvent(LightEvent.SATURATION);
 	  }
-	  this.updateRGB();
 	  return this.getColor();
   }
   /**
@@ -244,12 +251,14 @@ public class ColorLight extends Light
    */
   public int setBrightness( int brightness, boolean fireEvent )
   {
+	  int previous	=	this._brightness;
 	  this._brightness	=	brightness;
+	  this.updateRGB();
+	  this.changed( LightEvent.BRIGHTNESS, previous, brightness );
 	  if( fireEvent )
 	  {
 		  this.fireLightEvent(LightEvent.BRIGHTNESS);
 	  }
-	  this.updateRGB();
 	  return this.getColor();
   }
   
@@ -280,12 +289,14 @@ public class ColorLight extends Light
    */
   public int setRed( int red, boolean fireEvent )
   {
+	  int previous	=	this._red;
 	  this._red	=	red;
+	  this.updateHSB();
+	  this.changed( LightEvent.RED, previous, red );
 	  if( fireEvent )
 	  {
 		  this.fireLightEvent(LightEvent.RED);
 	  }
-	  this.updateHSB();
 	  
 	  return this.getColor();
   }
@@ -314,12 +325,14 @@ public class ColorLight extends Light
    */
   public int setGreen( int green, boolean fireEvent )
   {
+	  int previous	=	this._green;
 	  this._green	=	green;
+	  this.updateHSB();
+	  this.changed( LightEvent.GREEN, previous, green );
 	  if( fireEvent )
 	  {
 		  this.fireLightEvent(LightEvent.GREEN);
 	  }
-	  this.updateHSB();
 	  
 	  return this.getColor();
   }
@@ -354,12 +367,14 @@ public class ColorLight extends Light
    */
   public int setBlue( int blue, boolean fireEvent )
   {
+	  int previous	=	this._blue;
 	  this._blue	=	blue;
+	  this.updateHSB();
+	  this.changed( LightEvent.BLUE, previous, blue );
 	  if( fireEvent )
 	  {
-	   	this.fireLightEvent(LightEvent.BLUE);
+		  this.fireLightEvent(LightEvent.BLUE);
 	  }
-	  this.updateHSB();
 	  
 	  return this.getColor();
   }
@@ -398,9 +413,24 @@ public class ColorLight extends Light
    */
   private void updateHSB()
   {
-	  float rd 		= (float) this.getRed()/255;
-      float gd 		= (float) this.getGreen()/255;
-      float bd 		= (float) this.getBlue()/255;
+	  int hsb			=	ColorLight.toHSB( this.getRed(), this.getGreen(), this.getBlue() );
+      this._hue			=	hsb >> 16 & 0xFF;
+      this._saturation	=	hsb >> 8 & 0xFF;
+      this._brightness	=	hsb & 0xFF;
+  }
+  
+  /**
+   * Converts the specified R, G and B values (0-255) to H, S and B values (0-255), packed as 0xHHSSBB.
+   * @param red
+   * @param green
+   * @param blue
+   * @return int
+   */
+  static int toHSB( int red, int green, int blue )
+  {
+	  float rd 		= (float) red/255;
+      float gd 		= (float) green/255;
+      float bd 		= (float) blue/255;
       float maxVal	= PApplet.max(rd, PApplet.max(gd, bd));
       float minVal	= PApplet.min(rd, PApplet.min(gd, bd));
       float h 		= maxVal;
@@ -434,18 +464,31 @@ public class ColorLight extends Light
       s *= 255;
       v *= 255;
    
-      this._hue			=	(int) h;
-      this._saturation	=	(int) s;
-      this._brightness	=	(int) v;
+      return ((int) h << 16) | ((int) s << 8) | (int) v;
   }
   
   private void updateRGB()
+  {
+	  int rgb		=	ColorLight.toRGB( this.getHue(), this.getSaturation(), this.getBrightness() );
+	  this._red		=	rgb >> 16 & 0xFF;
+	  this._green	=	rgb >> 8 & 0xFF;
+	  this._blue	=	rgb & 0xFF;
+  }
+  
+  /**
+   * Converts the specified H, S and B values (0-255) to a colour, packed as 0xRRGGBB.
+   * @param hue
+   * @param saturation
+   * @param brightness
+   * @return int
+   */
+  static int toRGB( int hue, int saturation, int brightness )
   {
 	  int r	= 255, g = 255, b = 255;
-      int hue		= (int) PApplet.map(this.getHue(),0,255,0,359);
+      hue			= (int) PApplet.map(hue,0,255,0,359);
       int phase		= hue/60;
-      int bottom	= (int) ( (255 - this.getSaturation() ) * ( this.getBrightness() / 255.0) );
-      int top		= this.getBrightness();
+      int bottom	= (int) ( (255 - saturation ) * ( brightness / 255.0) );
+      int top		= brightness;
       int rising	= ((top-bottom)  *(hue%60   )  )  /  60  +  bottom;
       int falling	= ((top-bottom)  *(60-hue%60)  )  /  60  +  bottom;
      
@@ -488,9 +531,7 @@ public class ColorLight extends Light
     	  break;
       }
 
-	this._red	=	r;
-	this._green =	g;
-	this._blue	=	b;
+	return ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
   }
   
   /**
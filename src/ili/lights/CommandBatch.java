@@ -0,0 +1,98 @@
+package ili.lights;
+
+import java.util.Arrays;
+
+/**
+ * A CommandBatch collects commands for the light sources of a LightPartitions, sorted per partition, so
+ * they can be submitted with one atomic operation per partition. A batch belongs to a single thread and
+ * can be reused after submit(). The buffers grow as needed and are kept.
+ */
+public class CommandBatch
+{
+  private final LightPartitions _owner;
+  final int[][] _commands;
+  final int[]   _counts;
+  int           _size  =  0;
+
+  CommandBatch( LightPartitions owner )
+  {
+    this._owner     =  owner;
+    int partitions  =  owner.getPartitionCount();
+    this._commands  =  new int[partitions][64 * LightPartitions.SLOT_INTS];
+    this._counts    =  new int[partitions];
+  }
+
+  /**
+   * Adds a command (LightPartitions.SET_STATE, SET_INTENSITY, SET_COLOR or SET_CCT) for a light id.
+   * @param lightID
+   * @param command
+   * @param value
+   */
+  public void add( int lightID, int command, int value )
+  {
+    int p       =  lightID % this._counts.length;
+    int offset  =  this._counts[p] * LightPartitions.SLOT_INTS;
+    if( offset == this._commands[p].length )
+    {
+      this._commands[p]  =  Arrays.copyOf( this._commands[p], offset * 2 );
+    }
+    this._commands[p][offset]      =  lightID;
+    this._commands[p][offset + 1]  =  command;
+    this._commands[p][offset + 2]  =  value;
+    this._counts[p]++;
+    this._size++;
+  }
+  /**
+   * Adds a command to set the state of a light id.
+   * @param lightID
+   * @param state
+   */
+  public void setState( int lightID, boolean state )
+  {
+    this.add( lightID, LightPartitions.SET_STATE, state ? 1 : 0 );
+  }
+  /**
+   * Adds a command to set the intensity of a light id.
+   * @param lightID
+   * @param intensity
+   */
+  public void setIntensity( int lightID, int intensity )
+  {
+    this.add( lightID, LightPartitions.SET_INTENSITY, intensity );
+  }
+  /**
+   * Adds a command to set the colour of a light id (ColorLight only).
+   * @param lightID
+   * @param lightColor
+   */
+  public void setColor( int lightID, int lightColor )
+  {
+    this.add( lightID, LightPartitions.SET_COLOR, lightColor );
+  }
+  /**
+   * Adds a command to set the colour temperature of a light id (CCTLight only).
+   * @param lightID
+   * @param cct
+   */
+  public void setCCT( int lightID, int cct )
+  {
+    this.add( lightID, LightPartitions.SET_CCT, cct );
+  }
+
+  /**
+   * Returns the number of commands in this batch.
+   * @return int
+   */
+  public int size()
+  {
+    return this._size;
+  }
+
+  /**
+   * Submits all commands to their partitions and empties this batch.
+   */
+  public void submit()
+  {
+    this._owner.submit( this );
+  }
+}
@@ -0,0 +1,815 @@
+package ili.lights;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ControlServer is a headless WebSocket server for remote user interfaces. Clients send binary
+ * messages with batched updates for many light sources, and receive the changed state of the light
+ * sources as binary messages, at most once per frame.
+ *
+ * Light sources are addressed by their index in the collection. An update message from a client is:
+ * <pre>
+ * int   number of records
+ * per record: int index, byte field mask (1 &lt;&lt; LightFrame.STATE etc), one int per field in the mask
+ * </pre>
+ * Every state message to a client is:
+ * <pre>
+ * byte  LightReplicator.DELTA, or LightReplicator.FULL for the first message
+ * long  sequence number (increments by one for every message to this client)
+ * int   number of records
+ * per record: int index, byte field mask, one int per field in the mask
+ * </pre>
+ * The server owns the light sources while it runs: updates are queued and applied on the frame thread at
+ * the start of every frame. Changes are conflated per client: while a client is still receiving its
+ * previous message, its changes are collected and the next message only holds the latest values, so a
+ * slow client skips frames instead of building a backlog. Every connection runs on its own threads.
+ * Incoming updates are limited the same way: a client that has MAX_QUEUED bytes of updates waiting is
+ * not read until the frame thread has applied them, so TCP pushes back on the client.
+ */
+public class ControlServer
+{
+  private static final String GUID        =  "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int    OP_CONTINUE =  0x0;
+  private static final int    OP_BINARY   =  0x2;
+  private static final int    OP_CLOSE    =  0x8;
+  private static final int    OP_PING     =  0x9;
+  private static final int    OP_PONG     =  0xA;
+
+  /** Maximum size of a message from a client, larger messages close the connection **/
+  public static final int MAX_MESSAGE     =  16 * 1024 * 1024;
+  /** Maximum number of update bytes waiting to be applied per client (a single larger message is accepted) **/
+  public static final int MAX_QUEUED      =  1024 * 1024;
+
+  private final Light[]         _lights;
+  private final ServerSocket    _server;
+  private final ExecutorService _connections;
+  private volatile Client[]     _clients  =  new Client[0];
+
+  //Owned by the frame thread
+  private final int[]   _current;
+  private final int[]   _previous;
+  private final long[]  _changed;
+
+  private Thread           _acceptor;
+  private Thread           _frames;
+  private volatile boolean _running     =  false;
+  private volatile boolean _fireEvents  =  true;
+  private volatile long    _frameNanos  =  1000000000L / 30;
+  private volatile long    _frameCount  =  0;
+  private volatile long    _updateCount =  0;
+  private volatile long    _malformed   =  0;
+  private volatile long    _errors      =  0;
+
+  /**
+   * Creates a server for the specified light sources, listening on the specified port.
+   * Use port 0 to pick a free port, see getPort().
+   * @param lights
+   * @param port
+   * @throws IOException
+   */
+  public ControlServer( List<? extends Light> lights, int port ) throws IOException
+  {
+    this._lights    =  lights.toArray( new Light[lights.size()] );
+    this._current   =  new int[LightFrame.size( this._lights.length )];
+    this._previous  =  new int[LightFrame.size( this._lights.length )];
+    this._changed   =  new long[(this._lights.length + 63) >> 6];
+    this._server    =  new ServerSocket();
+    this._server.bind( new InetSocketAddress( port ) );
+    this._connections  =  Executors.newCachedThreadPool( new ThreadFactory()
+    {
+      private final AtomicInteger _count  =  new AtomicInteger( 0 );
+      public Thread newThread( Runnable r )
+      {
+        Thread thread  =  new Thread( r, "ControlServer connection " + this._count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+  }
+
+  /**
+   * Sets the number of frames per second (standard 30).
+   * @param fps
+   */
+  public void setFrameRate( float fps )
+  {
+    this._frameNanos  =  (long) (1000000000L / Math.max( 0.1f, fps ));
+  }
+  /**
+   * Returns the number of frames per second.
+   * @return float
+   */
+  public float getFrameRate()
+  {
+    return 1000000000f / this._frameNanos;
+  }
+  /**
+   * Sets whether updates from clients fire a LightEvent (standard true).
+   * @param fireEvents
+   */
+  public void setFireEvents( boolean fireEvents )
+  {
+    this._fireEvents  =  fireEvents;
+  }
+
+  /**
+   * Returns the port this server is listening on.
+   * @return int
+   */
+  public int getPort()
+  {
+    return this._server.getLocalPort();
+  }
+  /**
+   * Returns the number of connected clients.
+   * @return int
+   */
+  public int getClientCount()
+  {
+    return this._clients.length;
+  }
+  /**
+   * Returns the number of frames since start().
+   * @return long
+   */
+  public long getFrameCount()
+  {
+    return this._frameCount;
+  }
+  /**
+   * Returns the number of update records that have been applied.
+   * @return long
+   */
+  public long getUpdateCount()
+  {
+    return this._updateCount;
+  }
+  /**
+   * Returns the number of update messages that were (partly) ignored because they were malformed.
+   * @return long
+   */
+  public long getMalformedCount()
+  {
+    return this._malformed;
+  }
+  /**
+   * Returns the number of update records that failed because a light source or one of its listeners
+   * threw an exception. The other records of the message are still applied.
+   * @return long
+   */
+  public long getErrorCount()
+  {
+    return this._errors;
+  }
+
+  /**
+   * Starts accepting clients and running frames in background threads.
+   */
+  public synchronized void start()
+  {
+    if( this._running )
+    {
+      return;
+    }
+    this._running   =  true;
+    this._acceptor  =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        ControlServer.this.acceptLoop();
+      }
+    }, "ControlServer" );
+    this._acceptor.setDaemon( true );
+    this._acceptor.start();
+    this._frames    =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        ControlServer.this.frameLoop();
+      }
+    }, "ControlServer frames" );
+    this._frames.setDaemon( true );
+    this._frames.start();
+  }
+
+  /**
+   * Disconnects all clients and stops the server.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    this._running  =  false;
+    this._server.close();
+    for( Client client : this._clients )
+    {
+      client.close();
+    }
+    this._connections.shutdownNow();
+    for( Thread thread : new Thread[]{ this._acceptor, this._frames } )
+    {
+      if( thread == null )
+      {
+        continue;
+      }
+      try
+      {
+        thread.join( 1000 );
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void acceptLoop()
+  {
+    while( this._running )
+    {
+      try
+      {
+        Socket socket  =  this._server.accept();
+        socket.setTcpNoDelay( true );
+        this._connections.execute( new Client( socket ) );
+      }
+      catch( IOException e )
+      {
+        //The server socket is closed by close(), or a single accept failed
+      }
+    }
+  }
+
+  private synchronized void addClient( Client client )
+  {
+    Client[] clients  =  Arrays.copyOf( this._clients, this._clients.length + 1 );
+    clients[clients.length - 1]  =  client;
+    this._clients  =  clients;
+  }
+  private synchronized void removeClient( Client client )
+  {
+    for( int i = 0; i < this._clients.length; i++ )
+    {
+      if( this._clients[i] == client )
+      {
+        Client[] clients  =  new Client[this._clients.length - 1];
+        System.arraycopy( this._clients, 0, clients, 0, i );
+        System.arraycopy( this._clients, i + 1, clients, i, clients.length - i );
+        this._clients  =  clients;
+        return;
+      }
+    }
+  }
+
+  private void frameLoop()
+  {
+    LightFrame.packAll( this._lights, this._previous );
+    long next  =  System.nanoTime();
+    while( this._running )
+    {
+      this.frame();
+      next  +=  this._frameNanos;
+      long wait  =  next - System.nanoTime();
+      if( wait > 0 )
+      {
+        LockSupport.parkNanos( wait );
+      }
+      else
+      {
+        next  =  System.nanoTime();  //Late: do not try to catch up
+      }
+    }
+  }
+
+  //Applies the queued updates, finds the changed light sources and sends them to every idle client
+  private void frame()
+  {
+    boolean fire  =  this._fireEvents;
+    for( Client client : this._clients )
+    {
+      byte[] message;
+      int applied  =  0;
+      while( (message = client._updates.poll()) != null )
+      {
+        this.applyUpdates( ByteBuffer.wrap( message ), fire );
+        applied  +=  message.length;
+      }
+      if( applied > 0 )
+      {
+        client.dequeued( applied );
+      }
+    }
+
+    LightFrame.packAll( this._lights, this._current );
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      int offset  =  i * LightFrame.STRIDE;
+      if( this._current[offset] != this._previous[offset] ||
+          this._current[offset + 1] != this._previous[offset + 1] ||
+          this._current[offset + 2] != this._previous[offset + 2] ||
+          this._current[offset + 3] != this._previous[offset + 3] )
+      {
+        this._changed[i >> 6]  |=  1L << i;
+      }
+    }
+    System.arraycopy( this._current, 0, this._previous, 0, this._current.length );
+
+    for( Client client : this._clients )
+    {
+      client.collect( this._changed );
+      if( client._open && !client._busy )
+      {
+        client.send( this._current );
+      }
+    }
+    Arrays.fill( this._changed, 0 );
+    this._frameCount++;
+  }
+
+  //Applies the records of an update message; malformed records end the message
+  private void applyUpdates( ByteBuffer message, boolean fire )
+  {
+    int applied  =  0;
+    try
+    {
+      int records  =  message.getInt();
+      for( int r = 0; r < records; r++ )
+      {
+        int index  =  message.getInt();
+        int mask   =  message.get();
+        if( index < 0 || index >= this._lights.length || (mask & ~LightReplicator.ALL_FIELDS) != 0 )
+        {
+          this._malformed++;
+          break;
+        }
+        Light light     =  this._lights[index];
+        boolean failed  =  false;
+        for( int f = 0; f < LightFrame.STRIDE; f++ )
+        {
+          if( (mask & (1 << f)) != 0 )
+          {
+            int value  =  message.getInt();
+            try
+            {
+              apply( light, f, value, fire );
+            }
+            catch( RuntimeException e )
+            {
+              failed  =  true;  //E.g. a failing listener, not a malformed message
+            }
+          }
+        }
+        if( failed )
+        {
+          this._errors++;
+        }
+        applied++;
+      }
+    }
+    catch( RuntimeException e )
+    {
+      this._malformed++;  //Truncated
+    }
+    this._updateCount  +=  applied;
+  }
+
+  private static void apply( Light light, int field, int value, boolean fire )
+  {
+    switch( field )
+    {
+      case LightFrame.STATE:
+        light.setState( value != 0, fire );
+        break;
+      case LightFrame.INTENSITY:
+        light.setIntensity( value, fire );
+        break;
+      case LightFrame.COLOR:
+        if( light instanceof ColorLight )
+        {
+          ((ColorLight) light).setColor( value & 0xFFFFFF, fire );
+        }
+        break;
+      case LightFrame.CCT:
+        if( light instanceof CCTLight )
+        {
+          ((CCTLight) light).setCCT( value, fire );
+        }
+        break;
+    }
+  }
+
+  /**
+   * A connected WebSocket client. The reader (run) handles the handshake and incoming messages, the
+   * writer sends the state messages that the frame thread prepares.
+   */
+  private class Client implements Runnable
+  {
+    final Socket   _socket;
+    OutputStream   _out;
+    volatile boolean _open  =  false;
+    volatile boolean _busy  =  false;   //A state message is being written
+    final ConcurrentLinkedQueue<byte[]> _updates  =  new ConcurrentLinkedQueue<byte[]>();
+    int            _queued    =  0;       //Update bytes waiting for the frame thread, guarded by this
+
+    //Owned by the frame thread while the client is not busy
+    final int[]    _sent;
+    final long[]   _pending;
+    boolean        _full      =  true;
+    long           _sequence  =  0;
+    ByteBuffer     _message;
+
+    Client( Socket socket )
+    {
+      this._socket   =  socket;
+      this._sent     =  new int[LightFrame.size( ControlServer.this._lights.length )];
+      this._pending  =  new long[(ControlServer.this._lights.length + 63) >> 6];
+    }
+
+    //Queues an update message, waiting while the client already has MAX_QUEUED bytes waiting
+    void enqueue( byte[] update ) throws IOException
+    {
+      synchronized( this )
+      {
+        while( this._queued > 0 && this._queued + update.length > MAX_QUEUED && this._open && ControlServer.this._running )
+        {
+          try
+          {
+            this.wait();
+          }
+          catch( InterruptedException e )
+          {
+            throw new InterruptedIOException();
+          }
+        }
+        this._queued  +=  update.length;
+      }
+      this._updates.add( update );
+    }
+    //Called by the frame thread after applying queued updates
+    void dequeued( int bytes )
+    {
+      synchronized( this )
+      {
+        this._queued  -=  bytes;
+        this.notifyAll();
+      }
+    }
+
+    //Adds the light sources that changed this frame to the pending changes
+    void collect( long[] changed )
+    {
+      for( int w = 0; w < changed.length; w++ )
+      {
+        this._pending[w]  |=  changed[w];
+      }
+    }
+
+    //Encodes the pending changes against the last sent state and hands them to the writer
+    void send( int[] current )
+    {
+      if( this._message == null )
+      {
+        this._message  =  ByteBuffer.allocate( LightReplicator.HEADER_SIZE + ControlServer.this._lights.length * (5 + 4 * LightFrame.STRIDE) );
+      }
+      ByteBuffer buffer  =  this._message;
+      buffer.clear();
+      buffer.position( LightReplicator.HEADER_SIZE );
+      int records  =  0;
+      for( int w = 0; w < this._pending.length; w++ )
+      {
+        long bits  =  this._full ? -1L : this._pending[w];
+        this._pending[w]  =  0;
+        while( bits != 0 )
+        {
+          int i  =  (w << 6) + Long.numberOfTrailingZeros( bits );
+          bits   &=  bits - 1;
+          if( i >= ControlServer.this._lights.length )
+          {
+            break;
+          }
+          int offset  =  i * LightFrame.STRIDE;
+          int mask    =  this._full ? LightReplicator.ALL_FIELDS : 0;
+          for( int f = 0; f < LightFrame.STRIDE; f++ )
+          {
+            if( current[offset + f] != this._sent[offset + f] )
+            {
+              mask  |=  1 << f;
+            }
+          }
+          if( mask == 0 )
+          {
+            continue;
+          }
+          buffer.putInt( i );
+          buffer.put( (byte) mask );
+          for( int f = 0; f < LightFrame.STRIDE; f++ )
+          {
+            if( (mask & (1 << f)) != 0 )
+            {
+              buffer.putInt( current[offset + f] );
+              this._sent[offset + f]  =  current[offset + f];
+            }
+          }
+          records++;
+        }
+      }
+      if( records == 0 && !this._full )
+      {
+        return;
+      }
+      buffer.put( 0, this._full ? LightReplicator.FULL : LightReplicator.DELTA );
+      buffer.putLong( 1, ++this._sequence );
+      buffer.putInt( 9, records );
+      buffer.flip();
+      this._full  =  false;
+      synchronized( this )
+      {
+        this._busy  =  true;
+        this.notifyAll();
+      }
+    }
+
+    public void run()
+    {
+      try
+      {
+        InputStream in  =  new BufferedInputStream( this._socket.getInputStream() );
+        this._out       =  new BufferedOutputStream( this._socket.getOutputStream() );
+        if( !this.handshake( in ) )
+        {
+          return;
+        }
+        this._open  =  true;
+        ControlServer.this._connections.execute( new Runnable()
+        {
+          public void run()
+          {
+            Client.this.writeLoop();
+          }
+        } );
+        ControlServer.this.addClient( this );
+        this.readLoop( in );
+      }
+      catch( IOException e )
+      {
+        //Disconnected
+      }
+      finally
+      {
+        this.close();
+      }
+    }
+
+    //Reads the HTTP upgrade request and answers it, returns false for other requests
+    private boolean handshake( InputStream in ) throws IOException
+    {
+      String key  =  null;
+      String line;
+      while( (line = readLine( in )) != null && line.length() > 0 )
+      {
+        int colon  =  line.indexOf( ':' );
+        if( colon > 0 && line.substring( 0, colon ).trim().equalsIgnoreCase( "Sec-WebSocket-Key" ) )
+        {
+          key  =  line.substring( colon + 1 ).trim();
+        }
+      }
+      if( key == null )
+      {
+        this._out.write( "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes( StandardCharsets.US_ASCII ) );
+        this._out.flush();
+        return false;
+      }
+      String accept;
+      try
+      {
+        MessageDigest sha1  =  MessageDigest.getInstance( "SHA-1" );
+        accept  =  Base64.getEncoder().encodeToString( sha1.digest( (key + GUID).getBytes( StandardCharsets.US_ASCII ) ) );
+      }
+      catch( NoSuchAlgorithmException e )
+      {
+        throw new IOException( e );
+      }
+      this._out.write( ("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                        "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes( StandardCharsets.US_ASCII ) );
+      this._out.flush();
+      return true;
+    }
+
+    private void readLoop( InputStream in ) throws IOException
+    {
+      byte[] message  =  new byte[4096];
+      int length      =  0;
+      int type        =  OP_CONTINUE;  //Opcode of the first frame of the message
+      byte[] mask     =  new byte[4];
+      while( ControlServer.this._running && this._open )
+      {
+        int first   =  readByte( in );
+        int second  =  readByte( in );
+        boolean fin  =  (first & 0x80) != 0;
+        int opcode   =  first & 0x0F;
+        long size    =  second & 0x7F;
+        if( size == 126 )
+        {
+          size  =  readByte( in ) << 8 | readByte( in );
+        }
+        else if( size == 127 )
+        {
+          size  =  0;
+          for( int i = 0; i < 8; i++ )
+          {
+            size  =  size << 8 | readByte( in );
+          }
+        }
+        if( (second & 0x80) == 0 || size < 0 || length + size > MAX_MESSAGE )
+        {
+          return;  //Client frames must be masked
+        }
+        readFully( in, mask, 0, 4 );
+        if( length + size > message.length )
+        {
+          message  =  Arrays.copyOf( message, (int) Math.max( message.length * 2, length + size ) );
+        }
+        readFully( in, message, length, (int) size );
+        for( int i = 0; i < size; i++ )
+        {
+          message[length + i]  ^=  mask[i & 3];
+        }
+
+        if( opcode == OP_CLOSE )
+        {
+          this.write( OP_CLOSE, message, length, 0 );
+          return;
+        }
+        if( opcode == OP_PING )
+        {
+          this.write( OP_PONG, message, length, (int) size );
+          continue;
+        }
+        if( opcode == OP_PONG )
+        {
+          continue;
+        }
+        if( opcode != OP_CONTINUE )
+        {
+          type  =  opcode;
+        }
+        length  +=  (int) size;
+        if( fin )
+        {
+          if( type == OP_BINARY )
+          {
+            this.enqueue( Arrays.copyOf( message, length ) );
+          }
+          length  =  0;  //Text messages are ignored, also when they are fragmented
+          type    =  OP_CONTINUE;
+        }
+      }
+    }
+
+    private void writeLoop()
+    {
+      while( this._open )
+      {
+        synchronized( this )
+        {
+          while( !this._busy && this._open )
+          {
+            try
+            {
+              this.wait();
+            }
+            catch( InterruptedException e )
+            {
+              return;
+            }
+          }
+        }
+        if( !this._open )
+        {
+          return;
+        }
+        try
+        {
+          this.write( OP_BINARY, this._message.array(), 0, this._message.limit() );
+        }
+        catch( IOException e )
+        {
+          this.close();
+          return;
+        }
+        this._busy  =  false;
+      }
+    }
+
+    //Writes a single unmasked frame; the reader (control frames) and the writer share the stream
+    private void write( int opcode, byte[] payload, int offset, int length ) throws IOException
+    {
+      synchronized( this._out )
+      {
+        this._out.write( 0x80 | opcode );
+        if( length < 126 )
+        {
+          this._out.write( length );
+        }
+        else if( length < 65536 )
+        {
+          this._out.write( 126 );
+          this._out.write( length >> 8 );
+          this._out.write( length );
+        }
+        else
+        {
+          this._out.write( 127 );
+          for( int i = 7; i >= 0; i-- )
+          {
+            this._out.write( i < 4 ? length >>> (i * 8) : 0 );
+          }
+        }
+        this._out.write( payload, offset, length );
+        this._out.flush();
+      }
+    }
+
+    void close()
+    {
+      synchronized( this )
+      {
+        this._open  =  false;
+        this.notifyAll();
+      }
+      ControlServer.this.removeClient( this );
+      try
+      {
+        this._socket.close();
+      }
+      catch( IOException e )
+      {
+        //Already closed
+      }
+    }
+  }
+
+  private static int readByte( InputStream in ) throws IOException
+  {
+    int b  =  in.read();
+    if( b < 0 )
+    {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private static void readFully( InputStream in, byte[] buffer, int offset, int length ) throws IOException
+  {
+    while( length > 0 )
+    {
+      int read  =  in.read( buffer, offset, length );
+      if( read < 0 )
+      {
+        throw new EOFException();
+      }
+      offset  +=  read;
+      length  -=  read;
+    }
+  }
+
+  //Reads an ASCII line ending with CRLF or LF, returns null at the end of the stream
+  private static String readLine( InputStream in ) throws IOException
+  {
+    StringBuilder line  =  new StringBuilder();
+    int b;
+    while( (b = in.read()) >= 0 && b != '\n' )
+    {
+      if( b != '\r' )
+      {
+        line.append( (char) b );
+      }
+      if( line.length() > 8192 )
+      {
+        throw new IOException( "Header line too long" );
+      }
+    }
+    return b < 0 && line.length() == 0 ? null : line.toString();
+  }
+}
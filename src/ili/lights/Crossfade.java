@@ -0,0 +1,295 @@
+package ili.lights;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Crossfade blends a collection of light sources between two captured states (packed frames, see
+ * LightFrame, e.g. from SceneStore.getScene() or FrameSnapshot). Move the fader with setFader(0..1):
+ * the blended frame is computed in parallel on all cores into a reusable buffer, and only the light
+ * sources whose blended value changed since the previous fader step are updated.
+ *
+ * Intensity, colour temperature and colour are interpolated. Colours are interpolated per RGB channel
+ * (ColorLight.RGB_MODE) or along the shortest hue path (ColorLight.HSB_MODE). A light source that is
+ * off is faded as intensity 0, it is on during the fade when it is on in either state.
+ */
+public class Crossfade
+{
+  private static ExecutorService _sharedPool;
+
+  private final Light[] _lights;
+  private final int[]   _from;
+  private final int[]   _to;
+  private final int[]   _fromHSB;
+  private final int[]   _toHSB;
+  private final int[]   _output;
+  private final int[]   _changed;
+  private final int[]   _changedCount;
+  private final List<Slice> _slices  =  new ArrayList<Slice>();
+
+  private int  _colorMode   =  ColorLight.RGB_MODE;
+  private int  _fader       =  -1;  //16.16 fixed point, -1 before the first step
+  private boolean _stale      =  false;  //A step did not complete, the output may be ahead of the light sources
+  private boolean _fireEvents =  true;
+
+  /**
+   * Creates a crossfade of the specified light sources from one packed frame to another.
+   * @param lights
+   * @param from
+   * @param to
+   */
+  public Crossfade( List<? extends Light> lights, int[] from, int[] to )
+  {
+    this._lights        =  lights.toArray( new Light[lights.size()] );
+    int size            =  LightFrame.size( this._lights.length );
+    this._from          =  new int[size];
+    this._to            =  new int[size];
+    this._fromHSB       =  new int[this._lights.length];
+    this._toHSB         =  new int[this._lights.length];
+    this._output        =  new int[size];
+    this._changed       =  new int[this._lights.length];
+
+    int threads         =  Runtime.getRuntime().availableProcessors();
+    int sliceSize       =  Math.max( 1024, (this._lights.length + threads - 1) / threads );
+    for( int first = 0; first < this._lights.length; first += sliceSize )
+    {
+      this._slices.add( new Slice( this._slices.size(), first, Math.min( this._lights.length, first + sliceSize ) ) );
+    }
+    this._changedCount  =  new int[this._slices.size()];
+    this.setStates( from, to );
+  }
+
+  /**
+   * Replaces the two states of this crossfade. The next setFader() updates all light sources that differ.
+   * @param from
+   * @param to
+   */
+  public synchronized void setStates( int[] from, int[] to )
+  {
+    System.arraycopy( from, 0, this._from, 0, this._from.length );
+    System.arraycopy( to, 0, this._to, 0, this._to.length );
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._fromHSB[i]  =  toHSB( this._from[i * LightFrame.STRIDE + LightFrame.COLOR] );
+      this._toHSB[i]    =  toHSB( this._to[i * LightFrame.STRIDE + LightFrame.COLOR] );
+    }
+    this._fader  =  -1;
+  }
+
+  private static int toHSB( int lightColor )
+  {
+    return ColorLight.toHSB( lightColor >> 16 & 0xFF, lightColor >> 8 & 0xFF, lightColor & 0xFF );
+  }
+
+  /**
+   * Sets how colours are interpolated: ColorLight.RGB_MODE (standard) or ColorLight.HSB_MODE.
+   * @param colorMode
+   */
+  public synchronized void setColorMode( int colorMode )
+  {
+    this._colorMode  =  colorMode;
+    this._fader      =  -1;
+  }
+  /**
+   * Sets whether updated light sources fire a LightEvent (standard true).
+   * @param fireEvents
+   */
+  public void setFireEvents( boolean fireEvents )
+  {
+    this._fireEvents  =  fireEvents;
+  }
+
+  /**
+   * Moves the fader to the specified position (0 = from, 1 = to) and updates the light sources whose
+   * blended value changed. Returns the number of updated light sources.
+   * @param fader
+   * @return int
+   */
+  public synchronized int setFader( float fader )
+  {
+    int position  =  (int) (Math.max( 0, Math.min( 1, fader ) ) * 65536);
+    if( position == this._fader && !this._stale )
+    {
+      return 0;
+    }
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    //After an incomplete step all light sources are updated, the output no longer shows what they are set to
+    boolean force  =  this._fader < 0 || this._stale;
+    this._stale    =  true;
+    for( Slice slice : this._slices )
+    {
+      slice._position  =  position;
+      slice._force     =  force;
+    }
+    try
+    {
+      if( this._slices.size() == 1 )
+      {
+        this._slices.get( 0 ).call();
+      }
+      else
+      {
+        for( Future<Integer> result : pool().invokeAll( this._slices ) )
+        {
+          result.get();
+        }
+      }
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    catch( ExecutionException e )
+    {
+      throw new RuntimeException( e.getCause() );
+    }
+
+    //Light sources are not thread safe, they are updated from the calling thread
+    int updated  =  0;
+    for( Slice slice : this._slices )
+    {
+      int count  =  this._changedCount[slice._number];
+      for( int c = 0; c < count; c++ )
+      {
+        int index  =  this._changed[slice._first + c];
+        LightFrame.unpack( this._output, index, this._lights[index], this._fireEvents );
+      }
+      updated  +=  count;
+    }
+    //Only now the light sources show the new position
+    this._fader  =  position;
+    this._stale  =  false;
+    bulk.finish( "crossfade", this._lights.length, updated );
+    return updated;
+  }
+
+  /**
+   * Returns the fader position of the last step (0-1).
+   * @return float
+   */
+  public float getFader()
+  {
+    return Math.max( 0, this._fader ) / 65536f;
+  }
+
+  /**
+   * Returns the blended frame of the last fader step. The array is reused by the next step.
+   * @return int[]
+   */
+  public int[] getOutput()
+  {
+    return this._output;
+  }
+
+  private static synchronized ExecutorService pool()
+  {
+    if( _sharedPool == null )
+    {
+      _sharedPool  =  Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+      {
+        public Thread newThread( Runnable r )
+        {
+          Thread thread  =  new Thread( r, "Crossfade" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return _sharedPool;
+  }
+
+  //Interpolates with a 16.16 fixed point position
+  private static int lerp( int from, int to, int position )
+  {
+    return from + (int) (((long) (to - from) * position + 0x8000) >> 16);
+  }
+
+  /**
+   * Blends the light sources from 'first' to 'last' and collects the indices that changed.
+   */
+  private class Slice implements Callable<Integer>
+  {
+    final int _number;
+    final int _first;
+    final int _last;
+    int     _position;
+    boolean _force;
+
+    Slice( int number, int first, int last )
+    {
+      this._number  =  number;
+      this._first   =  first;
+      this._last    =  last;
+    }
+
+    public Integer call()
+    {
+      int[] from      =  Crossfade.this._from;
+      int[] to        =  Crossfade.this._to;
+      int[] output    =  Crossfade.this._output;
+      boolean hsb     =  Crossfade.this._colorMode == ColorLight.HSB_MODE;
+      int position    =  this._position;
+      int count       =  0;
+      for( int i = this._first; i < this._last; i++ )
+      {
+        int offset      =  i * LightFrame.STRIDE;
+        boolean fromOn  =  from[offset + LightFrame.STATE] != 0;
+        boolean toOn    =  to[offset + LightFrame.STATE] != 0;
+        int state       =  position == 65536 ? ( toOn ? 1 : 0 ) :
+                           ( position == 0 ? ( fromOn ? 1 : 0 ) : ( fromOn || toOn ? 1 : 0 ) );
+        int intensity   =  lerp( fromOn ? from[offset + LightFrame.INTENSITY] : 0,
+                                 toOn ? to[offset + LightFrame.INTENSITY] : 0, position );
+        if( position == 65536 && !toOn )
+        {
+          intensity  =  to[offset + LightFrame.INTENSITY];
+        }
+        else if( position == 0 && !fromOn )
+        {
+          intensity  =  from[offset + LightFrame.INTENSITY];
+        }
+        int cct         =  lerp( from[offset + LightFrame.CCT], to[offset + LightFrame.CCT], position );
+        int color;
+        if( hsb && position != 0 && position != 65536 )
+        {
+          int a  =  Crossfade.this._fromHSB[i];
+          int b  =  Crossfade.this._toHSB[i];
+          int hueFrom   =  a >> 16 & 0xFF;
+          int hueDelta  =  ((b >> 16 & 0xFF) - hueFrom + 384) % 256 - 128;  //Shortest way around the hue circle
+          int hue       =  (hueFrom + lerp( 0, hueDelta, position ) + 256) % 256;
+          color  =  ColorLight.toRGB( hue, lerp( a >> 8 & 0xFF, b >> 8 & 0xFF, position ), lerp( a & 0xFF, b & 0xFF, position ) );
+        }
+        else
+        {
+          int a  =  from[offset + LightFrame.COLOR];
+          int b  =  to[offset + LightFrame.COLOR];
+          color  =  lerp( a >> 16 & 0xFF, b >> 16 & 0xFF, position ) << 16 |
+                    lerp( a >> 8 & 0xFF, b >> 8 & 0xFF, position ) << 8 |
+                    lerp( a & 0xFF, b & 0xFF, position );
+        }
+        if( this._force ||
+            output[offset + LightFrame.STATE] != state ||
+            output[offset + LightFrame.INTENSITY] != intensity ||
+            output[offset + LightFrame.COLOR] != color ||
+            output[offset + LightFrame.CCT] != cct )
+        {
+          output[offset + LightFrame.STATE]      =  state;
+          output[offset + LightFrame.INTENSITY]  =  intensity;
+          output[offset + LightFrame.COLOR]      =  color;
+          output[offset + LightFrame.CCT]        =  cct;
+          Crossfade.this._changed[this._first + count]  =  i;
+          count++;
+        }
+      }
+      Crossfade.this._changedCount[this._number]  =  count;
+      return count;
+    }
+  }
+}
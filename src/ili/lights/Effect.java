@@ -0,0 +1,177 @@
+package ili.lights;
+
+/**
+ * An Effect generates colours for a whole group of light sources at once (see EffectEngine). An effect
+ * is a layer: it renders into a buffer of colours (0xRRGGBB, one per light source) that the engine
+ * blends onto the layers below it with the blend mode and opacity of the effect.
+ *
+ * Implementations fill the colours from 'first' to 'last' in render(). They may be called for
+ * different ranges on several threads at the same time, so render() should not change the effect.
+ */
+public abstract class Effect
+{
+  public static final int NORMAL    =  0;
+  public static final int ADD       =  1;
+  public static final int MULTIPLY  =  2;
+  public static final int MAX       =  3;
+  public static final int SUBTRACT  =  4;
+
+  private volatile int     _blendMode  =  NORMAL;
+  private volatile int     _opacity    =  256;
+  private volatile boolean _enabled    =  true;
+
+  /**
+   * Fills the colours of the light sources from 'first' to (not including) 'last'.
+   * @param time time in seconds
+   * @param positions position of every light source in the group, 0 (start) to 65536 (end)
+   * @param colors the buffer to fill, indexed by light source
+   * @param first
+   * @param last
+   */
+  protected abstract void render( float time, int[] positions, int[] colors, int first, int last );
+
+  /**
+   * Sets how this effect is combined with the layers below it: NORMAL (standard), ADD, MULTIPLY, MAX or SUBTRACT.
+   * @param blendMode
+   */
+  public void setBlendMode( int blendMode )
+  {
+    this._blendMode  =  blendMode;
+  }
+  /**
+   * Returns the blend mode.
+   * @return int
+   */
+  public int getBlendMode()
+  {
+    return this._blendMode;
+  }
+  /**
+   * Sets the opacity of this effect (0-1, standard 1).
+   * @param opacity
+   */
+  public void setOpacity( float opacity )
+  {
+    this._opacity  =  Math.round( Math.max( 0, Math.min( 1, opacity ) ) * 256 );
+  }
+  /**
+   * Returns the opacity (0-1).
+   * @return float
+   */
+  public float getOpacity()
+  {
+    return this._opacity / 256f;
+  }
+  /**
+   * Turns this effect on or off without removing it from its engine.
+   * @param enabled
+   */
+  public void setEnabled( boolean enabled )
+  {
+    this._enabled  =  enabled;
+  }
+  /**
+   * Returns true if this effect is rendered.
+   * @return boolean
+   */
+  public boolean isEnabled()
+  {
+    return this._enabled;
+  }
+
+  //Opacity as 0-256 for blend()
+  int getOpacityLevel()
+  {
+    return this._opacity;
+  }
+
+  /**
+   * Scales the three channels of a colour by a level of 0-256.
+   * @param color
+   * @param level
+   * @return int
+   */
+  protected static int scale( int color, int level )
+  {
+    return ((color & 0xFF00FF) * level >>> 8 & 0xFF00FF) | ((color & 0x00FF00) * level >>> 8 & 0x00FF00);
+  }
+
+  /**
+   * Blends the layer onto the output from 'first' to 'last'. Every mode has its own loop, so the JIT can
+   * compile each one tightly.
+   */
+  static void blend( int blendMode, int opacity, int[] layer, int[] output, int first, int last )
+  {
+    switch( blendMode )
+    {
+      case ADD:       add( opacity, layer, output, first, last ); break;
+      case SUBTRACT:  subtract( opacity, layer, output, first, last ); break;
+      case MAX:       max( opacity, layer, output, first, last ); break;
+      case MULTIPLY:  multiply( opacity, layer, output, first, last ); break;
+      default:        normal( opacity, layer, output, first, last );
+    }
+  }
+
+  private static void normal( int opacity, int[] layer, int[] output, int first, int last )
+  {
+    if( opacity >= 256 )
+    {
+      System.arraycopy( layer, first, output, first, last - first );
+      return;
+    }
+    for( int i = first; i < last; i++ )
+    {
+      output[i]  =  scale( layer[i], opacity ) + scale( output[i], 256 - opacity );
+    }
+  }
+
+  private static void add( int opacity, int[] layer, int[] output, int first, int last )
+  {
+    for( int i = first; i < last; i++ )
+    {
+      int s  =  scale( layer[i], opacity );
+      int d  =  output[i];
+      output[i]  =  Math.min( 0xFF0000, (d & 0xFF0000) + (s & 0xFF0000) ) |
+                    Math.min( 0x00FF00, (d & 0x00FF00) + (s & 0x00FF00) ) |
+                    Math.min( 0x0000FF, (d & 0x0000FF) + (s & 0x0000FF) );
+    }
+  }
+
+  private static void subtract( int opacity, int[] layer, int[] output, int first, int last )
+  {
+    for( int i = first; i < last; i++ )
+    {
+      int s  =  scale( layer[i], opacity );
+      int d  =  output[i];
+      output[i]  =  Math.max( 0, (d & 0xFF0000) - (s & 0xFF0000) ) |
+                    Math.max( 0, (d & 0x00FF00) - (s & 0x00FF00) ) |
+                    Math.max( 0, (d & 0x0000FF) - (s & 0x0000FF) );
+    }
+  }
+
+  private static void max( int opacity, int[] layer, int[] output, int first, int last )
+  {
+    for( int i = first; i < last; i++ )
+    {
+      int s  =  scale( layer[i], opacity );
+      int d  =  output[i];
+      output[i]  =  Math.max( d & 0xFF0000, s & 0xFF0000 ) |
+                    Math.max( d & 0x00FF00, s & 0x00FF00 ) |
+                    Math.max( d & 0x0000FF, s & 0x0000FF );
+    }
+  }
+
+  private static void multiply( int opacity, int[] layer, int[] output, int first, int last )
+  {
+    for( int i = first; i < last; i++ )
+    {
+      int s  =  layer[i];
+      int d  =  output[i];
+      //Multiply with the layer, faded towards white by the opacity
+      int r  =  256 - (((256 - ((s >> 16 & 0xFF) + 1)) * opacity) >> 8);
+      int g  =  256 - (((256 - ((s >> 8 & 0xFF) + 1)) * opacity) >> 8);
+      int b  =  256 - (((256 - ((s & 0xFF) + 1)) * opacity) >> 8);
+      output[i]  =  ((d >> 16 & 0xFF) * r >> 8) << 16 | ((d >> 8 & 0xFF) * g >> 8) << 8 | ((d & 0xFF) * b >> 8);
+    }
+  }
+}
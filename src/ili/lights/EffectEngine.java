@@ -0,0 +1,258 @@
+package ili.lights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The EffectEngine renders a stack of effects (e.g. ChaseEffect, RainbowEffect, ShimmerEffect,
+ * StrobeEffect) for a whole group of light sources per tick. The first effect added is the bottom
+ * layer; every next effect is blended onto the result with its own blend mode and opacity.
+ *
+ * Effects are evaluated over primitive colour buffers in blocks of light sources, in parallel on all
+ * cores. render() writes the colours into an output buffer (0xRRGGBB per light source); apply() also
+ * sets the colours of the light sources without firing events.
+ */
+public class EffectEngine
+{
+  /** Number of light sources rendered through all layers at once, so the buffers stay in the cache **/
+  static final int BLOCK  =  1024;
+
+  private static ExecutorService _sharedPool;
+
+  private final ColorLight[] _lights;
+  private final int     _count;
+  private final int[]   _positions;
+  private final int[]   _layer;
+  private final int[]   _output;
+  private final List<Slice> _slices  =  new ArrayList<Slice>();
+  private volatile Effect[] _effects  =  new Effect[0];
+  private float _time;
+  private int[] _target;
+
+  /**
+   * Creates an engine that renders colours for the specified number of light sources, into the output
+   * buffer only.
+   * @param count
+   */
+  public EffectEngine( int count )
+  {
+    this( new ColorLight[0], count );
+  }
+  /**
+   * Creates an engine that renders colours for the specified light sources.
+   * @param lights
+   */
+  public EffectEngine( List<? extends ColorLight> lights )
+  {
+    this( lights.toArray( new ColorLight[lights.size()] ), lights.size() );
+  }
+
+  private EffectEngine( ColorLight[] lights, int count )
+  {
+    this._lights     =  lights;
+    this._count      =  count;
+    this._positions  =  new int[count];
+    this._layer      =  new int[count];
+    this._output     =  new int[count];
+    for( int i = 0; i < count; i++ )
+    {
+      this._positions[i]  =  count > 1 ? (int) ((long) i * 65536 / (count - 1)) : 0;
+    }
+    int threads    =  Runtime.getRuntime().availableProcessors();
+    int sliceSize  =  Math.max( 4 * BLOCK, (count + threads - 1) / threads );
+    for( int first = 0; first < count; first += sliceSize )
+    {
+      this._slices.add( new Slice( first, Math.min( count, first + sliceSize ) ) );
+    }
+  }
+
+  /**
+   * Sets the position of every light source (0 = start of the group, 1 = end). By default the light
+   * sources are spread evenly in the order of their index.
+   * @param positions
+   */
+  public synchronized void setPositions( float[] positions )
+  {
+    for( int i = 0; i < this._count; i++ )
+    {
+      this._positions[i]  =  Math.round( positions[i] * 65536 );
+    }
+  }
+
+  /**
+   * Adds an effect on top of the current effects.
+   * @param effect
+   */
+  public synchronized void addEffect( Effect effect )
+  {
+    Effect[] effects  =  Arrays.copyOf( this._effects, this._effects.length + 1 );
+    effects[effects.length - 1]  =  effect;
+    this._effects  =  effects;
+  }
+  /**
+   * Removes an effect.
+   * @param effect
+   */
+  public synchronized void removeEffect( Effect effect )
+  {
+    List<Effect> effects  =  this.getEffects();
+    effects.remove( effect );
+    this._effects  =  effects.toArray( new Effect[effects.size()] );
+  }
+  /**
+   * Returns the effects, from the bottom layer to the top layer.
+   * @return List<Effect>
+   */
+  public List<Effect> getEffects()
+  {
+    return new ArrayList<Effect>( Arrays.asList( this._effects ) );
+  }
+
+  /**
+   * Renders all effects at the specified time (seconds) into the internal output buffer and returns it.
+   * @param time
+   * @return int[]
+   */
+  public int[] render( float time )
+  {
+    this.render( time, this._output );
+    return this._output;
+  }
+  /**
+   * Renders all effects at the specified time (seconds) into the buffer (one colour per light source).
+   * Light sources that no effect covers are black.
+   * @param time
+   * @param colors
+   */
+  public synchronized void render( float time, int[] colors )
+  {
+    this._time    =  time;
+    this._target  =  colors;
+    try
+    {
+      if( this._slices.size() == 1 )
+      {
+        this._slices.get( 0 ).call();
+      }
+      else
+      {
+        for( Future<Integer> result : pool().invokeAll( this._slices ) )
+        {
+          result.get();
+        }
+      }
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch( ExecutionException e )
+    {
+      throw new RuntimeException( e.getCause() );
+    }
+    finally
+    {
+      this._target  =  null;
+    }
+  }
+  /**
+   * Renders all effects at the specified time (seconds) and sets the colours of the light sources,
+   * without firing events.
+   * @param time
+   */
+  public synchronized void apply( float time )
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    int[] colors  =  this.render( time );
+    int changed   =  0;
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      if( this._lights[i].setColor( colors[i], false ) )
+      {
+        changed++;
+      }
+    }
+    bulk.finish( "effects", this._lights.length, changed );
+  }
+
+  /**
+   * Returns the colours of the last render() into the internal output buffer.
+   * @return int[]
+   */
+  public int[] getOutput()
+  {
+    return this._output;
+  }
+
+  private static synchronized ExecutorService pool()
+  {
+    if( _sharedPool == null )
+    {
+      _sharedPool  =  Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+      {
+        public Thread newThread( Runnable r )
+        {
+          Thread thread  =  new Thread( r, "EffectEngine" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return _sharedPool;
+  }
+
+  /**
+   * Renders the light sources from 'first' to 'last', block by block through all layers.
+   */
+  private class Slice implements Callable<Integer>
+  {
+    final int _first;
+    final int _last;
+
+    Slice( int first, int last )
+    {
+      this._first  =  first;
+      this._last   =  last;
+    }
+
+    public Integer call()
+    {
+      float time       =  EffectEngine.this._time;
+      int[] positions  =  EffectEngine.this._positions;
+      int[] layer      =  EffectEngine.this._layer;
+      int[] output     =  EffectEngine.this._target;
+      Effect[] effects =  EffectEngine.this._effects;
+      for( int first = this._first; first < this._last; first += BLOCK )
+      {
+        int last  =  Math.min( this._last, first + BLOCK );
+        Arrays.fill( output, first, last, 0 );
+        for( Effect effect : effects )
+        {
+          if( !effect.isEnabled() )
+          {
+            continue;
+          }
+          int mode  =  effect.getBlendMode();
+          if( mode == Effect.NORMAL && effect.getOpacityLevel() >= 256 )
+          {
+            effect.render( time, positions, output, first, last );
+          }
+          else
+          {
+            effect.render( time, positions, layer, first, last );
+            Effect.blend( mode, effect.getOpacityLevel(), layer, output, first, last );
+          }
+        }
+      }
+      return this._last - this._first;
+    }
+  }
+}
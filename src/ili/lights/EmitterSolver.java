@@ -0,0 +1,168 @@
+package ili.lights;
+
+/**
+ * The EmitterSolver splits a colour into the levels of a fixture with more emitters than red, green and
+ * blue, e.g. RGBW (white) or RGBA (amber) fixtures. Every extra emitter is described by the colour it
+ * produces at full level (e.g. 0xFFFFFF for white, 0xFFBF00 for amber). The extra emitters are solved in
+ * order: each one takes as much of the remaining colour as it can produce, and red, green and blue
+ * produce the rest. Colours of a CCTLight (getLightColor(), or the COLOR field of a packed frame) are
+ * split the same way, e.g. over warm and cool white emitters.
+ *
+ * The solver only uses integer math with tables that are computed when it is created. solve() returns
+ * the levels packed in a long (8 bits per emitter, red first), so it does not allocate.
+ */
+public final class EmitterSolver
+{
+  public static final int WHITE  =  0xFFFFFF;
+  public static final int AMBER  =  0xFFBF00;
+
+  /** Red, green, blue and white **/
+  public static final EmitterSolver RGBW   =  new EmitterSolver( new int[]{ WHITE } );
+  /** Red, green, blue and amber **/
+  public static final EmitterSolver RGBA   =  new EmitterSolver( new int[]{ AMBER } );
+  /** Red, green, blue, white and amber **/
+  public static final EmitterSolver RGBWA  =  new EmitterSolver( new int[]{ WHITE, AMBER } );
+
+  /** Maximum number of extra emitters, so all levels fit in a long **/
+  public static final int MAX_EXTRA  =  5;
+
+  private final int[]   _emitters;
+  private final int[][] _reach;      //Per extra emitter: the highest level each channel value allows, 256 per channel
+  private final int[][] _produces;   //Per extra emitter and level: the colour it produces, 0xRRGGBB
+
+  /**
+   * Creates a solver for red, green and blue plus the specified extra emitters, in the order they are solved.
+   * @param emitters the colour (0xRRGGBB) of every extra emitter at full level
+   */
+  public EmitterSolver( int[] emitters )
+  {
+    if( emitters.length > MAX_EXTRA )
+    {
+      throw new IllegalArgumentException( "An emitter solver supports at most " + MAX_EXTRA + " extra emitters" );
+    }
+    this._emitters  =  new int[emitters.length];
+    this._reach     =  new int[emitters.length][3 * 256];
+    this._produces  =  new int[emitters.length][256];
+    for( int e = 0; e < emitters.length; e++ )
+    {
+      int color  =  emitters[e] & 0xFFFFFF;
+      if( color == 0 )
+      {
+        throw new IllegalArgumentException( "Emitter " + e + " does not produce any colour" );
+      }
+      this._emitters[e]  =  color;
+      for( int c = 0; c < 3; c++ )
+      {
+        int contribution  =  color >> (16 - c * 8) & 0xFF;
+        for( int value = 0; value < 256; value++ )
+        {
+          this._reach[e][c * 256 + value]  =  contribution == 0 ? 255 : Math.min( 255, value * 255 / contribution );
+        }
+      }
+      for( int level = 0; level < 256; level++ )
+      {
+        //Rounded down, so the produced colour never exceeds the colour it was solved from
+        this._produces[e][level]  =  ((color >> 16 & 0xFF) * level / 255) << 16 |
+                                     ((color >> 8 & 0xFF) * level / 255) << 8 |
+                                     ((color & 0xFF) * level / 255);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of emitters: 3 plus the number of extra emitters.
+   * @return int
+   */
+  public int getEmitterCount()
+  {
+    return 3 + this._emitters.length;
+  }
+  /**
+   * Returns the colour of an extra emitter at full level.
+   * @param emitter
+   * @return int
+   */
+  public int getEmitterColor( int emitter )
+  {
+    return this._emitters[emitter];
+  }
+
+  /**
+   * Splits the colour into emitter levels (0-255), packed 8 bits per emitter: red in the lowest byte,
+   * then green, blue and the extra emitters in order. Use level() to unpack them.
+   * @param color
+   * @return long
+   */
+  public long solve( int color )
+  {
+    int rest     =  color & 0xFFFFFF;
+    long levels  =  0;
+    for( int e = 0; e < this._emitters.length; e++ )
+    {
+      int[] reach  =  this._reach[e];
+      int level    =  Math.min( reach[rest >> 16 & 0xFF], Math.min( reach[256 + (rest >> 8 & 0xFF)], reach[512 + (rest & 0xFF)] ) );
+      rest    -=  this._produces[e][level];  //No channel borrows: every channel is at least what the emitter produces
+      levels  |=  (long) level << ((3 + e) * 8);
+    }
+    return levels | (rest >> 16 & 0xFF) | (rest >> 8 & 0xFF) << 8 | (long) (rest & 0xFF) << 16;
+  }
+
+  /**
+   * Returns the level (0-255) of an emitter (0 = red, 1 = green, 2 = blue, 3 = first extra emitter)
+   * from the result of solve().
+   * @param levels
+   * @param emitter
+   * @return int
+   */
+  public static int level( long levels, int emitter )
+  {
+    return (int) (levels >>> (emitter * 8)) & 0xFF;
+  }
+
+  /**
+   * Splits 'count' colours, starting at 'first', into emitter levels. Writes getEmitterCount() bytes per
+   * colour (red, green, blue, extra emitters) into the output, starting at the offset. Returns the offset
+   * after the written levels.
+   * @param colors
+   * @param first
+   * @param count
+   * @param output
+   * @param offset
+   * @return int
+   */
+  public int solve( int[] colors, int first, int count, byte[] output, int offset )
+  {
+    int emitters  =  this.getEmitterCount();
+    for( int i = first; i < first + count; i++ )
+    {
+      long levels  =  this.solve( colors[i] );
+      for( int e = 0; e < emitters; e++ )
+      {
+        output[offset++]  =  (byte) (levels >>> (e * 8));
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Splits the colours of all light sources in a packed frame (see LightFrame) into emitter levels, like
+   * solve( int[], int, int, byte[], int ). Light sources that are off get level 0 on all emitters.
+   * @param frame
+   * @param output
+   * @param offset
+   * @return int
+   */
+  public int solveFrame( int[] frame, byte[] output, int offset )
+  {
+    int emitters  =  this.getEmitterCount();
+    for( int base = 0; base < frame.length; base += LightFrame.STRIDE )
+    {
+      long levels  =  frame[base + LightFrame.STATE] != 0 ? this.solve( frame[base + LightFrame.COLOR] ) : 0;
+      for( int e = 0; e < emitters; e++ )
+      {
+        output[offset++]  =  (byte) (levels >>> (e * 8));
+      }
+    }
+    return offset;
+  }
+}
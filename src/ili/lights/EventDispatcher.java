@@ -0,0 +1,399 @@
+package ili.lights;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The EventDispatcher delivers LightEvents in the background, so a slow listener (e.g. one that
+ * writes to a file) does not slow down the setters of a light source. Enable it per light source with
+ * light.setEventDispatcher( dispatcher ). A setter then only adds the event to a queue, regardless of
+ * the number of listeners.
+ *
+ * A dispatcher thread passes every event to a queue per listener, and a pool of worker threads
+ * delivers the queued events. Every listener receives its events in order, one at a time. A listener
+ * that takes longer than the latency budget for a number of events in a row is quarantined: it no
+ * longer receives events until you release it.
+ *
+ * The inbound queue and every listener queue hold at most 'capacity' events. When a queue is full the
+ * new event is dropped and counted (see getDroppedCount()). Events only refer to their light source,
+ * so a listener that missed an event still reads the current values with the next one. Exceptions
+ * thrown by listeners are counted (see getErrorCount()) and do not stop delivery. After close(), the
+ * events of light sources that still use the dispatcher are dropped and counted as well.
+ */
+public class EventDispatcher
+{
+  public static final int DEFAULT_CAPACITY  =  65536;
+
+  private final LinkedBlockingQueue<LightEvent> _inbound;
+  private final IdentityHashMap<LightListener, ListenerQueue> _queues  =  new IdentityHashMap<LightListener, ListenerQueue>();
+  private final int _capacity;
+  private final ExecutorService _workers;
+  private final Thread _dispatcher;
+  private volatile boolean _running  =  true;
+
+  private volatile long _latencyBudget;
+  private volatile int  _maxStrikes  =  3;
+  private final AtomicLong _dispatched  =  new AtomicLong( 0 );
+  private final AtomicLong _dropped     =  new AtomicLong( 0 );
+  private final AtomicLong _errors      =  new AtomicLong( 0 );
+
+  /**
+   * Creates a dispatcher with 4 worker threads and a latency budget of 10ms per event.
+   */
+  public EventDispatcher()
+  {
+    this( 4, 10 );
+  }
+  /**
+   * Creates a dispatcher with the specified number of worker threads and latency budget (ms) per event.
+   * @param workers
+   * @param latencyBudget
+   */
+  public EventDispatcher( int workers, long latencyBudget )
+  {
+    this( Executors.newFixedThreadPool( workers, new ThreadFactory()
+    {
+      private final AtomicInteger _count  =  new AtomicInteger( 0 );
+      public Thread newThread( Runnable r )
+      {
+        Thread thread  =  new Thread( r, "EventDispatcher worker " + this._count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } ), latencyBudget );
+  }
+  /**
+   * Creates a dispatcher that delivers events on the specified executor (e.g. an executor of
+   * virtual threads), with the specified latency budget (ms) per event.
+   * @param workers
+   * @param latencyBudget
+   */
+  public EventDispatcher( ExecutorService workers, long latencyBudget )
+  {
+    this( workers, latencyBudget, DEFAULT_CAPACITY );
+  }
+  /**
+   * Creates a dispatcher that delivers events on the specified executor, with the specified latency
+   * budget (ms) per event and the number of events each queue can hold.
+   * @param workers
+   * @param latencyBudget
+   * @param capacity
+   */
+  public EventDispatcher( ExecutorService workers, long latencyBudget, int capacity )
+  {
+    this._workers        =  workers;
+    this._capacity       =  capacity;
+    this._inbound        =  new LinkedBlockingQueue<LightEvent>( capacity );
+    this._latencyBudget  =  TimeUnit.MILLISECONDS.toNanos( latencyBudget );
+    this._dispatcher     =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        EventDispatcher.this.dispatchLoop();
+      }
+    }, "EventDispatcher" );
+    this._dispatcher.setDaemon( true );
+    this._dispatcher.start();
+  }
+
+  /**
+   * Adds an event of the light source to the queue. Called by Light.fireLightEvent().
+   * @param light
+   * @param eventType
+   */
+  public void dispatch( Light light, int eventType )
+  {
+    if( !this._running || !this._inbound.offer( light.createEvent( eventType ) ) )
+    {
+      this._dropped.incrementAndGet();
+    }
+  }
+  //Called by the light sources using this dispatcher for every listener they add, creates the queue on the first one
+  void listenerAdded( LightListener listener )
+  {
+    synchronized( this._queues )
+    {
+      ListenerQueue queue  =  this._queues.get( listener );
+      if( queue == null )
+      {
+        queue  =  new ListenerQueue( listener );
+        this._queues.put( listener, queue );
+      }
+      queue._references++;
+    }
+  }
+  //Called for every listener they remove, drops the queue when no light source of this dispatcher has the listener
+  void listenerRemoved( LightListener listener )
+  {
+    synchronized( this._queues )
+    {
+      ListenerQueue queue  =  this._queues.get( listener );
+      if( queue != null && --queue._references == 0 )
+      {
+        this._queues.remove( listener );
+      }
+    }
+  }
+
+  /**
+   * Sets the time (ms) a listener may take to handle a single event.
+   * @param latencyBudget
+   */
+  public void setLatencyBudget( long latencyBudget )
+  {
+    this._latencyBudget  =  TimeUnit.MILLISECONDS.toNanos( latencyBudget );
+  }
+  /**
+   * Sets the number of events in a row that may exceed the latency budget before a listener is quarantined (standard 3).
+   * @param strikes
+   */
+  public void setMaxStrikes( int strikes )
+  {
+    this._maxStrikes  =  strikes;
+  }
+
+  /**
+   * Returns the number of events waiting to be passed to the listener queues.
+   * @return int
+   */
+  public int getInboundDepth()
+  {
+    return this._inbound.size();
+  }
+  /**
+   * Returns the number of events waiting to be delivered to the specified listener.
+   * @param listener
+   * @return int
+   */
+  public int getQueueDepth( LightListener listener )
+  {
+    ListenerQueue queue  =  this.queue( listener );
+    return queue == null ? 0 : queue._depth.get();
+  }
+  /**
+   * Returns the highest number of events that is waiting for any listener.
+   * @return int
+   */
+  public int getMaxQueueDepth()
+  {
+    int max  =  0;
+    synchronized( this._queues )
+    {
+      for( ListenerQueue queue : this._queues.values() )
+      {
+        max  =  Math.max( max, queue._depth.get() );
+      }
+    }
+    return max;
+  }
+  /**
+   * Returns the number of events that have been delivered to listeners.
+   * @return long
+   */
+  public long getDispatchedCount()
+  {
+    return this._dispatched.get();
+  }
+  /**
+   * Returns the number of events that were dropped because a queue was full.
+   * @return long
+   */
+  public long getDroppedCount()
+  {
+    return this._dropped.get();
+  }
+  /**
+   * Returns the number of events for which a listener threw an exception.
+   * @return long
+   */
+  public long getErrorCount()
+  {
+    return this._errors.get();
+  }
+  /**
+   * Returns the slowest time (ms) the listener took to handle an event.
+   * @param listener
+   * @return float
+   */
+  public float getMaxLatency( LightListener listener )
+  {
+    ListenerQueue queue  =  this.queue( listener );
+    return queue == null ? 0 : queue._maxLatency / 1000000f;
+  }
+
+  /**
+   * Returns true if the listener has been quarantined for exceeding the latency budget.
+   * @param listener
+   * @return boolean
+   */
+  public boolean isQuarantined( LightListener listener )
+  {
+    ListenerQueue queue  =  this.queue( listener );
+    return queue != null && queue._quarantined;
+  }
+  /**
+   * Returns all listeners that are quarantined.
+   * @return List<LightListener>
+   */
+  public List<LightListener> getQuarantinedListeners()
+  {
+    ArrayList<LightListener> quarantined  =  new ArrayList<LightListener>();
+    synchronized( this._queues )
+    {
+      for( ListenerQueue queue : this._queues.values() )
+      {
+        if( queue._quarantined )
+        {
+          quarantined.add( queue._listener );
+        }
+      }
+    }
+    return quarantined;
+  }
+  /**
+   * Lets a quarantined listener receive events again.
+   * @param listener
+   */
+  public void release( LightListener listener )
+  {
+    ListenerQueue queue  =  this.queue( listener );
+    if( queue != null )
+    {
+      queue._strikes      =  0;
+      queue._quarantined  =  false;
+    }
+  }
+
+  /**
+   * Stops the dispatcher. Events that have not been passed to a listener queue yet are dropped and counted.
+   */
+  public void close()
+  {
+    this._running  =  false;
+    this._dispatcher.interrupt();
+    this._workers.shutdown();
+    while( this._inbound.poll() != null )
+    {
+      this._dropped.incrementAndGet();
+    }
+  }
+
+  private ListenerQueue queue( LightListener listener )
+  {
+    synchronized( this._queues )
+    {
+      return this._queues.get( listener );
+    }
+  }
+
+  private void dispatchLoop()
+  {
+    while( this._running )
+    {
+      LightEvent event;
+      try
+      {
+        event  =  this._inbound.take();
+      }
+      catch( InterruptedException e )
+      {
+        continue;
+      }
+      for( LightListener listener : event.getLight().getLightListeners() )
+      {
+        ListenerQueue queue  =  this.queue( listener );
+        if( queue != null && !queue._quarantined )
+        {
+          queue.add( event );
+        }
+      }
+    }
+  }
+
+  /**
+   * The ordered queue of events for a single listener.
+   */
+  private class ListenerQueue implements Runnable
+  {
+    final LightListener _listener;
+    final ConcurrentLinkedQueue<LightEvent> _events  =  new ConcurrentLinkedQueue<LightEvent>();
+    final AtomicInteger _depth  =  new AtomicInteger( 0 );
+    final AtomicInteger _work   =  new AtomicInteger( 0 );
+    volatile boolean _quarantined  =  false;
+    volatile int     _strikes      =  0;
+    volatile long    _maxLatency   =  0;
+    int              _references   =  0;  //Light sources of this dispatcher that have the listener, guarded by _queues
+
+    ListenerQueue( LightListener listener )
+    {
+      this._listener  =  listener;
+    }
+
+    void add( LightEvent event )
+    {
+      if( this._depth.get() >= EventDispatcher.this._capacity )
+      {
+        EventDispatcher.this._dropped.incrementAndGet();
+        return;
+      }
+      this._events.add( event );
+      this._depth.incrementAndGet();
+      if( this._work.getAndIncrement() == 0 )
+      {
+        EventDispatcher.this._workers.execute( this );
+      }
+    }
+
+    public void run()
+    {
+      do
+      {
+        LightEvent event;
+        while( (event = this._events.poll()) != null )
+        {
+          this._depth.decrementAndGet();
+          if( this._quarantined )
+          {
+            continue;
+          }
+          ListenerDispatchEvent timing  =  ListenerDispatchEvent.start();
+          long start  =  System.nanoTime();
+          try
+          {
+            this._listener.lightEventReceived( event );
+          }
+          catch( RuntimeException e )
+          {
+            EventDispatcher.this._errors.incrementAndGet();
+          }
+          long latency  =  System.nanoTime() - start;
+          ListenerDispatchEvent.finish( timing, event, this._listener );
+          EventDispatcher.this._dispatched.incrementAndGet();
+          this._maxLatency  =  Math.max( this._maxLatency, latency );
+          if( latency > EventDispatcher.this._latencyBudget )
+          {
+            this._strikes++;
+            if( this._strikes >= EventDispatcher.this._maxStrikes )
+            {
+              this._quarantined  =  true;
+            }
+          }
+          else
+          {
+            this._strikes  =  0;
+          }
+        }
+      }
+      while( this._work.decrementAndGet() != 0 );
+    }
+  }
+}
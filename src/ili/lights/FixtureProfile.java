@@ -0,0 +1,436 @@
+package ili.lights;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FixtureProfile describes a fixture model: its intensity range, colour model, colour temperature
+ * range and the layout and encoding of its output channels. Profiles are immutable and shared by all
+ * light sources of the same model, so a light source only stores its own values (state, intensity,
+ * colour) and a reference to its profile. Changing the range of a light source gives it a derived
+ * profile; derived profiles are interned per base profile and range, so light sources with the same
+ * changed range still share one profile.
+ *
+ * Profiles can be loaded from a descriptor file in the java.util.Properties format:
+ * <pre>
+ * name          = RGB Par
+ * color_model   = rgb                        (mono, rgb or cct)
+ * channels      = intensity,red,green,blue   (intensity, red, green, blue, white, amber, cct or zero)
+ * encoding      = 8                          (8 or 16 bit per channel)
+ * min_intensity = 0
+ * max_intensity = 255
+ * min_cct       = 0
+ * max_cct       = 255
+ * </pre>
+ * The channel layout is compiled into a table of scale factors when the profile is created, so
+ * encode() only needs integer math per channel. A layout with white or amber channels gets an
+ * EmitterSolver that splits the colour over red, green, blue and those emitters.
+ */
+public final class FixtureProfile
+{
+  public static final int MONO               =  0;
+  public static final int RGB                =  1;
+  public static final int CCT                =  2;
+
+  public static final int CHANNEL_ZERO       =  0;
+  public static final int CHANNEL_INTENSITY  =  1;
+  public static final int CHANNEL_RED        =  2;
+  public static final int CHANNEL_GREEN      =  3;
+  public static final int CHANNEL_BLUE       =  4;
+  public static final int CHANNEL_CCT        =  5;
+  public static final int CHANNEL_WHITE      =  6;
+  public static final int CHANNEL_AMBER      =  7;
+
+  private static final String[] CHANNEL_NAMES  =  { "zero", "intensity", "red", "green", "blue", "cct", "white", "amber" };
+  private static final String[] MODEL_NAMES    =  { "mono", "rgb", "cct" };
+
+  /** Profile of a standard light source: intensity and cct range 0-255, one 8 bit intensity channel **/
+  public static final FixtureProfile DEFAULT  =  new FixtureProfile( "default", MONO, new int[]{ CHANNEL_INTENSITY }, 8, 0, 255, 0, 255 );
+
+  private final String _name;
+  private final int    _colorModel;
+  private final int[]  _channels;
+  private final int    _encoding;
+  private final int    _minIntensity;
+  private final int    _maxIntensity;
+  private final int    _minCCT;
+  private final int    _maxCCT;
+  private final int    _outputMax;
+
+  //Compiled channel mapping: source field in LightFrame, offset subtracted and 16.16 scale per channel
+  private final int[]  _sources;
+  private final int[]  _offsets;
+  private final long[] _scales;
+  private final EmitterSolver _solver;   //null for plain RGB
+  private final int[]  _emitters;        //Per channel: emitter in the solved levels, -1 if not solved
+
+  private final FixtureProfile _base;    //Profile the ranges are derived from, this for a base profile
+  private final ConcurrentHashMap<List<Integer>, FixtureProfile> _derived;  //Derived profiles by range, base only
+
+  /**
+   * Creates a new fixture profile.
+   * @param name
+   * @param colorModel MONO, RGB or CCT
+   * @param channels channel layout, e.g. { CHANNEL_INTENSITY, CHANNEL_RED, CHANNEL_GREEN, CHANNEL_BLUE }
+   * @param encoding 8 or 16 (bits per channel)
+   * @param minIntensity
+   * @param maxIntensity
+   * @param minCCT
+   * @param maxCCT
+   */
+  public FixtureProfile( String name, int colorModel, int[] channels, int encoding,
+                         int minIntensity, int maxIntensity, int minCCT, int maxCCT )
+  {
+    this( null, name, colorModel, channels, encoding, minIntensity, maxIntensity, minCCT, maxCCT );
+  }
+  private FixtureProfile( FixtureProfile base, String name, int colorModel, int[] channels, int encoding,
+                          int minIntensity, int maxIntensity, int minCCT, int maxCCT )
+  {
+    if( colorModel < MONO || colorModel > CCT )
+    {
+      throw new IllegalArgumentException( "Fixture profile " + name + ": color model should be MONO, RGB or CCT" );
+    }
+    if( encoding != 8 && encoding != 16 )
+    {
+      throw new IllegalArgumentException( "Fixture profile " + name + ": encoding should be 8 or 16 bit" );
+    }
+    this._name          =  name;
+    this._colorModel    =  colorModel;
+    this._channels      =  channels.clone();
+    this._encoding      =  encoding;
+    this._minIntensity  =  minIntensity;
+    this._maxIntensity  =  maxIntensity;
+    this._minCCT        =  minCCT;
+    this._maxCCT        =  maxCCT;
+    this._base          =  base == null ? this : base;
+    this._derived       =  base == null ? new ConcurrentHashMap<List<Integer>, FixtureProfile>() : null;
+
+    this._outputMax     =  encoding == 16 ? 65535 : 255;
+    long outputMax      =  this._outputMax;
+    this._sources       =  new int[channels.length];
+    this._offsets       =  new int[channels.length];
+    this._scales        =  new long[channels.length];
+    this._emitters      =  new int[channels.length];
+    int[] extra         =  new int[2];
+    int extraCount      =  0;
+    int whiteEmitter    =  -1;
+    int amberEmitter    =  -1;
+    for( int c = 0; c < channels.length; c++ )
+    {
+      if( channels[c] == CHANNEL_WHITE && whiteEmitter < 0 )
+      {
+        extra[extraCount]  =  EmitterSolver.WHITE;
+        whiteEmitter       =  3 + extraCount++;
+      }
+      else if( channels[c] == CHANNEL_AMBER && amberEmitter < 0 )
+      {
+        extra[extraCount]  =  EmitterSolver.AMBER;
+        amberEmitter       =  3 + extraCount++;
+      }
+    }
+    this._solver        =  extraCount == 0 ? null : new EmitterSolver( Arrays.copyOf( extra, extraCount ) );
+    for( int c = 0; c < channels.length; c++ )
+    {
+      this._emitters[c]  =  -1;
+      switch( channels[c] )
+      {
+        case CHANNEL_INTENSITY:
+          this._sources[c]  =  LightFrame.INTENSITY;
+          this._offsets[c]  =  minIntensity;
+          this._scales[c]   =  (outputMax << 16) / Math.max( 1, maxIntensity - minIntensity );
+          break;
+        case CHANNEL_RED:
+        case CHANNEL_GREEN:
+        case CHANNEL_BLUE:
+          this._sources[c]  =  LightFrame.COLOR;
+          this._scales[c]   =  (outputMax << 16) / 255;
+          if( this._solver != null )
+          {
+            this._emitters[c]  =  channels[c] - CHANNEL_RED;
+          }
+          break;
+        case CHANNEL_WHITE:
+        case CHANNEL_AMBER:
+          this._sources[c]  =  LightFrame.COLOR;
+          this._scales[c]   =  (outputMax << 16) / 255;
+          this._emitters[c] =  channels[c] == CHANNEL_WHITE ? whiteEmitter : amberEmitter;
+          break;
+        case CHANNEL_CCT:
+          this._sources[c]  =  LightFrame.CCT;
+          this._offsets[c]  =  minCCT;
+          this._scales[c]   =  (outputMax << 16) / Math.max( 1, maxCCT - minCCT );
+          break;
+        case CHANNEL_ZERO:
+          this._sources[c]  =  -1;
+          break;
+        default:
+          throw new IllegalArgumentException( "Fixture profile " + name + ": unknown channel type " + channels[c] );
+      }
+    }
+  }
+
+  /**
+   * Loads a profile from a descriptor file.
+   * @param file
+   * @return FixtureProfile
+   * @throws IOException
+   */
+  public static FixtureProfile load( File file ) throws IOException
+  {
+    InputStream input  =  new FileInputStream( file );
+    try
+    {
+      return load( input );
+    }
+    finally
+    {
+      input.close();
+    }
+  }
+  /**
+   * Loads a profile from a descriptor in the java.util.Properties format.
+   * @param input
+   * @return FixtureProfile
+   * @throws IOException
+   */
+  public static FixtureProfile load( InputStream input ) throws IOException
+  {
+    Properties descriptor  =  new Properties();
+    descriptor.load( input );
+    String name    =  descriptor.getProperty( "name", "unnamed" );
+    try
+    {
+      String[] names   =  descriptor.getProperty( "channels", "intensity" ).split( "," );
+      int[] channels   =  new int[names.length];
+      for( int c = 0; c < names.length; c++ )
+      {
+        channels[c]  =  indexOf( CHANNEL_NAMES, names[c].trim(), "channel" );
+      }
+      return new FixtureProfile( name,
+                                 indexOf( MODEL_NAMES, descriptor.getProperty( "color_model", "mono" ).trim(), "color model" ),
+                                 channels,
+                                 Integer.parseInt( descriptor.getProperty( "encoding", "8" ).trim() ),
+                                 Integer.parseInt( descriptor.getProperty( "min_intensity", "0" ).trim() ),
+                                 Integer.parseInt( descriptor.getProperty( "max_intensity", "255" ).trim() ),
+                                 Integer.parseInt( descriptor.getProperty( "min_cct", "0" ).trim() ),
+                                 Integer.parseInt( descriptor.getProperty( "max_cct", "255" ).trim() ) );
+    }
+    catch( IllegalArgumentException e )
+    {
+      throw new IOException( "Invalid fixture profile " + name + ": " + e.getMessage() );
+    }
+  }
+
+  private static int indexOf( String[] names, String name, String what )
+  {
+    for( int i = 0; i < names.length; i++ )
+    {
+      if( names[i].equalsIgnoreCase( name ) )
+      {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException( "unknown " + what + " '" + name + "'" );
+  }
+
+  /**
+   * Returns this profile with a different intensity range. Equal requests return the same profile.
+   * @param minIntensity
+   * @param maxIntensity
+   * @return FixtureProfile
+   */
+  public FixtureProfile withIntensityRange( int minIntensity, int maxIntensity )
+  {
+    return this.withRanges( minIntensity, maxIntensity, this._minCCT, this._maxCCT );
+  }
+  /**
+   * Returns this profile with a different colour temperature range. Equal requests return the same profile.
+   * @param minCCT
+   * @param maxCCT
+   * @return FixtureProfile
+   */
+  public FixtureProfile withCCTRange( int minCCT, int maxCCT )
+  {
+    return this.withRanges( this._minIntensity, this._maxIntensity, minCCT, maxCCT );
+  }
+  //Returns the interned profile with the ranges, derived from the base profile
+  private FixtureProfile withRanges( int minIntensity, int maxIntensity, int minCCT, int maxCCT )
+  {
+    if( this.hasRanges( minIntensity, maxIntensity, minCCT, maxCCT ) )
+    {
+      return this;
+    }
+    FixtureProfile base  =  this._base;
+    if( base.hasRanges( minIntensity, maxIntensity, minCCT, maxCCT ) )
+    {
+      return base;
+    }
+    List<Integer> key       =  Arrays.asList( minIntensity, maxIntensity, minCCT, maxCCT );
+    FixtureProfile derived  =  base._derived.get( key );
+    if( derived == null )
+    {
+      derived  =  new FixtureProfile( base, base._name, base._colorModel, base._channels, base._encoding,
+                                      minIntensity, maxIntensity, minCCT, maxCCT );
+      FixtureProfile interned  =  base._derived.putIfAbsent( key, derived );
+      if( interned != null )
+      {
+        derived  =  interned;
+      }
+    }
+    return derived;
+  }
+  private boolean hasRanges( int minIntensity, int maxIntensity, int minCCT, int maxCCT )
+  {
+    return minIntensity == this._minIntensity && maxIntensity == this._maxIntensity &&
+           minCCT == this._minCCT && maxCCT == this._maxCCT;
+  }
+
+  /**
+   * Returns the name of this profile.
+   * @return String
+   */
+  public String getName()
+  {
+    return this._name;
+  }
+  /**
+   * Returns the colour model (MONO, RGB or CCT).
+   * @return int
+   */
+  public int getColorModel()
+  {
+    return this._colorModel;
+  }
+  /**
+   * Returns the number of output channels.
+   * @return int
+   */
+  public int getChannelCount()
+  {
+    return this._channels.length;
+  }
+  /**
+   * Returns the type of the output channel at the specified position.
+   * @param channel
+   * @return int
+   */
+  public int getChannel( int channel )
+  {
+    return this._channels[channel];
+  }
+  /**
+   * Returns the solver that splits colours over the emitters of this fixture, or null if it only has
+   * red, green and blue.
+   * @return EmitterSolver
+   */
+  public EmitterSolver getEmitterSolver()
+  {
+    return this._solver;
+  }
+  /**
+   * Returns the number of bits per channel (8 or 16).
+   * @return int
+   */
+  public int getEncoding()
+  {
+    return this._encoding;
+  }
+  /**
+   * Returns the number of output bytes (e.g. DMX slots) this fixture occupies.
+   * @return int
+   */
+  public int getFootprint()
+  {
+    return this._channels.length * (this._encoding / 8);
+  }
+  /**
+   * Returns the minimum intensity.
+   * @return int
+   */
+  public int getMinIntensity()
+  {
+    return this._minIntensity;
+  }
+  /**
+   * Returns the maximum intensity.
+   * @return int
+   */
+  public int getMaxIntensity()
+  {
+    return this._maxIntensity;
+  }
+  /**
+   * Returns the minimum colour temperature.
+   * @return int
+   */
+  public int getMinCCT()
+  {
+    return this._minCCT;
+  }
+  /**
+   * Returns the maximum colour temperature.
+   * @return int
+   */
+  public int getMaxCCT()
+  {
+    return this._maxCCT;
+  }
+
+  /**
+   * Encodes the light source at the specified index of a packed frame (see LightFrame) into the output
+   * channels of this fixture, starting at the offset. 16 bit channels are written most significant byte
+   * first. A light source that is off outputs 0 on its intensity channel. Returns the offset after the
+   * written channels.
+   * @param frame
+   * @param index
+   * @param output
+   * @param offset
+   * @return int
+   */
+  public int encode( int[] frame, int index, byte[] output, int offset )
+  {
+    int base  =  index * LightFrame.STRIDE;
+    boolean on  =  frame[base + LightFrame.STATE] != 0;
+    long levels =  this._solver != null ? this._solver.solve( frame[base + LightFrame.COLOR] ) : 0;
+    for( int c = 0; c < this._channels.length; c++ )
+    {
+      int value  =  0;
+      int source =  this._sources[c];
+      if( source >= 0 )
+      {
+        value  =  frame[base + source];
+        switch( this._channels[c] )
+        {
+          case CHANNEL_INTENSITY: value  =  on ? value : this._minIntensity; break;
+          case CHANNEL_RED:       value  =  value >> 16 & 0xFF; break;
+          case CHANNEL_GREEN:     value  =  value >> 8 & 0xFF; break;
+          case CHANNEL_BLUE:      value  =  value & 0xFF; break;
+        }
+        if( this._emitters[c] >= 0 )
+        {
+          value  =  EmitterSolver.level( levels, this._emitters[c] );
+        }
+        value  =  (int) (((value - this._offsets[c]) * this._scales[c] + 0x8000) >> 16);
+        value  =  value < 0 ? 0 : ( value > this._outputMax ? this._outputMax : value );
+      }
+      if( this._encoding == 16 )
+      {
+        output[offset++]  =  (byte) (value >> 8);
+      }
+      output[offset++]  =  (byte) value;
+    }
+    return offset;
+  }
+
+  public String toString()
+  {
+    return "(type: FixtureProfile) [name: " + this._name + "] [model: " + MODEL_NAMES[this._colorModel] +
+           "] [channels: " + this._channels.length + "x" + this._encoding + "bit]";
+  }
+}
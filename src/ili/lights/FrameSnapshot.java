@@ -0,0 +1,197 @@
+package ili.lights;
+
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+/**
+ * The FrameSnapshot takes consistent snapshots of a collection of light sources, so that render and
+ * output threads all see the same frame instead of reading the light sources while they are changed.
+ * Call tick() once per frame (e.g. from draw()) to publish the current state of all light sources.
+ * Consumers call getFrame() and read the packed values (see LightFrame for the layout).
+ *
+ * Three buffers rotate: the back buffer is written by tick(), the front buffer is handed to consumers
+ * and the spare buffer holds the previous front buffer. A frame returned by getFrame() therefore stays
+ * untouched for at least one full tick after it has been replaced; after the second tick it is written
+ * again. Consumers that need to keep a frame longer should use copyFrame(). Buffers are reused, a tick
+ * does not allocate. To read several values of a light source from the same frame, use getValues() (or
+ * read them from one getFrame() result): separate getIntensity() and getColor() calls can see
+ * different frames.
+ */
+public class FrameSnapshot
+{
+  private final Light[] _lights;
+
+  private int[] _back;
+  private int[] _spare;
+  private volatile int[] _front;
+  private volatile long  _frameNumber  =  0;
+
+  /**
+   * Creates a new snapshot over the specified light sources. The order of the list determines the
+   * index of every light source in the frame.
+   * @param lights
+   */
+  public FrameSnapshot( List<? extends Light> lights )
+  {
+    this( lights.toArray( new Light[lights.size()] ) );
+  }
+  /**
+   * Creates a new snapshot over the specified light sources. The order of the array determines the
+   * index of every light source in the frame.
+   * @param lights
+   */
+  public FrameSnapshot( Light[] lights )
+  {
+    this._lights  =  lights.clone();
+    int size      =  LightFrame.size( this._lights.length );
+    this._back    =  new int[size];
+    this._spare   =  new int[size];
+    this._front   =  new int[size];
+    LightFrame.packAll( this._lights, this._front );
+  }
+
+  /**
+   * Copies the current state of all light sources into the back buffer and publishes it as the new
+   * front buffer. Only one thread should call this function.
+   */
+  public void tick()
+  {
+    LightFrame.packAll( this._lights, this._back );
+    this.swap();
+  }
+
+  /**
+   * Publishes the back buffer as the new front buffer. Use this instead of tick() when you write the
+   * values of the back buffer yourself through getBackBuffer().
+   */
+  public synchronized void swap()
+  {
+    int[] published  =  this._back;
+    this._back       =  this._spare;
+    this._spare      =  this._front;
+    this._front      =  published;
+    this._frameNumber++;
+  }
+
+  /**
+   * Returns the back buffer, which will be published on the next call of swap(). Only the thread that
+   * calls swap() may write into this buffer.
+   * @return int[]
+   */
+  public int[] getBackBuffer()
+  {
+    return this._back;
+  }
+
+  /**
+   * Returns the most recently published frame. This is one of the rotating buffers, not a copy: it must
+   * not be modified and is overwritten by the second tick() after the one that replaced it. Use
+   * copyFrame() to keep a frame longer.
+   * @return int[]
+   */
+  public int[] getFrame()
+  {
+    return this._front;
+  }
+
+  /**
+   * Copies the most recently published frame into the specified array and returns the number of the
+   * frame that was copied.
+   * @param target
+   * @return long
+   */
+  public long copyFrame( int[] target )
+  {
+    int[] frame;
+    long frameNumber;
+    do
+    {
+      synchronized( this )
+      {
+        frame        =  this._front;
+        frameNumber  =  this._frameNumber;
+      }
+      System.arraycopy( frame, 0, target, 0, frame.length );
+      //The copy must be complete before the frame number is checked again
+      VarHandle.loadLoadFence();
+    }
+    //The frame is only reused as back buffer after two more swaps
+    while( this._frameNumber - frameNumber >= 2 );
+    return frameNumber;
+  }
+
+  /**
+   * Returns the number of frames that have been published since this snapshot was created.
+   * @return long
+   */
+  public long getFrameNumber()
+  {
+    return this._frameNumber;
+  }
+
+  /**
+   * Returns the number of light sources in this snapshot.
+   * @return int
+   */
+  public int getLightCount()
+  {
+    return this._lights.length;
+  }
+
+  /**
+   * Returns the light source at the specified index of the frame.
+   * @param index
+   * @return Light
+   */
+  public Light getLight( int index )
+  {
+    return this._lights[index];
+  }
+
+  /**
+   * Copies the values (LightFrame.STRIDE ints: state, intensity, colour and colour temperature) of the
+   * light source at the specified index of the current frame into the array, all from the same frame,
+   * and returns the number of that frame.
+   * @param index
+   * @param values
+   * @return long
+   */
+  public long getValues( int index, int[] values )
+  {
+    int[] frame;
+    long frameNumber;
+    do
+    {
+      synchronized( this )
+      {
+        frame        =  this._front;
+        frameNumber  =  this._frameNumber;
+      }
+      System.arraycopy( frame, index * LightFrame.STRIDE, values, 0, LightFrame.STRIDE );
+      VarHandle.loadLoadFence();
+    }
+    //Same as copyFrame(): retry when the frame was reused while it was read
+    while( this._frameNumber - frameNumber >= 2 );
+    return frameNumber;
+  }
+  /**
+   * Returns the intensity of the light source at the specified index of the current frame.
+   * Use getValues() to read several values from the same frame.
+   * @param index
+   * @return int
+   */
+  public int getIntensity( int index )
+  {
+    return this._front[index * LightFrame.STRIDE + LightFrame.INTENSITY];
+  }
+  /**
+   * Returns the colour of the light source at the specified index of the current frame.
+   * Use getValues() to read several values from the same frame.
+   * @param index
+   * @return int
+   */
+  public int getColor( int index )
+  {
+    return this._front[index * LightFrame.STRIDE + LightFrame.COLOR];
+  }
+}
@@ -0,0 +1,156 @@
+package ili.lights;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The JournalReplayer reads the segment files written by a LightJournal and applies the recorded
+ * events to a collection of light sources. Light sources are matched on their light id, records of
+ * unknown light ids are skipped. Every applied record fires a LightEvent of the recorded type, so
+ * listeners see the same sequence of events as during the recording.
+ */
+public class JournalReplayer
+{
+  private final File _directory;
+  private final HashMap<Integer, Light> _lights  =  new HashMap<Integer, Light>();
+
+  private volatile boolean _stopped  =  false;
+
+  /**
+   * Creates a new replayer for the journal in the specified directory that applies events to the
+   * specified light sources.
+   * @param directory
+   * @param lights
+   */
+  public JournalReplayer( File directory, List<? extends Light> lights )
+  {
+    this._directory  =  directory;
+    for( Light light : lights )
+    {
+      this._lights.put( light.getLightID(), light );
+    }
+  }
+
+  /**
+   * Applies all recorded events between fromTime and toTime (ms since epoch, inclusive) as fast as possible.
+   * Returns the number of applied events.
+   * @param fromTime
+   * @param toTime
+   * @return int
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public int replay( long fromTime, long toTime ) throws IOException, InterruptedException
+  {
+    return this.replay( fromTime, toTime, 0 );
+  }
+
+  /**
+   * Applies all recorded events between fromTime and toTime (ms since epoch, inclusive).
+   * A speed of 1 replays in real time, 2 twice as fast, etc. A speed of 0 or less replays without
+   * waiting between events. Returns the number of applied events.
+   * @param fromTime
+   * @param toTime
+   * @param speed
+   * @return int
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public int replay( long fromTime, long toTime, float speed ) throws IOException, InterruptedException
+  {
+    this._stopped  =  false;
+    int applied    =  0;
+    long firstRecorded  =  -1;
+    long startNanos     =  System.nanoTime();
+
+    int[] segments  =  LightJournal.listSegments( this._directory );
+    for( int s = 0; s < segments.length && !this._stopped; s++ )
+    {
+      RandomAccessFile file  =  new RandomAccessFile( LightJournal.segmentFile( this._directory, segments[s] ), "r" );
+      try
+      {
+        MappedByteBuffer segment  =  file.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, file.length() );
+        segment.order( ByteOrder.BIG_ENDIAN );
+        while( segment.remaining() >= LightJournal.RECORD_SIZE && !this._stopped )
+        {
+          long timestamp  =  segment.getLong();
+          if( timestamp == 0 )
+          {
+            break;  //End of the written part of this segment
+          }
+          int lightID     =  segment.getInt();
+          int eventType   =  segment.getShort();
+          boolean state   =  segment.get() != 0;
+          segment.get();  //Light type, the replayer uses the type of the light source itself
+          int intensity   =  segment.getInt();
+          int color       =  segment.getInt();
+          int cct         =  segment.getInt();
+          segment.getInt();
+
+          if( timestamp < fromTime )
+          {
+            continue;
+          }
+          if( timestamp > toTime )
+          {
+            return applied;  //Timestamps never decrease in a journal, see LightJournal
+          }
+          Light light  =  this._lights.get( lightID );
+          if( light == null )
+          {
+            continue;
+          }
+          if( speed > 0 )
+          {
+            if( firstRecorded < 0 )
+            {
+              firstRecorded  =  timestamp;
+            }
+            long due  =  startNanos + (long) ((timestamp - firstRecorded) * 1000000L / speed);
+            long wait =  due - System.nanoTime();
+            if( wait > 0 )
+            {
+              Thread.sleep( wait / 1000000L, (int) (wait % 1000000L) );
+            }
+          }
+          this.apply( light, eventType, state, intensity, color, cct );
+          applied++;
+        }
+      }
+      finally
+      {
+        file.close();
+      }
+    }
+    return applied;
+  }
+
+  /**
+   * Stops a replay that is running in another thread after the current event.
+   */
+  public void stop()
+  {
+    this._stopped  =  true;
+  }
+
+  private void apply( Light light, int eventType, boolean state, int intensity, int color, int cct )
+  {
+    light.setState( state, false );
+    light.setIntensity( intensity, false );
+    if( light instanceof ColorLight )
+    {
+      ((ColorLight) light).setColor( color, false );
+    }
+    else if( light instanceof CCTLight )
+    {
+      ((CCTLight) light).setCCT( cct, false );
+    }
+    light.fireLightEvent( eventType );
+  }
+}
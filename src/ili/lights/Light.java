@@ -29,7 +29,7 @@ package ili.lights;
 
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 
 import processing.core.*;
 import processing.xml.XMLElement;
@@ -41,14 +41,16 @@ import processing.xml.XMLElement;
 
 public class Light
 {
-  int _maxIntensity         =  255;            //Contains the maximum possible intensity
-  int _minIntensity         =  0;              //Contains the minimum possible intensity
-  int    _intensity         =  _maxIntensity;  //Sets the current intensity to the maximum intensity
+  FixtureProfile _profile   =  FixtureProfile.DEFAULT;  //Contains the shared intensity range and channel layout
+  int    _intensity         =  255;            //Sets the current intensity to the maximum intensity
   int _lightID              =  0;              //Sets the ID of this light source (in some cases channel) to 0 (standard)
   boolean _lightOn          =  true;
   boolean _useLightID       =  false;
 
-  ArrayList<LightListener> _lightListeners =  new ArrayList<LightListener>();
+  ArrayList<LightListener> _lightListeners =  null;  //Created when the first listener is added
+  EventDispatcher _dispatcher              =  null;  //Delivers events asynchronously when set
+  LightEvent[] _events                      =  null;  //Events are immutable, they are reused per type
+  volatile LightTracker[] _trackers         =  null;  //Notified of every change, with or without an event
 
   /**
    * Creates a standard light object with default settings intensity at 255, range from 0-255.
@@ -180,8 +182,10 @@ public class Light
          intensity <= this.getMaxIntensity() && 
          intensity != this._intensity )
     {
+      int previous     =  this._intensity;
       this._intensity  =  PApplet.constrain(intensity, this.getMinIntensity(), this.getMaxIntensity());
       success  =  true;
+      this.changed( LightEvent.INTENSITY, previous, this._intensity );
       
       if( fireEvent )
       {
@@ -205,7 +209,7 @@ public class Light
    */
   public void setMinIntensity( int intensity )
   {
-    this._minIntensity  =  intensity;
+    this._profile  =  this._profile.withIntensityRange( intensity, this.getMaxIntensity() );
   }
   /**
    * Returns the minimum value of this light source's intensity (standard 0)
@@ -213,7 +217,7 @@ public class Light
    */
   public int getMinIntensity( )
   {
-    return this._minIntensity;
+    return this._profile.getMinIntensity();
   }
   /**
    * Sets the maximum value of this light source (standard 255)
@@ -221,7 +225,7 @@ public class Light
    */
   public void setMaxIntensity( int intensity )
   {
-    this._maxIntensity  =  intensity;
+    this._profile  =  this._profile.withIntensityRange( this.getMinIntensity(), intensity );
   }
   /**
    * Returns the maximum value of this light source (standard 255)
@@ -229,7 +233,31 @@ public class Light
    */
   public int getMaxIntensity()
   {
-    return this._maxIntensity;
+    return this._profile.getMaxIntensity();
+  }
+  /**
+   * Sets the fixture profile of this light source. The profile contains the intensity range (and the
+   * colour temperature range of a CCTLight), and is shared by all light sources of the same model.
+   * The intensity is constrained to the range of the new profile.
+   * @param profile
+   */
+  public void setProfile( FixtureProfile profile )
+  {
+    int previous     =  this._intensity;
+    this._profile    =  profile;
+    this._intensity  =  PApplet.constrain( this._intensity, profile.getMinIntensity(), profile.getMaxIntensity() );
+    if( this._intensity != previous )
+    {
+      this.changed( LightEvent.INTENSITY, previous, this._intensity );
+    }
+  }
+  /**
+   * Returns the fixture profile of this light source.
+   * @return FixtureProfile
+   */
+  public FixtureProfile getProfile()
+  {
+    return this._profile;
   }
   /**
    * Set the range for the intensity (standard 0-255)
@@ -238,8 +266,7 @@ public class Light
    */
   public void setRange( int minIntensity, int maxIntensity )
   {
-    this.setMinIntensity( minIntensity );
-    this.setMaxIntensity( maxIntensity );
+    this._profile  =  this._profile.withIntensityRange( minIntensity, maxIntensity );
   }
   /**
    * Set the state of this light source (on/off) to the specified value (true/false).
@@ -263,7 +290,12 @@ public class Light
    */
   public boolean setState( boolean state, boolean fireEvent )
   {
-	this._lightOn  =  state;
+	boolean previous  =  this._lightOn;
+	this._lightOn     =  state;
+	if( state != previous )
+	{
+	  this.changed( LightEvent.STATE, previous ? 1 : 0, state ? 1 : 0 );
+	}
 	if( fireEvent )
 	{
 		  this.fireLightEvent( LightEvent.STATE );
@@ -367,26 +399,187 @@ public class Light
   public synchronized void addLightListener( LightListener l ) 
   {
     //    this.traceln("ADDLIGHTLISTENER( LIGHTLISTENER ): Adding LightListener", 1);
+    if( _lightListeners == null )
+    {
+      _lightListeners  =  new ArrayList<LightListener>( 2 );
+    }
     _lightListeners.add( l );
+    if( this._dispatcher != null )
+    {
+      this._dispatcher.listenerAdded( l );
+    }
   }
   /**  Removes an object to listen to this light  **/
   public synchronized void removeLightListener( LightListener l ) 
   {
     //    this.traceln("ADDLIGHTLISTENER( LIGHTLISTENER ): Removing LightListener from "+this.getName(), 1);
-    _lightListeners.remove( l );
+    if( _lightListeners != null && _lightListeners.remove( l ) && this._dispatcher != null )
+    {
+      this._dispatcher.listenerRemoved( l );
+    }
+  }
+  /**  Returns a copy of the objects listening to this light  **/
+  synchronized LightListener[] getLightListeners()
+  {
+    if( _lightListeners == null )
+    {
+      return new LightListener[0];
+    }
+    return _lightListeners.toArray( new LightListener[_lightListeners.size()] );
+  }
+  /**
+   * Adds a tracker that is notified of every change of this light source, with or without an event.
+   * @param tracker
+   */
+  public synchronized void addLightTracker( LightTracker tracker )
+  {
+    LightTracker[] trackers  =  this._trackers == null ? new LightTracker[1] : Arrays.copyOf( this._trackers, this._trackers.length + 1 );
+    trackers[trackers.length - 1]  =  tracker;
+    this._trackers  =  trackers;
+  }
+  /**
+   * Removes a tracker from this light source.
+   * @param tracker
+   */
+  public synchronized void removeLightTracker( LightTracker tracker )
+  {
+    if( this._trackers == null )
+    {
+      return;
+    }
+    for( int i = 0; i < this._trackers.length; i++ )
+    {
+      if( this._trackers[i] == tracker )
+      {
+        LightTracker[] trackers  =  new LightTracker[this._trackers.length - 1];
+        System.arraycopy( this._trackers, 0, trackers, 0, i );
+        System.arraycopy( this._trackers, i + 1, trackers, i, trackers.length - i );
+        this._trackers  =  trackers.length == 0 ? null : trackers;
+        return;
+      }
+    }
+  }
+  /**
+   * Reports a changed value to Flight Recorder and to the trackers of this light source. Called by every
+   * setter after the value changed, whether it fires an event or not.
+   */
+  void changed( int type, int oldValue, int newValue )
+  {
+    LightChangeEvent.commit( this, type, oldValue, newValue );
+    LightTracker[] trackers  =  this._trackers;
+    if( trackers != null )
+    {
+      for( int i = 0; i < trackers.length; i++ )
+      {
+        trackers[i].lightChanged( this );
+      }
+    }
+  }
+  /**
+   * Hands the events of this light source to the specified dispatcher, which delivers them to the
+   * listeners in the background. Use null to deliver events directly again (standard).
+   * @param dispatcher
+   */
+  public synchronized void setEventDispatcher( EventDispatcher dispatcher )
+  {
+    EventDispatcher previous  =  this._dispatcher;
+    this._dispatcher  =  dispatcher;
+    if( previous == dispatcher || _lightListeners == null )
+    {
+      return;
+    }
+    //The dispatchers count the light sources that use them per listener
+    for( int i = 0; i < _lightListeners.size(); i++ )
+    {
+      if( dispatcher != null )
+      {
+        dispatcher.listenerAdded( _lightListeners.get( i ) );
+      }
+      if( previous != null )
+      {
+        previous.listenerRemoved( _lightListeners.get( i ) );
+      }
+    }
+  }
+  /**
+   * Returns the dispatcher that delivers the events of this light source, or null when events are delivered directly.
+   * @return EventDispatcher
+   */
+  public EventDispatcher getEventDispatcher()
+  {
+    return this._dispatcher;
   }
   /**  Fires an event from this light source  **/
   protected synchronized void fireLightEvent( int eventType ) 
   {
+    EventDispatcher dispatcher  =  this._dispatcher;
+    if( dispatcher != null )
+    {
+      dispatcher.dispatch( this, eventType );
+      return;
+    }
+    if( _lightListeners == null )
+    {
+      return;
+    }
     //    this.traceln("FIREVENT( ): Firing an event [on: "+this.isOn()+", intensity: "+this.getIntensity()+"]");
-    //Create a new LithneEvent, with the specific details
-    LightEvent event = new LightEvent( this, eventType );
+    LightEvent event = this.createEvent( eventType );
 
-    Iterator<LightListener> listeners = _lightListeners.iterator();
-    while ( listeners.hasNext () ) 
+    //Loop by index, an Iterator would be allocated for every event
+    for( int i = 0; i < _lightListeners.size(); i++ )
+    {
+      LightListener listener        =  _lightListeners.get( i );
+      ListenerDispatchEvent timing  =  ListenerDispatchEvent.start();
+      listener.lightEventReceived( event );
+      ListenerDispatchEvent.finish( timing, event, listener );
+    }
+  }
+  //Cache slot per event type (slot 0 is not cached), so every type a light source fires has its own slot
+  private static final byte[] EVENT_SLOTS  =  new byte[LightEvent.REDO + 1];
+  private static final int    EVENT_SLOT_COUNT;
+  static
+  {
+    int[] cached  =  { LightEvent.STATE, LightEvent.TURN_ON, LightEvent.TURN_OFF,
+                       LightEvent.INTENSITY, LightEvent.MIN_INTENSITY, LightEvent.MAX_INTENSITY,
+                       LightEvent.CCT, LightEvent.MIN_CCT, LightEvent.MAX_CCT,
+                       LightEvent.COLOR, LightEvent.RGB, LightEvent.MIN_RGB, LightEvent.MAX_RGB,
+                       LightEvent.HSB, LightEvent.MIN_HSB,
+                       LightEvent.RED, LightEvent.GREEN, LightEvent.BLUE,
+                       LightEvent.HUE, LightEvent.SATURATION, LightEvent.BRIGHTNESS,
+                       LightEvent.ALL_PARAMETERS, LightEvent.ALL_PARAMETERS_CCT,
+                       LightEvent.ALL_PARAMETERS_RGB, LightEvent.ALL_PARAMETERS_HSB };
+    int slot  =  1;
+    for( int type : cached )
+    {
+      EVENT_SLOTS[type]  =  (byte) slot++;
+    }
+    EVENT_SLOT_COUNT  =  slot;
+  }
+  /**
+   * Returns an event of the specified type for this light source. A LightEvent only holds its source and
+   * type and reads all values from the light source, so events are cached (one slot per type) and reused.
+   * Unknown event types get a new event every time.
+   * @param eventType
+   * @return LightEvent
+   */
+  LightEvent createEvent( int eventType )
+  {
+    int slot  =  eventType >= 0 && eventType < EVENT_SLOTS.length ? EVENT_SLOTS[eventType] : 0;
+    if( slot == 0 )
+    {
+      return new LightEvent( this, eventType );
+    }
+    if( this._events == null )
+    {
+      this._events  =  new LightEvent[EVENT_SLOT_COUNT];
+    }
+    LightEvent event  =  this._events[slot];
+    if( event == null )
     {
-      ( (LightListener) listeners.next() ).lightEventReceived( event );
+      event               =  new LightEvent( this, eventType );
+      this._events[slot]  =  event;
     }
+    return event;
   }
   
   
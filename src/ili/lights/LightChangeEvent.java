@@ -0,0 +1,56 @@
+package ili.lights;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for a changed value of a light source: its light id, the LightEvent type of the
+ * change and the old and new value (colours as 0xRRGGBB, states as 0/1). The event is disabled unless a
+ * recording enables it, e.g. with the lights.jfc settings; a disabled event is not even created.
+ */
+@Name( "ili.lights.LightChange" )
+@Label( "Light Change" )
+@Description( "A value of a light source changed" )
+@Category( { "ili.lights" } )
+@StackTrace( false )
+@Enabled( false )
+final class LightChangeEvent extends Event
+{
+  @Label( "Light Id" )
+  int lightID;
+  @Label( "Type" )
+  @Description( "LightEvent type of the change" )
+  int type;
+  @Label( "Old Value" )
+  int oldValue;
+  @Label( "New Value" )
+  int newValue;
+
+  private static final EventType TYPE  =  EventType.getEventType( LightChangeEvent.class );
+
+  /**
+   * Records a change of a light source if the event is enabled.
+   */
+  static void commit( Light light, int type, int oldValue, int newValue )
+  {
+    if( !TYPE.isEnabled() )
+    {
+      return;
+    }
+    LightChangeEvent event  =  new LightChangeEvent();
+    if( event.shouldCommit() )
+    {
+      event.lightID   =  light.getLightID();
+      event.type      =  type;
+      event.oldValue  =  oldValue;
+      event.newValue  =  newValue;
+      event.commit();
+    }
+  }
+}
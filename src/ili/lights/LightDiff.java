@@ -0,0 +1,241 @@
+package ili.lights;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The LightDiff compares the state of two collections of light sources, or two packed frames (see
+ * LightFrame, e.g. from a FrameSnapshot or SceneStore), and lists the light sources that differ with a
+ * field mask per light source (1 &lt;&lt; LightFrame.STATE etc). Packed frames are compared in bulk with
+ * Arrays.mismatch(), which the JVM vectorizes, so equal ranges are skipped quickly.
+ *
+ * createPatch() turns the result into a compact patch: an int[] with, per changed light source,
+ * index &lt;&lt; 4 | field mask followed by the new value of every field in the mask. apply() writes a patch
+ * into a packed frame or into light sources, turning the first collection into the second.
+ * The result buffers are reused by the next compare().
+ */
+public class LightDiff
+{
+  //Unchanged light sources in a row after which the scan goes back to Arrays.mismatch()
+  private static final int DENSE_RUN  =  8;
+
+  private final int    _lightCount;
+  private final int[]  _indices;
+  private final byte[] _masks;
+  private int          _count  =  0;
+  private int          _fields =  0;
+  private int[]        _to;
+  private int[]        _fromScratch;
+  private int[]        _toScratch;
+
+  /**
+   * Creates a diff for collections of the specified number of light sources.
+   * @param lightCount
+   */
+  public LightDiff( int lightCount )
+  {
+    this._lightCount  =  lightCount;
+    this._indices     =  new int[lightCount];
+    this._masks       =  new byte[lightCount];
+  }
+
+  /**
+   * Compares two packed frames and returns the number of light sources that differ.
+   * @param from
+   * @param to
+   * @return int
+   */
+  public int compare( int[] from, int[] to )
+  {
+    int size  =  LightFrame.size( this._lightCount );
+    if( from.length < size || to.length < size )
+    {
+      throw new IllegalArgumentException( "Frames should hold " + this._lightCount + " light sources" );
+    }
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    this._to      =  to;
+    this._count   =  0;
+    this._fields  =  0;
+    int position  =  0;
+    while( position < size )
+    {
+      int mismatch  =  Arrays.mismatch( from, position, size, to, position, size );
+      if( mismatch < 0 )
+      {
+        break;
+      }
+      //Compare light by light until the changes thin out
+      int light   =  (position + mismatch) / LightFrame.STRIDE;
+      int equal   =  0;
+      while( light < this._lightCount && equal < DENSE_RUN )
+      {
+        int offset  =  light * LightFrame.STRIDE;
+        int mask    =  (from[offset + LightFrame.STATE] != to[offset + LightFrame.STATE] ? 1 << LightFrame.STATE : 0) |
+                       (from[offset + LightFrame.INTENSITY] != to[offset + LightFrame.INTENSITY] ? 1 << LightFrame.INTENSITY : 0) |
+                       (from[offset + LightFrame.COLOR] != to[offset + LightFrame.COLOR] ? 1 << LightFrame.COLOR : 0) |
+                       (from[offset + LightFrame.CCT] != to[offset + LightFrame.CCT] ? 1 << LightFrame.CCT : 0);
+        if( mask != 0 )
+        {
+          this._indices[this._count]  =  light;
+          this._masks[this._count]    =  (byte) mask;
+          this._count++;
+          this._fields  +=  Integer.bitCount( mask );
+          equal  =  0;
+        }
+        else
+        {
+          equal++;
+        }
+        light++;
+      }
+      position  =  light * LightFrame.STRIDE;
+    }
+    bulk.finish( "diff", this._lightCount, this._count );
+    return this._count;
+  }
+  /**
+   * Compares the current state of two collections of light sources and returns the number of light
+   * sources that differ. Both collections are packed first; compare packed frames when you already have them.
+   * @param from
+   * @param to
+   * @return int
+   */
+  public int compare( List<? extends Light> from, List<? extends Light> to )
+  {
+    if( from.size() != this._lightCount || to.size() != this._lightCount )
+    {
+      throw new IllegalArgumentException( "Collections should hold " + this._lightCount + " light sources" );
+    }
+    if( this._fromScratch == null )
+    {
+      this._fromScratch  =  new int[LightFrame.size( this._lightCount )];
+      this._toScratch    =  new int[LightFrame.size( this._lightCount )];
+    }
+    for( int i = 0; i < this._lightCount; i++ )
+    {
+      LightFrame.pack( from.get( i ), this._fromScratch, i );
+      LightFrame.pack( to.get( i ), this._toScratch, i );
+    }
+    return this.compare( this._fromScratch, this._toScratch );
+  }
+
+  /**
+   * Returns the number of light sources that differed in the last compare().
+   * @return int
+   */
+  public int getCount()
+  {
+    return this._count;
+  }
+  /**
+   * Returns the index of the i-th light source that differed.
+   * @param i
+   * @return int
+   */
+  public int getIndex( int i )
+  {
+    return this._indices[i];
+  }
+  /**
+   * Returns the fields of the i-th light source that differed (1 &lt;&lt; LightFrame.STATE etc).
+   * @param i
+   * @return int
+   */
+  public int getMask( int i )
+  {
+    return this._masks[i];
+  }
+  /**
+   * Returns the indices of the light sources that differed, valid up to getCount(). The array is reused.
+   * @return int[]
+   */
+  public int[] getIndices()
+  {
+    return this._indices;
+  }
+  /**
+   * Returns the field masks of the light sources that differed, valid up to getCount(). The array is reused.
+   * @return byte[]
+   */
+  public byte[] getMasks()
+  {
+    return this._masks;
+  }
+
+  /**
+   * Returns a patch that turns the first compared collection into the second, see apply().
+   * @return int[]
+   */
+  public int[] createPatch()
+  {
+    int[] patch  =  new int[this._count + this._fields];
+    int p        =  0;
+    for( int c = 0; c < this._count; c++ )
+    {
+      int mask    =  this._masks[c];
+      int offset  =  this._indices[c] * LightFrame.STRIDE;
+      patch[p++]  =  this._indices[c] << 4 | mask;
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( (mask & (1 << f)) != 0 )
+        {
+          patch[p++]  =  this._to[offset + f];
+        }
+      }
+    }
+    return patch;
+  }
+
+  /**
+   * Writes a patch into a packed frame.
+   * @param patch
+   * @param frame
+   */
+  public static void apply( int[] patch, int[] frame )
+  {
+    int p  =  0;
+    while( p < patch.length )
+    {
+      int mask    =  patch[p] & 0xF;
+      int offset  =  (patch[p++] >>> 4) * LightFrame.STRIDE;
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( (mask & (1 << f)) != 0 )
+        {
+          frame[offset + f]  =  patch[p++];
+        }
+      }
+    }
+  }
+  /**
+   * Writes a patch into light sources, in the same order as the compared collections. Returns the
+   * number of updated light sources.
+   * @param patch
+   * @param lights
+   * @param fireEvents
+   * @return int
+   */
+  public static int apply( int[] patch, List<? extends Light> lights, boolean fireEvents )
+  {
+    int[] slot     =  new int[LightFrame.STRIDE];
+    int updated    =  0;
+    int p          =  0;
+    while( p < patch.length )
+    {
+      int mask     =  patch[p] & 0xF;
+      Light light  =  lights.get( patch[p++] >>> 4 );
+      LightFrame.pack( light, slot, 0 );
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( (mask & (1 << f)) != 0 )
+        {
+          slot[f]  =  patch[p++];
+        }
+      }
+      LightFrame.unpack( slot, 0, light, fireEvents );
+      updated++;
+    }
+    return updated;
+  }
+}
@@ -50,6 +50,10 @@ public class LightEvent extends EventObject
   public final static int ALL_PARAMETERS_RGB =  62;  //This indicates all parameters have changed
   public final static int ALL_PARAMETERS_HSB =  63;  //This indicates all parameters have changed
   
+  public final static int SCENE              =  70;  //A scene was recalled, the source is the SceneStore
+  public final static int UNDO               =  71;  //A history step was undone, the source is the LightHistory
+  public final static int REDO               =  72;  //A history step was redone, the source is the LightHistory
+  
   private int   _eventType        	=  0;
   
   /**
@@ -132,12 +136,13 @@ public class LightEvent extends EventObject
     return this._eventType;
   }
   /**
-   * Returns the light source that passed this event
+   * Returns the light source that passed this event, or null when the source is not a light source
+   * (SCENE, UNDO and REDO events come from a SceneStore or LightHistory)
    * @return Light
    */
   public Light getLight()
   {
-	  return (Light) this.getSource();
+	  return this.getSource() instanceof Light ? (Light) this.getSource() : null;
   }
   
   /**
@@ -145,6 +150,6 @@ public class LightEvent extends EventObject
    */
   public Object getSource()
   {
-	  return this.getSource();
+	  return super.getSource();
   }
 }
\ No newline at end of file
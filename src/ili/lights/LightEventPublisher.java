@@ -0,0 +1,394 @@
+package ili.lights;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The LightEventPublisher offers the LightEvents of one light source, a group of light sources or all
+ * light sources you attach it to as a java.util.concurrent.Flow.Publisher. Every subscriber has its
+ * own bounded buffer and only receives as many events as it requested. Events are delivered on an
+ * Executor (standard the common ForkJoinPool), never on the thread that changed the light source.
+ *
+ * When the buffer of a subscriber is full, the overflow policy of the publisher decides what happens:
+ * DROP_OLDEST removes the oldest buffered event, CONFLATE keeps only the latest event per light source
+ * and BLOCK makes the thread that changed the light source wait until there is room. With BLOCK the
+ * publisher also tracks its light sources (see LightTracker) and waits when a value changes, before
+ * the light source takes its monitor to fire the event, so a subscriber that changes light sources can
+ * not deadlock with a waiting writer. An event that still finds a full buffer while its light source
+ * is locked (e.g. an event for an unchanged value) replaces the oldest buffered event instead.
+ * Note that a LightEvent reads the values of its light source when you ask for them, so a delivered
+ * event always shows the current values of the light source.
+ */
+public class LightEventPublisher implements Flow.Publisher<LightEvent>, LightListener, LightTracker
+{
+  public static final int DROP_OLDEST  =  1;
+  public static final int CONFLATE     =  2;
+  public static final int BLOCK        =  3;
+
+  private final CopyOnWriteArrayList<LightSubscription> _subscriptions  =  new CopyOnWriteArrayList<LightSubscription>();
+  private final Executor _executor;
+  private final int      _bufferSize;
+  private final int      _overflowPolicy;
+  private volatile boolean _closed  =  false;
+
+  /**
+   * Creates a publisher with a buffer of 256 events per subscriber that drops the oldest event on overflow.
+   */
+  public LightEventPublisher()
+  {
+    this( 256, DROP_OLDEST, ForkJoinPool.commonPool() );
+  }
+  /**
+   * Creates a publisher with the specified buffer size per subscriber and overflow policy.
+   * @param bufferSize
+   * @param overflowPolicy DROP_OLDEST, CONFLATE or BLOCK
+   * @param executor executes the delivery to subscribers
+   */
+  public LightEventPublisher( int bufferSize, int overflowPolicy, Executor executor )
+  {
+    if( bufferSize < 1 )
+    {
+      throw new IllegalArgumentException( "The buffer size should be at least 1" );
+    }
+    this._bufferSize      =  bufferSize;
+    this._overflowPolicy  =  overflowPolicy;
+    this._executor        =  executor;
+  }
+
+  /**
+   * Publishes the events of the specified light source.
+   * @param light
+   */
+  public void attach( Light light )
+  {
+    light.addLightListener( this );
+    if( this._overflowPolicy == BLOCK )
+    {
+      light.addLightTracker( this );
+    }
+  }
+  /**
+   * Publishes the events of all specified light sources.
+   * @param lights
+   */
+  public void attach( List<? extends Light> lights )
+  {
+    for( Light light : lights )
+    {
+      this.attach( light );
+    }
+  }
+  /**
+   * Stops publishing the events of the specified light source.
+   * @param light
+   */
+  public void detach( Light light )
+  {
+    light.removeLightListener( this );
+    light.removeLightTracker( this );
+  }
+  /**
+   * Stops publishing the events of all specified light sources.
+   * @param lights
+   */
+  public void detach( List<? extends Light> lights )
+  {
+    for( Light light : lights )
+    {
+      this.detach( light );
+    }
+  }
+
+  public void subscribe( Flow.Subscriber<? super LightEvent> subscriber )
+  {
+    LightSubscription subscription  =  new LightSubscription( subscriber );
+    if( !this._closed )
+    {
+      this._subscriptions.add( subscription );
+    }
+    subscriber.onSubscribe( subscription );
+    if( this._closed )
+    {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * Passes the event to the buffer of every subscriber.
+   */
+  public void lightEventReceived( LightEvent event )
+  {
+    for( LightSubscription subscription : this._subscriptions )
+    {
+      subscription.offer( event );
+    }
+  }
+
+  /**
+   * With the BLOCK policy, waits until every subscriber has room for the event of the change. Called by
+   * the light sources before they fire the event, without holding their monitor.
+   */
+  public void lightChanged( Light light )
+  {
+    for( LightSubscription subscription : this._subscriptions )
+    {
+      subscription.awaitRoom();
+    }
+  }
+
+  /**
+   * Returns the number of subscribers.
+   * @return int
+   */
+  public int getSubscriberCount()
+  {
+    return this._subscriptions.size();
+  }
+
+  /**
+   * Completes all subscriptions after their buffered events have been delivered.
+   */
+  public void close()
+  {
+    this._closed  =  true;
+    for( LightSubscription subscription : this._subscriptions )
+    {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * The subscription of a single subscriber, with its own buffer and demand.
+   */
+  private class LightSubscription implements Flow.Subscription, Runnable
+  {
+    final Flow.Subscriber<? super LightEvent> _subscriber;
+    final ArrayDeque<LightEvent>              _buffer     =  new ArrayDeque<LightEvent>();
+    final LinkedHashMap<Object, LightEvent>   _conflated  =  new LinkedHashMap<Object, LightEvent>();
+    final AtomicInteger _work       =  new AtomicInteger( 0 );
+    long                _demand     =  0;
+    boolean             _cancelled  =  false;
+    boolean             _completing =  false;
+    long                _dropped    =  0;
+    Throwable           _error      =  null;  //Delivered by run(), not on the thread that caused it
+
+    LightSubscription( Flow.Subscriber<? super LightEvent> subscriber )
+    {
+      this._subscriber  =  subscriber;
+    }
+
+    void offer( LightEvent event )
+    {
+      synchronized( this )
+      {
+        if( this._cancelled || this._completing )
+        {
+          return;
+        }
+        if( LightEventPublisher.this._overflowPolicy == CONFLATE )
+        {
+          if( this._conflated.size() >= LightEventPublisher.this._bufferSize && !this._conflated.containsKey( event.getSource() ) )
+          {
+            Iterator<Object> oldest  =  this._conflated.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+            this._dropped++;
+          }
+          this._conflated.put( event.getSource(), event );
+        }
+        else
+        {
+          while( this._buffer.size() >= LightEventPublisher.this._bufferSize )
+          {
+            if( LightEventPublisher.this._overflowPolicy == BLOCK && !this._cancelled &&
+                !Thread.holdsLock( event.getSource() ) )
+            {
+              try
+              {
+                this.wait();
+              }
+              catch( InterruptedException e )
+              {
+                Thread.currentThread().interrupt();
+                return;
+              }
+            }
+            else
+            {
+              this._buffer.poll();
+              this._dropped++;
+            }
+          }
+          if( this._cancelled )
+          {
+            return;
+          }
+          this._buffer.add( event );
+        }
+      }
+      this.schedule();
+    }
+
+    //Waits (outside the monitor of the light source) until the buffer has room
+    void awaitRoom()
+    {
+      synchronized( this )
+      {
+        while( this._buffer.size() >= LightEventPublisher.this._bufferSize && !this._cancelled && !this._completing )
+        {
+          try
+          {
+            this.wait();
+          }
+          catch( InterruptedException e )
+          {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+    }
+
+    void complete()
+    {
+      synchronized( this )
+      {
+        this._completing  =  true;
+      }
+      this.schedule();
+    }
+
+    public void request( long n )
+    {
+      if( n <= 0 )
+      {
+        //Signalled from the delivery loop, as onError may not be called from within request()
+        synchronized( this )
+        {
+          if( this._error == null )
+          {
+            this._error  =  new IllegalArgumentException( "A subscriber should request a positive number of events" );
+          }
+        }
+        this.schedule();
+        return;
+      }
+      synchronized( this )
+      {
+        this._demand  =  this._demand + n < 0 ? Long.MAX_VALUE : this._demand + n;
+      }
+      this.schedule();
+    }
+
+    public void cancel()
+    {
+      synchronized( this )
+      {
+        this._cancelled  =  true;
+        this._buffer.clear();
+        this._conflated.clear();
+        this.notifyAll();
+      }
+      LightEventPublisher.this._subscriptions.remove( this );
+    }
+
+    private void schedule()
+    {
+      if( this._work.getAndIncrement() == 0 )
+      {
+        LightEventPublisher.this._executor.execute( this );
+      }
+    }
+
+    /**
+     * Delivers buffered events while there is demand. Only one thread runs this at a time.
+     */
+    public void run()
+    {
+      do
+      {
+        while( true )
+        {
+          LightEvent event;
+          boolean done  =  false;
+          Throwable error;
+          synchronized( this )
+          {
+            if( this._cancelled )
+            {
+              return;
+            }
+            error  =  this._error;
+            if( error != null )
+            {
+              this._cancelled  =  true;
+              this._buffer.clear();
+              this._conflated.clear();
+              this.notifyAll();
+            }
+            boolean empty  =  this._buffer.isEmpty() && this._conflated.isEmpty();
+            if( error != null )
+            {
+              event  =  null;
+            }
+            else if( empty && this._completing )
+            {
+              this._cancelled  =  true;
+              done             =  true;
+              event            =  null;
+            }
+            else if( empty || this._demand == 0 )
+            {
+              break;
+            }
+            else
+            {
+              if( !this._conflated.isEmpty() )
+              {
+                Iterator<LightEvent> oldest  =  this._conflated.values().iterator();
+                event  =  oldest.next();
+                oldest.remove();
+              }
+              else
+              {
+                event  =  this._buffer.poll();
+                this.notifyAll();
+              }
+              this._demand--;
+            }
+          }
+          if( error != null )
+          {
+            LightEventPublisher.this._subscriptions.remove( this );
+            this._subscriber.onError( error );
+            return;
+          }
+          if( done )
+          {
+            LightEventPublisher.this._subscriptions.remove( this );
+            this._subscriber.onComplete();
+            return;
+          }
+          try
+          {
+            this._subscriber.onNext( event );
+          }
+          catch( RuntimeException e )
+          {
+            this.cancel();
+            this._subscriber.onError( e );
+            return;
+          }
+        }
+      }
+      while( this._work.decrementAndGet() != 0 );
+    }
+  }
+}
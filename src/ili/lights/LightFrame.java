@@ -0,0 +1,148 @@
+package ili.lights;
+
+/**
+ * The LightFrame describes how the state of a light source is packed into a primitive int[] buffer.
+ * Every light occupies STRIDE consecutive ints, starting at index * STRIDE:
+ * <pre>
+ * [STATE]     1 when the light source is on, 0 when it is off
+ * [INTENSITY] the current intensity
+ * [COLOR]     the current colour (RGB for ColorLight, the light colour for CCTLight, white for Light)
+ * [CCT]       the current colour temperature (CCTLight only, 0 otherwise)
+ * </pre>
+ * All packed buffers in this library (snapshots, scenes, diffs) use this layout, so they can be
+ * copied and compared with System.arraycopy and plain loops.
+ */
+public final class LightFrame
+{
+  /** Number of ints occupied by a single light source **/
+  public static final int STRIDE      =  4;
+
+  public static final int STATE       =  0;
+  public static final int INTENSITY   =  1;
+  public static final int COLOR       =  2;
+  public static final int CCT         =  3;
+
+  /** Colour packed for light sources that have no colour of their own **/
+  public static final int NO_COLOR    =  0xFFFFFF;
+
+  private LightFrame() { }
+
+  /**
+   * Returns the number of ints needed to store the specified number of light sources.
+   * @param lightCount
+   * @return int
+   */
+  public static int size( int lightCount )
+  {
+    return lightCount * STRIDE;
+  }
+
+  /**
+   * Writes the state of the light source into the buffer at the slot of the specified index.
+   * @param light
+   * @param buffer
+   * @param index
+   */
+  public static void pack( Light light, int[] buffer, int index )
+  {
+    int offset  =  index * STRIDE;
+    buffer[offset + STATE]      =  light.getState() ? 1 : 0;
+    buffer[offset + INTENSITY]  =  light.getIntensity();
+    if( light instanceof ColorLight )
+    {
+      buffer[offset + COLOR]    =  ((ColorLight) light).getColor();
+      buffer[offset + CCT]      =  0;
+    }
+    else if( light instanceof CCTLight )
+    {
+      CCTLight cctLight  =  (CCTLight) light;
+      buffer[offset + COLOR]    =  cctLight.getLightColor();
+      buffer[offset + CCT]      =  cctLight.getCCT();
+    }
+    else
+    {
+      buffer[offset + COLOR]    =  NO_COLOR;
+      buffer[offset + CCT]      =  0;
+    }
+  }
+
+  /**
+   * Writes the state of all light sources into the buffer, in the order of the array.
+   * @param lights
+   * @param buffer
+   */
+  public static void packAll( Light[] lights, int[] buffer )
+  {
+    for( int i = 0; i < lights.length; i++ )
+    {
+      pack( lights[i], buffer, i );
+    }
+  }
+
+  /**
+   * Restores the state of the light source from the slot of the specified index in the buffer.
+   * The colour of a CCTLight is derived from its colour temperature and is therefore not restored.
+   * @param buffer
+   * @param index
+   * @param light
+   * @param fireEvent
+   */
+  public static void unpack( int[] buffer, int index, Light light, boolean fireEvent )
+  {
+    int offset  =  index * STRIDE;
+    boolean state  =  buffer[offset + STATE] != 0;
+    int intensity  =  buffer[offset + INTENSITY];
+    if( light instanceof ColorLight )
+    {
+      ColorLight colorLight  =  (ColorLight) light;
+      colorLight.setState( state, false );
+      colorLight.setIntensity( intensity, false );
+      colorLight.setColor( buffer[offset + COLOR], false );
+      if( fireEvent )
+      {
+        light.fireLightEvent( LightEvent.ALL_PARAMETERS_RGB );
+      }
+    }
+    else if( light instanceof CCTLight )
+    {
+      CCTLight cctLight  =  (CCTLight) light;
+      cctLight.setState( state, false );
+      cctLight.setIntensity( intensity, false );
+      cctLight.setCCT( buffer[offset + CCT], false );
+      if( fireEvent )
+      {
+        light.fireLightEvent( LightEvent.ALL_PARAMETERS_CCT );
+      }
+    }
+    else
+    {
+      light.setParameters( state, intensity, fireEvent );
+    }
+  }
+
+  /**
+   * Returns true if the state of the light source equals the slot of the specified index in the buffer.
+   * @param buffer
+   * @param index
+   * @param light
+   * @return boolean
+   */
+  public static boolean matches( int[] buffer, int index, Light light )
+  {
+    int offset  =  index * STRIDE;
+    if( buffer[offset + STATE] != (light.getState() ? 1 : 0) ||
+        buffer[offset + INTENSITY] != light.getIntensity() )
+    {
+      return false;
+    }
+    if( light instanceof ColorLight )
+    {
+      return buffer[offset + COLOR] == ((ColorLight) light).getColor();
+    }
+    if( light instanceof CCTLight )
+    {
+      return buffer[offset + CCT] == ((CCTLight) light).getCCT();
+    }
+    return true;
+  }
+}
@@ -0,0 +1,309 @@
+package ili.lights;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The LightHistory keeps an undo/redo history of a collection of light sources. It tracks the light
+ * sources (see LightTracker) and remembers which ones changed, also when they were written without
+ * events (e.g. by a MergeEngine or LightPartitions); record() turns those changes into a step. A step only
+ * stores the fields that changed (old and new value) of the light sources that changed, so its memory
+ * use is proportional to the edit, not to the size of the collection.
+ *
+ * undo() and redo() restore all light sources of a step without firing a LightEvent per light source.
+ * Instead, the history fires a single LightEvent.UNDO or LightEvent.REDO event to its own listeners;
+ * the trackers of the restored light sources are still notified.
+ * When the history uses more memory than its limit, the oldest steps are dropped.
+ */
+public class LightHistory implements LightTracker
+{
+  private final Light[] _lights;
+  private final IdentityHashMap<Light, Integer> _indices  =  new IdentityHashMap<Light, Integer>();
+  private final int[]   _state;       //Packed state at the last recorded step
+  private final int[]   _scratch;
+  private final long[]  _dirty;
+  private final int[]   _dirtyList;
+  private int           _dirtyCount  =  0;
+
+  private final ArrayDeque<int[]> _undo  =  new ArrayDeque<int[]>();
+  private final ArrayDeque<int[]> _redo  =  new ArrayDeque<int[]>();
+  private final long    _maxMemory;
+  private long          _memory      =  0;
+  private boolean       _applying    =  false;
+
+  ArrayList<LightListener> _lightListeners  =  new ArrayList<LightListener>();
+
+  /**
+   * Creates a history of the specified light sources that uses at most the specified number of bytes,
+   * and starts tracking them.
+   * @param lights
+   * @param maxMemory
+   */
+  public LightHistory( List<? extends Light> lights, long maxMemory )
+  {
+    this._lights     =  lights.toArray( new Light[lights.size()] );
+    this._maxMemory  =  maxMemory;
+    this._state      =  new int[LightFrame.size( this._lights.length )];
+    this._scratch    =  new int[LightFrame.STRIDE];
+    this._dirty      =  new long[(this._lights.length + 63) >> 6];
+    this._dirtyList  =  new int[this._lights.length];
+    LightFrame.packAll( this._lights, this._state );
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._indices.put( this._lights[i], i );
+      this._lights[i].addLightTracker( this );
+    }
+  }
+
+  /**
+   * Stops tracking the light sources.
+   */
+  public void close()
+  {
+    for( Light light : this._lights )
+    {
+      light.removeLightTracker( this );
+    }
+  }
+
+  /**
+   * Remembers that the light source changed. Called by the light sources this history tracks.
+   */
+  public void lightChanged( Light light )
+  {
+    Integer index  =  this._indices.get( light );
+    if( index != null )
+    {
+      this.markChanged( index );
+    }
+  }
+
+  /**
+   * Remembers that the light source at the specified index changed, for changes made in other ways than
+   * through its setters.
+   * @param index
+   */
+  public synchronized void markChanged( int index )
+  {
+    long bit  =  1L << index;
+    if( !this._applying && (this._dirty[index >> 6] & bit) == 0 )
+    {
+      this._dirty[index >> 6]  |=  bit;
+      this._dirtyList[this._dirtyCount++]  =  index;
+    }
+  }
+
+  /**
+   * Turns all changes since the previous step into a new step. Returns false if nothing changed.
+   * Clears the redo history.
+   * @return boolean
+   */
+  public synchronized boolean record()
+  {
+    //Step layout per light source: index << 4 | mask of changed fields, old values, new values
+    int[] step  =  new int[this._dirtyCount * (1 + 2 * LightFrame.STRIDE)];
+    int size    =  0;
+    for( int d = 0; d < this._dirtyCount; d++ )
+    {
+      int index  =  this._dirtyList[d];
+      this._dirty[index >> 6]  &=  ~(1L << index);
+      LightFrame.pack( this._lights[index], this._scratch, 0 );
+      int offset  =  index * LightFrame.STRIDE;
+      int mask    =  0;
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( this._scratch[f] != this._state[offset + f] )
+        {
+          mask  |=  1 << f;
+        }
+      }
+      if( mask == 0 )
+      {
+        continue;
+      }
+      step[size++]  =  index << 4 | mask;
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( (mask & 1 << f) != 0 )
+        {
+          step[size++]  =  this._state[offset + f];
+          step[size++]  =  this._scratch[f];
+          this._state[offset + f]  =  this._scratch[f];
+        }
+      }
+    }
+    this._dirtyCount  =  0;
+    if( size == 0 )
+    {
+      return false;
+    }
+    if( size < step.length )
+    {
+      step  =  Arrays.copyOf( step, size );
+    }
+    while( !this._redo.isEmpty() )
+    {
+      this._memory  -=  memory( this._redo.pop() );
+    }
+    this._undo.push( step );
+    this._memory  +=  memory( step );
+    while( this._memory > this._maxMemory && this._undo.size() > 1 )
+    {
+      this._memory  -=  memory( this._undo.removeLast() );
+    }
+    return true;
+  }
+
+  /**
+   * Records the pending changes and restores the light sources to the state before the last step.
+   * Returns the number of light sources that changed, or -1 if there is nothing to undo.
+   * @return int
+   */
+  public int undo()
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    int changed;
+    synchronized( this )
+    {
+      this.record();
+      if( this._undo.isEmpty() )
+      {
+        return -1;
+      }
+      int[] step  =  this._undo.pop();
+      changed  =  this.apply( step, true );
+      this._redo.push( step );
+    }
+    bulk.finish( "undo", this._lights.length, changed );
+    this.fireLightEvent( LightEvent.UNDO );
+    return changed;
+  }
+  /**
+   * Restores the light sources to the state after the last undone step. Returns the number of light
+   * sources that changed, or -1 if there is nothing to redo.
+   * @return int
+   */
+  public int redo()
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    int changed;
+    synchronized( this )
+    {
+      this.record();
+      if( this._redo.isEmpty() )
+      {
+        return -1;
+      }
+      int[] step  =  this._redo.pop();
+      changed  =  this.apply( step, false );
+      this._undo.push( step );
+    }
+    bulk.finish( "redo", this._lights.length, changed );
+    this.fireLightEvent( LightEvent.REDO );
+    return changed;
+  }
+
+  //Writes the old or new values of a step into the state and the light sources, without events
+  private int apply( int[] step, boolean undo )
+  {
+    int changed  =  0;
+    this._applying  =  true;
+    try
+    {
+      int p  =  0;
+      while( p < step.length )
+      {
+        int index   =  step[p] >>> 4;
+        int mask    =  step[p++] & 0xF;
+        int offset  =  index * LightFrame.STRIDE;
+        for( int f = 0; f < LightFrame.STRIDE; f++ )
+        {
+          if( (mask & 1 << f) != 0 )
+          {
+            this._state[offset + f]  =  step[undo ? p : p + 1];
+            p  +=  2;
+          }
+        }
+        LightFrame.unpack( this._state, index, this._lights[index], false );
+        changed++;
+      }
+    }
+    finally
+    {
+      this._applying  =  false;
+    }
+    return changed;
+  }
+
+  /**
+   * Removes all steps.
+   */
+  public synchronized void clear()
+  {
+    this.record();
+    this._undo.clear();
+    this._redo.clear();
+    this._memory  =  0;
+  }
+
+  /**
+   * Returns the number of steps that can be undone.
+   * @return int
+   */
+  public synchronized int getUndoCount()
+  {
+    return this._undo.size();
+  }
+  /**
+   * Returns the number of steps that can be redone.
+   * @return int
+   */
+  public synchronized int getRedoCount()
+  {
+    return this._redo.size();
+  }
+  /**
+   * Returns the approximate number of bytes used by all steps.
+   * @return long
+   */
+  public synchronized long getMemoryUsage()
+  {
+    return this._memory;
+  }
+
+  //Approximate size of a step: array header plus values
+  private static long memory( int[] step )
+  {
+    return 16 + 4L * step.length;
+  }
+
+  /**  Adds an object to listen to this history  **/
+  public synchronized void addLightListener( LightListener l )
+  {
+    _lightListeners.add( l );
+  }
+  /**  Removes an object to listen to this history  **/
+  public synchronized void removeLightListener( LightListener l )
+  {
+    _lightListeners.remove( l );
+  }
+  /**  Fires an event from this history  **/
+  protected synchronized void fireLightEvent( int eventType )
+  {
+    LightEvent event = new LightEvent( this, eventType );
+
+    //Loop by index, an Iterator would be allocated for every event
+    for( int i = 0; i < _lightListeners.size(); i++ )
+    {
+      LightListener listener        =  _lightListeners.get( i );
+      ListenerDispatchEvent timing  =  ListenerDispatchEvent.start();
+      listener.lightEventReceived( event );
+      ListenerDispatchEvent.finish( timing, event, listener );
+    }
+  }
+}
@@ -0,0 +1,372 @@
+package ili.lights;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LightJournal records every LightEvent it receives as a fixed-size binary record in a set of
+ * memory-mapped segment files. Register the journal as a LightListener on all light sources you want
+ * to record. The listener only copies the values of the event into a preallocated ring; a single
+ * writer thread moves the records from the ring into the segment files, so recording does not
+ * allocate and does not wait for the disk.
+ *
+ * Every record is RECORD_SIZE bytes (big endian):
+ * <pre>
+ * long  timestamp (ms since epoch, never decreasing within a journal)
+ * int   light id
+ * short event type (see LightEvent)
+ * byte  state (1 = on, 0 = off)
+ * byte  light type (LIGHT, COLOR_LIGHT, CCT_LIGHT)
+ * int   intensity
+ * int   color
+ * int   cct
+ * int   reserved
+ * </pre>
+ * Timestamps come from System.nanoTime(), relative to the wall clock time at which the journal was
+ * opened, so adjusting the system clock does not reorder them. The writer also never writes a timestamp
+ * older than the previous one (records of different threads can reach the ring out of order), so a
+ * journal can be replayed and searched in time order.
+ * Segments are named journal-000000.bin, journal-000001.bin, etc. When a segment is full the journal
+ * rolls over to the next one and, if a maximum number of segments is set, deletes the oldest.
+ * Use JournalReplayer to read a journal back. Light sources are identified by their light id, so make
+ * sure every recorded light source has a unique id.
+ */
+public class LightJournal implements LightListener
+{
+  public static final int RECORD_SIZE       =  32;
+
+  public static final int LIGHT             =  0;
+  public static final int COLOR_LIGHT       =  1;
+  public static final int CCT_LIGHT         =  2;
+
+  static final String SEGMENT_PREFIX        =  "journal-";
+  static final String SEGMENT_SUFFIX        =  ".bin";
+
+  private static final int SLOT_LONGS       =  4;
+  private static final long IDLE_PARK_NANOS =  100000L;
+
+  private final File _directory;
+  private final int  _recordsPerSegment;
+  private final int  _maxSegments;
+
+  //The ring: every slot holds SLOT_LONGS values, _published contains the sequence of the record in the slot
+  private final long[]          _ring;
+  private final AtomicLongArray _published;
+  private final int             _mask;
+  private final AtomicLong      _claimed  =  new AtomicLong( 0 );
+  private volatile long         _written  =  0;
+
+  private MappedByteBuffer _segment;
+  private RandomAccessFile _segmentFile;
+  private int              _segmentNumber  =  -1;
+  private int              _firstSegment   =  0;
+
+  private final long       _startMillis    =  System.currentTimeMillis();
+  private final long       _startNanos     =  System.nanoTime();
+  private long             _lastTimestamp  =  0;  //Owned by the writer
+
+  private final Thread     _writer;
+  private volatile boolean _running        =  true;
+  private volatile IOException _error      =  null;
+
+  /**
+   * Creates a new journal in the specified directory with 1M records (32MB) per segment, a ring of
+   * 64k events and no limit on the number of segments.
+   * @param directory
+   * @throws IOException
+   */
+  public LightJournal( File directory ) throws IOException
+  {
+    this( directory, 1 << 20, 1 << 16, 0 );
+  }
+  /**
+   * Creates a new journal in the specified directory.
+   * @param directory
+   * @param recordsPerSegment number of records in each segment file
+   * @param ringSize number of events that can be buffered, rounded up to a power of two
+   * @param maxSegments number of segment files to keep (0 keeps all)
+   * @throws IOException
+   */
+  public LightJournal( File directory, int recordsPerSegment, int ringSize, int maxSegments ) throws IOException
+  {
+    if( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Could not create journal directory " + directory );
+    }
+    this._directory          =  directory;
+    this._recordsPerSegment  =  recordsPerSegment;
+    this._maxSegments        =  maxSegments;
+
+    int capacity             =  Integer.highestOneBit( Math.max( 2, ringSize - 1 ) ) << 1;
+    this._ring               =  new long[capacity * SLOT_LONGS];
+    this._published          =  new AtomicLongArray( capacity );
+    for( int i = 0; i < capacity; i++ )
+    {
+      this._published.set( i, -1 );
+    }
+    this._mask               =  capacity - 1;
+
+    //Continue after the segments that are already in the directory
+    int[] existing  =  listSegments( directory );
+    if( existing.length > 0 )
+    {
+      this._firstSegment   =  existing[0];
+      this._segmentNumber  =  existing[existing.length - 1];
+    }
+    this.nextSegment();
+
+    this._writer  =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        LightJournal.this.writeLoop();
+      }
+    }, "LightJournal writer" );
+    this._writer.setDaemon( true );
+    this._writer.start();
+  }
+
+  /**
+   * Records the event. Called by the light sources this journal listens to. Events that do not come
+   * from a light source (e.g. SCENE) are ignored.
+   */
+  public void lightEventReceived( LightEvent event )
+  {
+    Light light  =  event.getLight();
+    if( light != null )
+    {
+      this.record( this.currentTime(), light, event.getType() );
+    }
+  }
+
+  /**
+   * Returns the current time (ms since epoch) on the monotonic clock of this journal.
+   * @return long
+   */
+  public long currentTime()
+  {
+    return this._startMillis + (System.nanoTime() - this._startNanos) / 1000000L;
+  }
+  /**
+   * Records the current values of the light source with the specified event type and timestamp.
+   * A timestamp older than the previous record is written as the time of the previous record.
+   * Waits when the ring is full until the writer thread has made room.
+   * @param timestamp
+   * @param light
+   * @param eventType
+   */
+  public void record( long timestamp, Light light, int eventType )
+  {
+    if( !this._running )
+    {
+      return;
+    }
+    long sequence  =  this._claimed.getAndIncrement();
+    while( sequence - this._written >= this._published.length() )
+    {
+      Thread.yield();
+    }
+    int slot       =  (int) sequence & this._mask;
+    int offset     =  slot * SLOT_LONGS;
+
+    int lightType  =  LIGHT;
+    int color      =  LightFrame.NO_COLOR;
+    int cct        =  0;
+    if( light instanceof ColorLight )
+    {
+      lightType    =  COLOR_LIGHT;
+      color        =  ((ColorLight) light).getColor();
+    }
+    else if( light instanceof CCTLight )
+    {
+      lightType    =  CCT_LIGHT;
+      cct          =  ((CCTLight) light).getCCT();
+    }
+    this._ring[offset]      =  timestamp;
+    this._ring[offset + 1]  =  ((long) light.getLightID() << 32) |
+                               ((eventType & 0xFFFFL) << 16) |
+                               ((light.getState() ? 1L : 0L) << 8) |
+                               lightType;
+    this._ring[offset + 2]  =  ((long) light.getIntensity() << 32) | (color & 0xFFFFFFFFL);
+    this._ring[offset + 3]  =  cct;
+    this._published.lazySet( slot, sequence );
+  }
+
+  /**
+   * Returns the number of records that have been written to the segment files.
+   * @return long
+   */
+  public long getWrittenCount()
+  {
+    return this._written;
+  }
+
+  /**
+   * Waits until all recorded events have been written and forces the current segment to disk.
+   * @throws IOException
+   */
+  public void flush() throws IOException
+  {
+    long target  =  this._claimed.get();
+    while( this._written < target && this._writer.isAlive() )
+    {
+      LockSupport.parkNanos( IDLE_PARK_NANOS );
+    }
+    this.checkError();
+    synchronized( this )
+    {
+      this._segment.force();
+    }
+  }
+
+  /**
+   * Writes all remaining events, stops the writer thread and closes the current segment.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    this.flush();
+    this._running  =  false;
+    try
+    {
+      this._writer.join();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    synchronized( this )
+    {
+      this._segment.force();
+      this._segmentFile.close();
+    }
+    this.checkError();
+  }
+
+  private void checkError() throws IOException
+  {
+    if( this._error != null )
+    {
+      throw this._error;
+    }
+  }
+
+  private void writeLoop()
+  {
+    long next  =  this._written;
+    while( this._running || next < this._claimed.get() )
+    {
+      int slot  =  (int) next & this._mask;
+      if( this._published.get( slot ) != next )
+      {
+        LockSupport.parkNanos( IDLE_PARK_NANOS );
+        continue;
+      }
+      try
+      {
+        this.write( slot * SLOT_LONGS );
+      }
+      catch( IOException e )
+      {
+        this._error    =  e;
+        this._running  =  false;
+        this._written  =  this._claimed.get();
+        return;
+      }
+      next++;
+      this._written  =  next;
+    }
+  }
+
+  private synchronized void write( int offset ) throws IOException
+  {
+    if( this._segment.remaining() < RECORD_SIZE )
+    {
+      this.nextSegment();
+    }
+    long header  =  this._ring[offset + 1];
+    long values  =  this._ring[offset + 2];
+    this._lastTimestamp  =  Math.max( this._lastTimestamp, this._ring[offset] );
+    this._segment.putLong( this._lastTimestamp );
+    this._segment.putInt( (int) (header >>> 32) );
+    this._segment.putShort( (short) (header >>> 16) );
+    this._segment.put( (byte) (header >>> 8) );
+    this._segment.put( (byte) header );
+    this._segment.putInt( (int) (values >>> 32) );
+    this._segment.putInt( (int) values );
+    this._segment.putInt( (int) this._ring[offset + 3] );
+    this._segment.putInt( 0 );
+  }
+
+  private void nextSegment() throws IOException
+  {
+    if( this._segment != null )
+    {
+      this._segment.force();
+      this._segmentFile.close();
+    }
+    this._segmentNumber++;
+    File file          =  segmentFile( this._directory, this._segmentNumber );
+    this._segmentFile  =  new RandomAccessFile( file, "rw" );
+    this._segment      =  this._segmentFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0,
+                                                              (long) this._recordsPerSegment * RECORD_SIZE );
+    this._segment.order( ByteOrder.BIG_ENDIAN );
+    //Skip records that are already present when we continue in an existing segment
+    while( this._segment.remaining() >= RECORD_SIZE && this._segment.getLong( this._segment.position() ) != 0 )
+    {
+      this._segment.position( this._segment.position() + RECORD_SIZE );
+    }
+    if( this._segment.remaining() < RECORD_SIZE )
+    {
+      this.nextSegment();
+      return;
+    }
+    while( this._maxSegments > 0 && this._segmentNumber - this._firstSegment >= this._maxSegments )
+    {
+      segmentFile( this._directory, this._firstSegment ).delete();
+      this._firstSegment++;
+    }
+  }
+
+  static File segmentFile( File directory, int number )
+  {
+    return new File( directory, SEGMENT_PREFIX + String.format( "%06d", number ) + SEGMENT_SUFFIX );
+  }
+
+  /**
+   * Returns the numbers of all segments in the directory in ascending order.
+   */
+  static int[] listSegments( File directory )
+  {
+    String[] names  =  directory.list();
+    if( names == null )
+    {
+      return new int[0];
+    }
+    int[] numbers   =  new int[names.length];
+    int count       =  0;
+    for( String name : names )
+    {
+      if( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) )
+      {
+        try
+        {
+          numbers[count]  =  Integer.parseInt( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+          count++;
+        }
+        catch( NumberFormatException e ) { }
+      }
+    }
+    numbers  =  Arrays.copyOf( numbers, count );
+    Arrays.sort( numbers );
+    return numbers;
+  }
+}
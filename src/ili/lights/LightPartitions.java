@@ -0,0 +1,407 @@
+package ili.lights;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LightPartitions runs a collection of light sources in partitioned mode: the light sources are sharded
+ * by getLightID() over a number of partitions, and every partition is owned by a single thread. Other
+ * threads do not call the setters of the light sources, they submit commands (set state, intensity,
+ * colour or colour temperature of a light id). Every partition has a lock-free inbound queue that its
+ * owner drains, so light sources are only written by one thread and partitions never share a lock.
+ *
+ * A CommandBatch collects commands for many light ids and submits them per partition at once, with a
+ * single atomic operation per partition. After draining its queue (or when it has been idle for the
+ * tick interval), every partition ticks on its own thread and runs the PartitionTask, if set.
+ * A command or task that throws does not stop the partition: the failure is counted (see
+ * getErrorCount() and getLastError()) and the partition keeps draining.
+ */
+public class LightPartitions
+{
+  public static final int SET_STATE      =  1;
+  public static final int SET_INTENSITY  =  2;
+  public static final int SET_COLOR      =  3;
+  public static final int SET_CCT        =  4;
+
+  static final int SLOT_INTS             =  3;   //Light id, command, value
+  private static final long IDLE_PARK_NANOS =  50000L;
+  private static final int  SPINS        =  200;
+
+  private final Partition[] _partitions;
+  private volatile PartitionTask _task   =  null;
+  private volatile long    _tickInterval =  0;
+  private volatile boolean _fireEvents   =  true;
+  private volatile boolean _running      =  true;
+  private volatile RuntimeException _lastError  =  null;
+
+  /**
+   * Creates one partition per available core, with room for 65536 queued commands per partition.
+   * @param lights
+   */
+  public LightPartitions( List<? extends Light> lights )
+  {
+    this( lights, Runtime.getRuntime().availableProcessors(), 65536 );
+  }
+  /**
+   * Creates the specified number of partitions and starts their threads.
+   * @param lights
+   * @param partitions
+   * @param capacity the number of commands that can be queued per partition (rounded up to a power of two)
+   */
+  public LightPartitions( List<? extends Light> lights, int partitions, int capacity )
+  {
+    int size  =  Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+    int[] counts  =  new int[partitions];
+    for( Light light : lights )
+    {
+      int local  =  light.getLightID() / partitions;
+      counts[light.getLightID() % partitions]  =  Math.max( counts[light.getLightID() % partitions], local + 1 );
+    }
+    this._partitions  =  new Partition[partitions];
+    for( int p = 0; p < partitions; p++ )
+    {
+      this._partitions[p]  =  new Partition( p, counts[p], size );
+    }
+    for( Light light : lights )
+    {
+      Partition partition  =  this._partitions[light.getLightID() % partitions];
+      int local  =  light.getLightID() / partitions;
+      if( partition._lights[local] != null )
+      {
+        throw new IllegalArgumentException( "Light id " + light.getLightID() + " is used by more than one light source" );
+      }
+      partition._lights[local]  =  light;
+    }
+    for( Partition partition : this._partitions )
+    {
+      partition.start();
+    }
+  }
+
+  /**
+   * Sets the task every partition runs after draining its commands.
+   * @param task
+   */
+  public void setTask( PartitionTask task )
+  {
+    this._task  =  task;
+  }
+  /**
+   * Sets the time (ms) after which an idle partition ticks anyway. Use 0 to only tick after commands
+   * have been applied (standard).
+   * @param interval
+   */
+  public void setTickInterval( long interval )
+  {
+    this._tickInterval  =  interval * 1000000L;
+  }
+  /**
+   * Sets whether commands fire a LightEvent on the owning thread (standard true).
+   * @param fireEvents
+   */
+  public void setFireEvents( boolean fireEvents )
+  {
+    this._fireEvents  =  fireEvents;
+  }
+
+  /**
+   * Returns the number of partitions.
+   * @return int
+   */
+  public int getPartitionCount()
+  {
+    return this._partitions.length;
+  }
+  /**
+   * Returns the partition that owns the light id.
+   * @param lightID
+   * @return int
+   */
+  public int getPartition( int lightID )
+  {
+    return lightID % this._partitions.length;
+  }
+
+  /**
+   * Submits a single command (SET_STATE, SET_INTENSITY, SET_COLOR or SET_CCT) for a light id.
+   * Use a CommandBatch to submit many commands.
+   * @param lightID
+   * @param command
+   * @param value
+   */
+  public void submit( int lightID, int command, int value )
+  {
+    Partition partition  =  this._partitions[lightID % this._partitions.length];
+    long sequence  =  partition.claim( 1 );
+    partition.put( sequence, lightID, command, value );
+  }
+  /**
+   * Submits all commands of the batch and empties it.
+   * @param batch
+   */
+  public void submit( CommandBatch batch )
+  {
+    for( int p = 0; p < this._partitions.length; p++ )
+    {
+      int count  =  batch._counts[p];
+      if( count == 0 )
+      {
+        continue;
+      }
+      Partition partition  =  this._partitions[p];
+      int[] commands       =  batch._commands[p];
+      long sequence        =  partition.claim( count );
+      for( int c = 0; c < count; c++ )
+      {
+        int offset  =  c * SLOT_INTS;
+        partition.put( sequence + c, commands[offset], commands[offset + 1], commands[offset + 2] );
+      }
+      batch._counts[p]  =  0;
+    }
+    batch._size  =  0;
+  }
+  /**
+   * Creates a batch for submitting commands from a single thread.
+   * @return CommandBatch
+   */
+  public CommandBatch createBatch()
+  {
+    return new CommandBatch( this );
+  }
+
+  /**
+   * Waits until all commands submitted so far have been applied.
+   */
+  public void sync()
+  {
+    for( Partition partition : this._partitions )
+    {
+      long target  =  partition._claimed.get();
+      while( partition._applied < target && partition.isAlive() )
+      {
+        Thread.onSpinWait();
+      }
+    }
+  }
+  /**
+   * Returns the number of commands applied by all partitions.
+   * @return long
+   */
+  public long getAppliedCount()
+  {
+    long applied  =  0;
+    for( Partition partition : this._partitions )
+    {
+      applied  +=  partition._applied;
+    }
+    return applied;
+  }
+  /**
+   * Returns the number of commands and ticks of all partitions that failed with an exception.
+   * @return long
+   */
+  public long getErrorCount()
+  {
+    long errors  =  0;
+    for( Partition partition : this._partitions )
+    {
+      errors  +=  partition._errors;
+    }
+    return errors;
+  }
+  /**
+   * Returns the exception of the most recent failed command or tick, or null if nothing failed.
+   * @return RuntimeException
+   */
+  public RuntimeException getLastError()
+  {
+    return this._lastError;
+  }
+  /**
+   * Returns the number of ticks of a partition.
+   * @param partition
+   * @return long
+   */
+  public long getTickCount( int partition )
+  {
+    return this._partitions[partition]._ticks;
+  }
+
+  /**
+   * Applies the remaining commands and stops the partition threads.
+   */
+  public void close()
+  {
+    this.sync();
+    this._running  =  false;
+    for( Partition partition : this._partitions )
+    {
+      LockSupport.unpark( partition );
+      try
+      {
+        partition.join();
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A partition: its light sources (indexed by light id / partition count), its inbound ring of
+   * commands and the thread that owns both.
+   */
+  private class Partition extends Thread
+  {
+    final int             _number;
+    final Light[]         _lights;
+    final int[]           _ring;
+    final AtomicLongArray _published;
+    final int             _mask;
+    final AtomicLong      _claimed  =  new AtomicLong( 0 );
+    volatile long         _applied  =  0;
+    volatile long         _ticks    =  0;
+    volatile long         _errors   =  0;
+
+    Partition( int number, int lights, int capacity )
+    {
+      super( "LightPartitions " + number );
+      this.setDaemon( true );
+      this._number     =  number;
+      this._lights     =  new Light[lights];
+      this._ring       =  new int[capacity * SLOT_INTS];
+      this._published  =  new AtomicLongArray( capacity );
+      this._mask       =  capacity - 1;
+      for( int i = 0; i < capacity; i++ )
+      {
+        this._published.set( i, -1 );
+      }
+    }
+
+    //Claims 'count' slots and waits until the last one is free; returns the first sequence.
+    //Fails when the owner thread has stopped, since the slots would never be freed.
+    long claim( int count )
+    {
+      if( count > this._published.length() )
+      {
+        throw new IllegalArgumentException( "Batch of " + count + " commands does not fit in a queue of " + this._published.length() );
+      }
+      long sequence  =  this._claimed.getAndAdd( count );
+      while( sequence + count - this._applied > this._published.length() )
+      {
+        if( !this.isAlive() )
+        {
+          throw new IllegalStateException( "Partition " + this._number + " is not running" );
+        }
+        Thread.yield();
+      }
+      return sequence;
+    }
+
+    void put( long sequence, int lightID, int command, int value )
+    {
+      int slot    =  (int) sequence & this._mask;
+      int offset  =  slot * SLOT_INTS;
+      this._ring[offset]      =  lightID;
+      this._ring[offset + 1]  =  command;
+      this._ring[offset + 2]  =  value;
+      this._published.lazySet( slot, sequence );
+    }
+
+    public void run()
+    {
+      int partitions  =  LightPartitions.this._partitions.length;
+      long next       =  0;
+      int idle        =  0;
+      long lastTick   =  System.nanoTime();
+      while( LightPartitions.this._running || next < this._claimed.get() )
+      {
+        boolean fire  =  LightPartitions.this._fireEvents;
+        long first    =  next;
+        while( this._published.get( (int) next & this._mask ) == next )
+        {
+          int offset  =  ((int) next & this._mask) * SLOT_INTS;
+          int local   =  this._ring[offset] / partitions;
+          if( local < this._lights.length && this._lights[local] != null )
+          {
+            try
+            {
+              apply( this._lights[local], this._ring[offset + 1], this._ring[offset + 2], fire );
+            }
+            catch( RuntimeException e )
+            {
+              this._errors++;  //E.g. a failing listener, the other commands are still applied
+              LightPartitions.this._lastError  =  e;
+            }
+          }
+          next++;
+          if( ((next - first) & 255) == 0 )
+          {
+            this._applied  =  next;  //Frees slots for waiting producers during long drains
+          }
+        }
+        this._applied  =  next;
+
+        long interval  =  LightPartitions.this._tickInterval;
+        if( next != first || (interval > 0 && System.nanoTime() - lastTick >= interval) )
+        {
+          PartitionTask task  =  LightPartitions.this._task;
+          if( task != null )
+          {
+            try
+            {
+              task.tick( this._number, this._lights );
+            }
+            catch( RuntimeException e )
+            {
+              this._errors++;
+              LightPartitions.this._lastError  =  e;
+            }
+          }
+          this._ticks++;
+          lastTick  =  interval > 0 ? System.nanoTime() : 0;
+        }
+        if( next != first )
+        {
+          idle  =  0;
+        }
+        else if( ++idle < SPINS )
+        {
+          Thread.onSpinWait();
+        }
+        else
+        {
+          LockSupport.parkNanos( IDLE_PARK_NANOS );
+        }
+      }
+    }
+  }
+
+  private static void apply( Light light, int command, int value, boolean fire )
+  {
+    switch( command )
+    {
+      case SET_STATE:
+        light.setState( value != 0, fire );
+        break;
+      case SET_INTENSITY:
+        light.setIntensity( value, fire );
+        break;
+      case SET_COLOR:
+        if( light instanceof ColorLight )
+        {
+          ((ColorLight) light).setColor( value & 0xFFFFFF, fire );
+        }
+        break;
+      case SET_CCT:
+        if( light instanceof CCTLight )
+        {
+          ((CCTLight) light).setCCT( value, fire );
+        }
+        break;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package ili.lights;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * The LightReplicator streams the state of a collection of light sources to a ReplicaReceiver
+ * (e.g. a hot standby controller). Call replicate() once per tick: only the fields that changed since
+ * the previous tick are sent. Every resync interval, and after (re)connecting, the complete state is
+ * sent so the receiver can recover from lost or out-of-order messages.
+ *
+ * Both sides must use the same light sources in the same order, light sources are addressed by
+ * their index. Every message is written as:
+ * <pre>
+ * int   length of the rest of the message
+ * byte  DELTA or FULL
+ * long  sequence number (increments by one for every message)
+ * int   number of records
+ * per record: int index, byte field mask (1 &lt;&lt; LightFrame.STATE etc), one int per field in the mask
+ * </pre>
+ */
+public class LightReplicator
+{
+  public static final byte DELTA  =  1;
+  public static final byte FULL   =  2;
+
+  static final int  HEADER_SIZE   =  1 + 8 + 4;
+  static final int  ALL_FIELDS    =  (1 << LightFrame.STRIDE) - 1;
+
+  private final Light[] _lights;
+  private final int[]   _sent;
+  private final int[]   _current;
+
+  private ByteBuffer    _buffer;
+  private SocketChannel _channel;
+  private long          _sequence        =  0;
+  private int           _resyncInterval  =  100;
+  private int           _ticksSinceFull  =  0;
+  private boolean       _needsFull       =  true;
+
+  /**
+   * Creates a new replicator for the specified light sources.
+   * @param lights
+   */
+  public LightReplicator( List<? extends Light> lights )
+  {
+    this._lights   =  lights.toArray( new Light[lights.size()] );
+    this._sent     =  new int[LightFrame.size( this._lights.length )];
+    this._current  =  new int[LightFrame.size( this._lights.length )];
+    //Large enough for a full resync: length + header + (index, mask, all fields) per light
+    this._buffer   =  ByteBuffer.allocateDirect( 4 + HEADER_SIZE + this._lights.length * (5 + 4 * LightFrame.STRIDE) );
+  }
+
+  /**
+   * Connects to a ReplicaReceiver at the specified host and port. The next replicate() sends the full state.
+   * @param host
+   * @param port
+   * @throws IOException
+   */
+  public void connect( String host, int port ) throws IOException
+  {
+    this.disconnect();
+    this._channel    =  SocketChannel.open( new InetSocketAddress( host, port ) );
+    this._channel.socket().setTcpNoDelay( true );
+    this._needsFull  =  true;
+  }
+
+  /**
+   * Closes the connection to the receiver.
+   * @throws IOException
+   */
+  public void disconnect() throws IOException
+  {
+    if( this._channel != null )
+    {
+      this._channel.close();
+      this._channel  =  null;
+    }
+  }
+
+  /**
+   * Sets the number of ticks between two full resyncs (standard 100). Use 0 to only send a full state after connecting.
+   * @param ticks
+   */
+  public void setResyncInterval( int ticks )
+  {
+    this._resyncInterval  =  ticks;
+  }
+  /**
+   * Returns the number of ticks between two full resyncs.
+   * @return int
+   */
+  public int getResyncInterval()
+  {
+    return this._resyncInterval;
+  }
+
+  /**
+   * Returns the sequence number of the last message that was sent.
+   * @return long
+   */
+  public long getSequence()
+  {
+    return this._sequence;
+  }
+
+  /**
+   * Sends the changes since the previous call to the receiver, or the full state when a resync is due.
+   * Returns the number of light sources that were sent. Nothing is sent when no light source changed.
+   * @return int
+   * @throws IOException
+   */
+  public int replicate() throws IOException
+  {
+    if( this._channel == null )
+    {
+      throw new IOException( "LightReplicator is not connected" );
+    }
+    LightFrame.packAll( this._lights, this._current );
+    this._ticksSinceFull++;
+    boolean full  =  this._needsFull ||
+                     ( this._resyncInterval > 0 && this._ticksSinceFull >= this._resyncInterval );
+
+    ByteBuffer buffer  =  this._buffer;
+    buffer.clear();
+    buffer.position( 4 + HEADER_SIZE );
+    int records  =  0;
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      int offset  =  i * LightFrame.STRIDE;
+      int mask    =  full ? ALL_FIELDS : 0;
+      if( !full )
+      {
+        for( int f = 0; f < LightFrame.STRIDE; f++ )
+        {
+          if( this._current[offset + f] != this._sent[offset + f] )
+          {
+            mask  |=  1 << f;
+          }
+        }
+        if( mask == 0 )
+        {
+          continue;
+        }
+      }
+      buffer.putInt( i );
+      buffer.put( (byte) mask );
+      for( int f = 0; f < LightFrame.STRIDE; f++ )
+      {
+        if( (mask & (1 << f)) != 0 )
+        {
+          buffer.putInt( this._current[offset + f] );
+        }
+      }
+      records++;
+    }
+    if( records == 0 )
+    {
+      return 0;
+    }
+
+    this._sequence++;
+    buffer.putInt( 0, buffer.position() - 4 );
+    buffer.put( 4, full ? FULL : DELTA );
+    buffer.putLong( 5, this._sequence );
+    buffer.putInt( 13, records );
+    buffer.flip();
+    while( buffer.hasRemaining() )
+    {
+      this._channel.write( buffer );
+    }
+
+    System.arraycopy( this._current, 0, this._sent, 0, this._current.length );
+    if( full )
+    {
+      this._needsFull       =  false;
+      this._ticksSinceFull  =  0;
+    }
+    return records;
+  }
+}
@@ -0,0 +1,13 @@
+package ili.lights;
+
+/**
+ * A LightTracker is notified of every change of a light source, also when the change does not fire a
+ * LightEvent (bulk writers such as SceneStore, PixelMapper or MergeEngine usually write without events).
+ * Use it for state that has to follow the light sources, e.g. change feeds, power totals and undo
+ * history. Register it with light.addLightTracker( tracker ). lightChanged() is called on the thread that
+ * changed the light source, after the change, and should be quick.
+ */
+public interface LightTracker
+{
+  public void lightChanged( Light light );
+}
@@ -0,0 +1,70 @@
+package ili.lights;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for the delivery of a LightEvent to one listener; its duration is the time the
+ * listener took. Call start() before and finish() after the listener. The event is disabled unless a
+ * recording enables it, e.g. with the lights.jfc settings; a disabled event is not even created, so event
+ * dispatch does not depend on escape analysis to stay allocation free.
+ */
+@Name( "ili.lights.ListenerDispatch" )
+@Label( "Listener Dispatch" )
+@Description( "A listener received a LightEvent" )
+@Category( { "ili.lights" } )
+@StackTrace( false )
+@Enabled( false )
+final class ListenerDispatchEvent extends Event
+{
+  @Label( "Light Id" )
+  @Description( "Light id of the source, -1 if the source is not a light source" )
+  int lightID;
+  @Label( "Type" )
+  @Description( "LightEvent type" )
+  int type;
+  @Label( "Listener" )
+  Class<?> listener;
+
+  private static final EventType TYPE  =  EventType.getEventType( ListenerDispatchEvent.class );
+
+  /**
+   * Begins an event, or returns null when no recording enables it.
+   */
+  static ListenerDispatchEvent start()
+  {
+    if( !TYPE.isEnabled() )
+    {
+      return null;
+    }
+    ListenerDispatchEvent timing  =  new ListenerDispatchEvent();
+    timing.begin();
+    return timing;
+  }
+
+  /**
+   * Ends the event started by start() and records it if it lasted longer than the threshold.
+   */
+  static void finish( ListenerDispatchEvent timing, LightEvent event, LightListener listener )
+  {
+    if( timing == null )
+    {
+      return;
+    }
+    timing.end();
+    if( timing.shouldCommit() )
+    {
+      Object source     =  event.getSource();
+      timing.lightID    =  source instanceof Light ? ((Light) source).getLightID() : -1;
+      timing.type       =  event.getType();
+      timing.listener   =  listener.getClass();
+      timing.commit();
+    }
+  }
+}
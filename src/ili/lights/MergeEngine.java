@@ -0,0 +1,437 @@
+package ili.lights;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The MergeEngine combines the input of several sources (e.g. a console, a sensor system and a
+ * scheduler) that control the same light sources. Every source writes into its own input layer with
+ * setIntensity(), setColor() and setCCT() instead of calling the setters of the light sources.
+ * merge() (e.g. once per output frame) recomputes the output of the light sources whose inputs changed
+ * and updates them.
+ *
+ * Intensity, colour and colour temperature are merged separately, each over the sources that wrote
+ * that field: a source that only sets intensities does not affect the colours. The merge rule decides
+ * which input wins:
+ * HTP (highest takes precedence) takes the highest intensity and the highest value per colour channel
+ * (and the latest colour temperature),
+ * LTP (latest takes precedence) takes the input that was written last, and
+ * PRIORITY takes the input of the active source with the highest priority. With PRIORITY, an input
+ * that has not been written for longer than the timeout of its source is released, so control falls
+ * back to the next source.
+ * A field without inputs keeps its last value, and a light source without any input is turned off.
+ * All layers are stored in primitive arrays.
+ */
+public class MergeEngine
+{
+  public static final int HTP       =  1;
+  public static final int LTP       =  2;
+  public static final int PRIORITY  =  3;
+
+  //Input fields, the first index of _written
+  private static final int IN_INTENSITY  =  0;
+  private static final int IN_COLOR      =  1;
+  private static final int IN_CCT        =  2;
+
+  private final Light[] _lights;
+  private final int     _sourceCount;
+  private final int     _lightCount;
+
+  //Input layers, indexed by source * lightCount + light
+  private final int[]   _intensity;
+  private final int[]   _color;
+  private final int[]   _cct;
+  private final long[][] _written;    //Per input field: time (see now()) of the last write, 0 for no input
+
+  private final int[]   _priorities;
+  private final long[]  _timeouts;    //ns, 0 for no timeout
+  private final long[]  _expiry;      //Per light: time at which the first winning input expires, 0 for never
+  private long          _nextExpiry  =  Long.MAX_VALUE;  //Lower bound of all expiry times
+
+  private final long[]  _dirty;       //Bitset of lights whose inputs changed
+  private final int[]   _output;      //Merged packed frame (see LightFrame)
+  private int     _rule        =  HTP;
+  private boolean _fireEvents  =  true;
+  private long    _clock       =  0;  //Makes write times unique, so LTP is well defined
+  private final long _start    =  System.nanoTime();
+
+  /**
+   * Creates a merge engine for the specified number of sources controlling the specified light sources.
+   * @param sourceCount
+   * @param lights
+   */
+  public MergeEngine( int sourceCount, List<? extends Light> lights )
+  {
+    this._lights       =  lights.toArray( new Light[lights.size()] );
+    this._sourceCount  =  sourceCount;
+    this._lightCount   =  this._lights.length;
+    int layers         =  sourceCount * this._lightCount;
+    this._intensity    =  new int[layers];
+    this._color        =  new int[layers];
+    this._cct          =  new int[layers];
+    this._written      =  new long[3][layers];
+    this._priorities   =  new int[sourceCount];
+    this._timeouts     =  new long[sourceCount];
+    this._expiry       =  new long[this._lightCount];
+    this._dirty        =  new long[(this._lightCount + 63) >> 6];
+    this._output       =  new int[LightFrame.size( this._lightCount )];
+    for( int s = 0; s < sourceCount; s++ )
+    {
+      this._priorities[s]  =  s;
+    }
+    LightFrame.packAll( this._lights, this._output );
+  }
+
+  /**
+   * Sets the merge rule: HTP (standard), LTP or PRIORITY. All light sources are merged again.
+   * @param rule
+   */
+  public synchronized void setRule( int rule )
+  {
+    this._rule  =  rule;
+    Arrays.fill( this._dirty, -1L );
+  }
+  /**
+   * Sets the priority of a source, used by the PRIORITY rule (standard: the source number).
+   * @param source
+   * @param priority
+   */
+  public synchronized void setPriority( int source, int priority )
+  {
+    this._priorities[source]  =  priority;
+    Arrays.fill( this._dirty, -1L );
+  }
+  /**
+   * Sets the time (ms) after which an input of the source is released under the PRIORITY rule.
+   * Use 0 to keep inputs until they are released (standard).
+   * @param source
+   * @param timeout
+   */
+  public synchronized void setTimeout( int source, long timeout )
+  {
+    this._timeouts[source]  =  timeout * 1000000L;
+    Arrays.fill( this._dirty, -1L );
+  }
+  /**
+   * Sets whether updated light sources fire a LightEvent (standard true).
+   * @param fireEvents
+   */
+  public void setFireEvents( boolean fireEvents )
+  {
+    this._fireEvents  =  fireEvents;
+  }
+
+  /**
+   * Sets the intensity input of a source for the light source at the specified index.
+   * @param source
+   * @param light
+   * @param intensity
+   */
+  public synchronized void setIntensity( int source, int light, int intensity )
+  {
+    int layer  =  source * this._lightCount + light;
+    this._intensity[layer]  =  intensity;
+    this.touch( IN_INTENSITY, layer, light );
+  }
+  /**
+   * Sets the colour input of a source for the light source at the specified index.
+   * @param source
+   * @param light
+   * @param lightColor
+   */
+  public synchronized void setColor( int source, int light, int lightColor )
+  {
+    int layer  =  source * this._lightCount + light;
+    this._color[layer]  =  lightColor & 0xFFFFFF;
+    this.touch( IN_COLOR, layer, light );
+  }
+  /**
+   * Sets the colour temperature input of a source for the light source at the specified index.
+   * @param source
+   * @param light
+   * @param cct
+   */
+  public synchronized void setCCT( int source, int light, int cct )
+  {
+    int layer  =  source * this._lightCount + light;
+    this._cct[layer]  =  cct;
+    this.touch( IN_CCT, layer, light );
+  }
+  /**
+   * Sets intensity and colour input of a source for the light source at the specified index.
+   * @param source
+   * @param light
+   * @param intensity
+   * @param lightColor
+   */
+  public synchronized void setParameters( int source, int light, int intensity, int lightColor )
+  {
+    int layer  =  source * this._lightCount + light;
+    this._intensity[layer]  =  intensity;
+    this._color[layer]      =  lightColor & 0xFFFFFF;
+    this.touch( IN_INTENSITY, layer, light );
+    this.touch( IN_COLOR, layer, light );
+  }
+  /**
+   * Sets the intensity inputs of a source for all light sources at once (one value per light source,
+   * in the order of the list passed to the constructor).
+   * @param source
+   * @param intensities
+   */
+  public synchronized void setIntensities( int source, int[] intensities )
+  {
+    int first  =  source * this._lightCount;
+    System.arraycopy( intensities, 0, this._intensity, first, this._lightCount );
+    this.touchAll( IN_INTENSITY, first );
+  }
+  /**
+   * Sets the colour inputs of a source for all light sources at once.
+   * @param source
+   * @param colors
+   */
+  public synchronized void setColors( int source, int[] colors )
+  {
+    int first  =  source * this._lightCount;
+    for( int l = 0; l < this._lightCount; l++ )
+    {
+      this._color[first + l]  =  colors[l] & 0xFFFFFF;
+    }
+    this.touchAll( IN_COLOR, first );
+  }
+  /**
+   * Removes the input of a source for the light source at the specified index.
+   * @param source
+   * @param light
+   */
+  public synchronized void release( int source, int light )
+  {
+    for( long[] written : this._written )
+    {
+      written[source * this._lightCount + light]  =  0;
+    }
+    this._dirty[light >> 6]  |=  1L << light;
+  }
+  /**
+   * Removes all inputs of a source.
+   * @param source
+   */
+  public synchronized void release( int source )
+  {
+    for( long[] written : this._written )
+    {
+      Arrays.fill( written, source * this._lightCount, (source + 1) * this._lightCount, 0 );
+    }
+    Arrays.fill( this._dirty, -1L );
+  }
+
+  private void touch( int field, int layer, int light )
+  {
+    long now  =  this.now();
+    this._clock  =  now > this._clock ? now : this._clock + 1;
+    this._written[field][layer]  =  this._clock;
+    this._dirty[light >> 6]     |=  1L << light;
+  }
+  //Marks a field of all light sources of a source as written, starting at its first layer
+  private void touchAll( int field, int first )
+  {
+    this.touch( field, first, 0 );
+    Arrays.fill( this._written[field], first, first + this._lightCount, this._written[field][first] );
+    Arrays.fill( this._dirty, -1L );
+  }
+
+  /**
+   * Returns the merged frame of the last merge() (see LightFrame).
+   * @return int[]
+   */
+  public int[] getOutput()
+  {
+    return this._output;
+  }
+
+  /**
+   * Recomputes the output of every light source whose inputs changed (or whose winning input timed out)
+   * and updates those light sources. Returns the number of updated light sources.
+   * @return int
+   */
+  public synchronized int merge()
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    long now  =  this.now();
+    if( this._rule == PRIORITY && now >= this._nextExpiry )
+    {
+      //Only scan when the earliest expiry has passed
+      long next  =  Long.MAX_VALUE;
+      for( int l = 0; l < this._lightCount; l++ )
+      {
+        long expiry  =  this._expiry[l];
+        if( expiry == 0 )
+        {
+          continue;
+        }
+        if( expiry <= now )
+        {
+          this._dirty[l >> 6]  |=  1L << l;
+        }
+        else
+        {
+          next  =  Math.min( next, expiry );
+        }
+      }
+      this._nextExpiry  =  next;
+    }
+
+    int updated  =  0;
+    for( int w = 0; w < this._dirty.length; w++ )
+    {
+      long bits  =  this._dirty[w];
+      this._dirty[w]  =  0;
+      while( bits != 0 )
+      {
+        int l  =  (w << 6) + Long.numberOfTrailingZeros( bits );
+        bits   &=  bits - 1;
+        if( l >= this._lightCount )
+        {
+          break;
+        }
+        if( this.mergeLight( l, now ) )
+        {
+          LightFrame.unpack( this._output, l, this._lights[l], this._fireEvents );
+          updated++;
+        }
+      }
+    }
+    bulk.finish( "merge", this._lightCount, updated );
+    return updated;
+  }
+
+  //Merges the inputs of a single light source into the output, returns true if the output changed
+  private boolean mergeLight( int l, long now )
+  {
+    int offset     =  l * LightFrame.STRIDE;
+    int state      =  0;
+    int intensity  =  this._output[offset + LightFrame.INTENSITY];
+    int color      =  this._output[offset + LightFrame.COLOR];
+    int cct        =  this._output[offset + LightFrame.CCT];
+    this._expiry[l]  =  0;
+
+    if( this._rule == HTP )
+    {
+      boolean lit      =  false;
+      boolean colored  =  false;
+      int loudest      =  0;
+      int mixed        =  0;
+      for( int s = 0; s < this._sourceCount; s++ )
+      {
+        int layer  =  s * this._lightCount + l;
+        if( this._written[IN_INTENSITY][layer] != 0 && (!lit || this._intensity[layer] > loudest) )
+        {
+          loudest  =  this._intensity[layer];
+          lit      =  true;
+        }
+        if( this._written[IN_COLOR][layer] != 0 )
+        {
+          int c    =  this._color[layer];
+          mixed    =  Math.max( mixed & 0xFF0000, c & 0xFF0000 ) |
+                      Math.max( mixed & 0x00FF00, c & 0x00FF00 ) |
+                      Math.max( mixed & 0x0000FF, c & 0x0000FF );
+          colored  =  true;
+        }
+      }
+      if( lit )
+      {
+        intensity  =  loudest;
+        state      =  1;
+      }
+      if( colored )
+      {
+        color  =  mixed;
+        state  =  1;
+      }
+    }
+    else
+    {
+      int layer  =  this.winner( IN_INTENSITY, l, now, this._rule == LTP );
+      if( layer >= 0 )
+      {
+        intensity  =  this._intensity[layer];
+        state      =  1;
+      }
+      layer  =  this.winner( IN_COLOR, l, now, this._rule == LTP );
+      if( layer >= 0 )
+      {
+        color  =  this._color[layer];
+        state  =  1;
+      }
+    }
+    int layer  =  this.winner( IN_CCT, l, now, this._rule != PRIORITY );
+    if( layer >= 0 )
+    {
+      cct    =  this._cct[layer];
+      state  =  1;
+    }
+
+    if( this._output[offset + LightFrame.STATE] == state &&
+        this._output[offset + LightFrame.INTENSITY] == intensity &&
+        this._output[offset + LightFrame.COLOR] == color &&
+        this._output[offset + LightFrame.CCT] == cct )
+    {
+      return false;
+    }
+    this._output[offset + LightFrame.STATE]      =  state;
+    this._output[offset + LightFrame.INTENSITY]  =  intensity;
+    this._output[offset + LightFrame.COLOR]      =  color;
+    this._output[offset + LightFrame.CCT]        =  cct;
+    return true;
+  }
+
+  //Time (ns) since this engine was created, plus 1: always positive, so 0 can mean 'not written'.
+  //System.nanoTime() itself may be negative.
+  private long now()
+  {
+    return System.nanoTime() - this._start + 1;
+  }
+
+  //Returns the layer of the winning input of a field of a light source (the latest, or the highest
+  //priority), or -1 when no source wrote that field. Releases inputs that timed out under PRIORITY.
+  private int winner( int field, int l, long now, boolean latest )
+  {
+    long[] written  =  this._written[field];
+    int winner      =  -1;
+    long winnerKey  =  0;
+    for( int s = 0; s < this._sourceCount; s++ )
+    {
+      int layer  =  s * this._lightCount + l;
+      long time  =  written[layer];
+      if( time == 0 )
+      {
+        continue;
+      }
+      if( this._rule == PRIORITY && this._timeouts[s] > 0 && time + this._timeouts[s] <= now )
+      {
+        written[layer]  =  0;  //Timed out
+        continue;
+      }
+      long key  =  latest ? time : this._priorities[s];
+      if( winner < 0 || key > winnerKey )
+      {
+        winner     =  layer;
+        winnerKey  =  key;
+      }
+    }
+    if( winner >= 0 && this._rule == PRIORITY )
+    {
+      long timeout  =  this._timeouts[winner / this._lightCount];
+      if( timeout > 0 )
+      {
+        long expiry  =  written[winner] + timeout;
+        if( this._expiry[l] == 0 || expiry < this._expiry[l] )
+        {
+          this._expiry[l]  =  expiry;
+        }
+        this._nextExpiry  =  Math.min( this._nextExpiry, expiry );
+      }
+    }
+    return winner;
+  }
+}
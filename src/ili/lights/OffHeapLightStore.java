@@ -0,0 +1,470 @@
+package ili.lights;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The OffHeapLightStore keeps the state of a large number of light sources (e.g. the pixels of an LED
+ * facade) in a single direct ByteBuffer instead of one ColorLight object per pixel, so the garbage
+ * collector does not need to trace them. Light sources are addressed by their index. The accessors
+ * follow the names and behaviour of Light, ColorLight and CCTLight, with the index as first argument.
+ * The store does not fire LightEvents.
+ *
+ * Every light source occupies RECORD_SIZE bytes, in native byte order:
+ * <pre>
+ * int state (1 = on, 0 = off)   int intensity   int min intensity   int max intensity
+ * int color (0xRRGGBB)          int cct         int min cct         int max cct
+ * </pre>
+ * Output stages can read the memory directly through getBuffer().
+ */
+public class OffHeapLightStore
+{
+  public static final int RECORD_SIZE    =  32;
+
+  public static final int STATE          =  0;
+  public static final int INTENSITY      =  4;
+  public static final int MIN_INTENSITY  =  8;
+  public static final int MAX_INTENSITY  =  12;
+  public static final int COLOR          =  16;
+  public static final int CCT            =  20;
+  public static final int MIN_CCT        =  24;
+  public static final int MAX_CCT        =  28;
+
+  private final ByteBuffer _buffer;
+  private final int        _lightCount;
+
+  /**
+   * Creates a store for the specified number of light sources. Every light source starts like a new
+   * ColorLight: on, intensity 255 (range 0-255), white, cct 128 (range 0-255).
+   * @param lightCount
+   */
+  public OffHeapLightStore( int lightCount )
+  {
+    if( (long) lightCount * RECORD_SIZE > Integer.MAX_VALUE )
+    {
+      throw new IllegalArgumentException( "An OffHeapLightStore can hold at most " + (Integer.MAX_VALUE / RECORD_SIZE) + " lights" );
+    }
+    this._lightCount  =  lightCount;
+    this._buffer      =  ByteBuffer.allocateDirect( lightCount * RECORD_SIZE ).order( ByteOrder.nativeOrder() );
+    for( int i = 0; i < lightCount; i++ )
+    {
+      int offset  =  i * RECORD_SIZE;
+      this._buffer.putInt( offset + STATE, 1 );
+      this._buffer.putInt( offset + INTENSITY, 255 );
+      this._buffer.putInt( offset + MIN_INTENSITY, 0 );
+      this._buffer.putInt( offset + MAX_INTENSITY, 255 );
+      this._buffer.putInt( offset + COLOR, 0xFFFFFF );
+      this._buffer.putInt( offset + CCT, 128 );
+      this._buffer.putInt( offset + MIN_CCT, 0 );
+      this._buffer.putInt( offset + MAX_CCT, 255 );
+    }
+  }
+
+  /**
+   * Returns the number of light sources in this store.
+   * @return int
+   */
+  public int getLightCount()
+  {
+    return this._lightCount;
+  }
+
+  /**
+   * Returns a read-only view on the memory of this store (native byte order), for output stages.
+   * @return ByteBuffer
+   */
+  public ByteBuffer getBuffer()
+  {
+    return this._buffer.asReadOnlyBuffer().order( ByteOrder.nativeOrder() );
+  }
+
+  private int get( int index, int field )
+  {
+    return this._buffer.getInt( index * RECORD_SIZE + field );
+  }
+  private void put( int index, int field, int value )
+  {
+    this._buffer.putInt( index * RECORD_SIZE + field, value );
+  }
+
+  /**
+   * Sets the state of the light source (on/off). Returns the new state.
+   * @param index
+   * @param state
+   * @return boolean
+   */
+  public boolean setState( int index, boolean state )
+  {
+    this.put( index, STATE, state ? 1 : 0 );
+    return state;
+  }
+  /**
+   * Returns the state of the light source (on = true, off = false).
+   * @param index
+   * @return boolean
+   */
+  public boolean getState( int index )
+  {
+    return this.get( index, STATE ) != 0;
+  }
+  /**
+   * Turns the light source on and sets the intensity to its maximum intensity.
+   * @param index
+   */
+  public void turnOn( int index )
+  {
+    this.put( index, INTENSITY, this.get( index, MAX_INTENSITY ) );
+    this.put( index, STATE, 1 );
+  }
+  /**
+   * Turns the light source off.
+   * @param index
+   */
+  public void turnOff( int index )
+  {
+    this.put( index, STATE, 0 );
+  }
+
+  /**
+   * Sets the intensity of the light source if it is within its range. Returns true if the intensity changed.
+   * @param index
+   * @param intensity
+   * @return boolean
+   */
+  public boolean setIntensity( int index, int intensity )
+  {
+    if( intensity >= this.get( index, MIN_INTENSITY ) &&
+        intensity <= this.get( index, MAX_INTENSITY ) &&
+        intensity != this.get( index, INTENSITY ) )
+    {
+      this.put( index, INTENSITY, intensity );
+      return true;
+    }
+    return false;
+  }
+  /**
+   * Returns the intensity of the light source.
+   * @param index
+   * @return int
+   */
+  public int getIntensity( int index )
+  {
+    return this.get( index, INTENSITY );
+  }
+  /**
+   * Sets the intensity range of the light source.
+   * @param index
+   * @param minIntensity
+   * @param maxIntensity
+   */
+  public void setRange( int index, int minIntensity, int maxIntensity )
+  {
+    this.put( index, MIN_INTENSITY, minIntensity );
+    this.put( index, MAX_INTENSITY, maxIntensity );
+  }
+  /**
+   * Returns the minimum intensity of the light source.
+   * @param index
+   * @return int
+   */
+  public int getMinIntensity( int index )
+  {
+    return this.get( index, MIN_INTENSITY );
+  }
+  /**
+   * Returns the maximum intensity of the light source.
+   * @param index
+   * @return int
+   */
+  public int getMaxIntensity( int index )
+  {
+    return this.get( index, MAX_INTENSITY );
+  }
+
+  /**
+   * Sets the colour of the light source. Returns true if the colour changed.
+   * @param index
+   * @param lightColor
+   * @return boolean
+   */
+  public boolean setColor( int index, int lightColor )
+  {
+    lightColor  &=  0xFFFFFF;
+    if( this.get( index, COLOR ) != lightColor )
+    {
+      this.put( index, COLOR, lightColor );
+      return true;
+    }
+    return false;
+  }
+  /**
+   * Returns the colour of the light source.
+   * @param index
+   * @return int
+   */
+  public int getColor( int index )
+  {
+    return this.get( index, COLOR );
+  }
+  /**
+   * Returns the red value of the colour of the light source.
+   * @param index
+   * @return int
+   */
+  public int getRed( int index )
+  {
+    return this.get( index, COLOR ) >> 16 & 0xFF;
+  }
+  /**
+   * Returns the green value of the colour of the light source.
+   * @param index
+   * @return int
+   */
+  public int getGreen( int index )
+  {
+    return this.get( index, COLOR ) >> 8 & 0xFF;
+  }
+  /**
+   * Returns the blue value of the colour of the light source.
+   * @param index
+   * @return int
+   */
+  public int getBlue( int index )
+  {
+    return this.get( index, COLOR ) & 0xFF;
+  }
+  /**
+   * Sets the colour of the light source from H, S and B values (0-255). Returns the new colour.
+   * @param index
+   * @param hue
+   * @param saturation
+   * @param brightness
+   * @return int
+   */
+  public int setHSB( int index, int hue, int saturation, int brightness )
+  {
+    int lightColor  =  ColorLight.toRGB( hue, saturation, brightness );
+    this.put( index, COLOR, lightColor );
+    return lightColor;
+  }
+  /**
+   * Sets the hue of the colour of the light source, keeping its saturation and brightness. Returns the new colour.
+   * @param index
+   * @param hue
+   * @return int
+   */
+  public int setHue( int index, int hue )
+  {
+    int hsb  =  this.getHSB( index );
+    return this.setHSB( index, hue, hsb >> 8 & 0xFF, hsb & 0xFF );
+  }
+  /**
+   * Returns the hue of the colour of the light source (0-255).
+   * @param index
+   * @return int
+   */
+  public int getHue( int index )
+  {
+    return this.getHSB( index ) >> 16 & 0xFF;
+  }
+  /**
+   * Returns the saturation of the colour of the light source (0-255).
+   * @param index
+   * @return int
+   */
+  public int getSaturation( int index )
+  {
+    return this.getHSB( index ) >> 8 & 0xFF;
+  }
+  /**
+   * Returns the brightness of the colour of the light source (0-255).
+   * @param index
+   * @return int
+   */
+  public int getBrightness( int index )
+  {
+    return this.getHSB( index ) & 0xFF;
+  }
+  private int getHSB( int index )
+  {
+    int lightColor  =  this.get( index, COLOR );
+    return ColorLight.toHSB( lightColor >> 16 & 0xFF, lightColor >> 8 & 0xFF, lightColor & 0xFF );
+  }
+
+  /**
+   * Sets the colour temperature of the light source, constrained to its range.
+   * @param index
+   * @param cct
+   */
+  public void setCCT( int index, int cct )
+  {
+    int min  =  this.get( index, MIN_CCT );
+    int max  =  this.get( index, MAX_CCT );
+    this.put( index, CCT, cct < min ? min : ( cct > max ? max : cct ) );
+  }
+  /**
+   * Returns the colour temperature of the light source.
+   * @param index
+   * @return int
+   */
+  public int getCCT( int index )
+  {
+    return this.get( index, CCT );
+  }
+  /**
+   * Sets the colour temperature range of the light source.
+   * @param index
+   * @param minCCT
+   * @param maxCCT
+   */
+  public void setRangeCCT( int index, int minCCT, int maxCCT )
+  {
+    this.put( index, MIN_CCT, minCCT );
+    this.put( index, MAX_CCT, maxCCT );
+  }
+
+  /**
+   * Sets state, intensity and colour of the light source at once.
+   * @param index
+   * @param state
+   * @param intensity
+   * @param lightColor
+   */
+  public void setParameters( int index, boolean state, int intensity, int lightColor )
+  {
+    this.setState( index, state );
+    this.setIntensity( index, intensity );
+    this.setColor( index, lightColor );
+  }
+
+  /**
+   * Sets the intensity of the light sources from index 'from' (inclusive) to 'to' (exclusive),
+   * constrained to the range of every light source.
+   * @param from
+   * @param to
+   * @param intensity
+   */
+  public void fillIntensity( int from, int to, int intensity )
+  {
+    for( int i = from; i < to; i++ )
+    {
+      int min  =  this.get( i, MIN_INTENSITY );
+      int max  =  this.get( i, MAX_INTENSITY );
+      this.put( i, INTENSITY, intensity < min ? min : ( intensity > max ? max : intensity ) );
+    }
+  }
+  /**
+   * Sets the colour of the light sources from index 'from' (inclusive) to 'to' (exclusive).
+   * @param from
+   * @param to
+   * @param lightColor
+   */
+  public void fillColor( int from, int to, int lightColor )
+  {
+    lightColor  &=  0xFFFFFF;
+    for( int i = from; i < to; i++ )
+    {
+      this.put( i, COLOR, lightColor );
+    }
+  }
+  /**
+   * Sets the state of the light sources from index 'from' (inclusive) to 'to' (exclusive).
+   * @param from
+   * @param to
+   * @param state
+   */
+  public void fillState( int from, int to, boolean state )
+  {
+    int value  =  state ? 1 : 0;
+    for( int i = from; i < to; i++ )
+    {
+      this.put( i, STATE, value );
+    }
+  }
+  /**
+   * Copies colours (0xRRGGBB) from the array into the light sources starting at index 'from'.
+   * @param colors
+   * @param from
+   */
+  public void setColors( int[] colors, int from )
+  {
+    for( int i = 0; i < colors.length; i++ )
+    {
+      this.put( from + i, COLOR, colors[i] & 0xFFFFFF );
+    }
+  }
+  /**
+   * Copies the colours of the light sources starting at index 'from' into the array.
+   * @param from
+   * @param colors
+   */
+  public void getColors( int from, int[] colors )
+  {
+    for( int i = 0; i < colors.length; i++ )
+    {
+      colors[i]  =  this.get( from + i, COLOR );
+    }
+  }
+
+  /**
+   * Writes all light sources into a packed frame (see LightFrame).
+   * @param frame
+   */
+  public void packInto( int[] frame )
+  {
+    for( int i = 0; i < this._lightCount; i++ )
+    {
+      int offset  =  i * LightFrame.STRIDE;
+      frame[offset + LightFrame.STATE]      =  this.get( i, STATE );
+      frame[offset + LightFrame.INTENSITY]  =  this.get( i, INTENSITY );
+      frame[offset + LightFrame.COLOR]      =  this.get( i, COLOR );
+      frame[offset + LightFrame.CCT]        =  this.get( i, CCT );
+    }
+  }
+
+  /**
+   * Copies the state of the light source object into the store at the specified index.
+   * @param light
+   * @param index
+   */
+  public void copyFrom( Light light, int index )
+  {
+    this.setRange( index, light.getMinIntensity(), light.getMaxIntensity() );
+    this.put( index, STATE, light.getState() ? 1 : 0 );
+    this.put( index, INTENSITY, light.getIntensity() );
+    if( light instanceof ColorLight )
+    {
+      this.put( index, COLOR, ((ColorLight) light).getColor() );
+    }
+    else if( light instanceof CCTLight )
+    {
+      CCTLight cctLight  =  (CCTLight) light;
+      this.setRangeCCT( index, cctLight.getMinCCT(), cctLight.getMaxCCT() );
+      this.put( index, CCT, cctLight.getCCT() );
+      this.put( index, COLOR, cctLight.getLightColor() );
+    }
+  }
+  /**
+   * Copies the state of the store at the specified index into the light source object, without
+   * firing events.
+   * @param index
+   * @param light
+   */
+  public void copyTo( int index, Light light )
+  {
+    light.setRange( this.get( index, MIN_INTENSITY ), this.get( index, MAX_INTENSITY ) );
+    light.setState( this.getState( index ), false );
+    light.setIntensity( this.get( index, INTENSITY ), false );
+    if( light instanceof ColorLight )
+    {
+      ((ColorLight) light).setColor( this.get( index, COLOR ), false );
+    }
+    else if( light instanceof CCTLight )
+    {
+      CCTLight cctLight  =  (CCTLight) light;
+      cctLight.setMinCCT( this.get( index, MIN_CCT ) );
+      cctLight.setMaxCCT( this.get( index, MAX_CCT ) );
+      cctLight.setCCT( this.get( index, CCT ), false );
+    }
+  }
+}
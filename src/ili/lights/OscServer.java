@@ -0,0 +1,489 @@
+package ili.lights;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The OscServer receives OSC messages and bundles over UDP and writes them straight into light sources.
+ * Addresses are routed with routes that are compiled when they are added, e.g.
+ * <pre>
+ * server.addRoute( "/light/#/intensity", OscServer.INTENSITY );   // # matches a light id
+ * server.addRoute( "/wash/color", 12, OscServer.COLOR );          // a fixed light id
+ * </pre>
+ * The first argument of a message is the value: an int (i) is used as is (colours as 0xRRGGBB), a float
+ * (f) is a fraction (0-1) of the range of the light source, T and F turn a light source on or off, and an
+ * OSC colour (r) sets the colour.
+ *
+ * Packets are parsed directly from a reused buffer, without creating strings or objects. All updates of a
+ * packet (a bundle may hold many messages) are collected first and then applied together on the server
+ * thread. Messages that do not match a route are counted and ignored, as are packets that fail while
+ * they are applied (e.g. because a listener throws).
+ */
+public class OscServer
+{
+  public static final int STATE      =  1;
+  public static final int INTENSITY  =  2;
+  public static final int COLOR      =  3;
+  public static final int CCT        =  4;
+
+  /** Maximum number of updates applied per packet, further updates in the same packet are dropped **/
+  static final int MAX_UPDATES       =  4096;
+
+  private static final byte[] BUNDLE =  "#bundle".getBytes( StandardCharsets.US_ASCII );
+
+  private final Light[]         _lights;   //Indexed by light id
+  private final DatagramChannel _channel;
+  private final ByteBuffer      _buffer    =  ByteBuffer.allocateDirect( 65536 ).order( ByteOrder.BIG_ENDIAN );
+  private volatile Route[]      _routes    =  new Route[0];
+
+  //Updates of the current packet
+  private final Light[]  _updateLights  =  new Light[MAX_UPDATES];
+  private final int[]    _updateParams  =  new int[MAX_UPDATES];
+  private final int[]    _updateValues  =  new int[MAX_UPDATES];
+  private int            _updateCount   =  0;
+
+  private Thread           _thread;
+  private volatile boolean _running     =  false;
+  private volatile boolean _fireEvents  =  true;
+  private volatile long    _packets     =  0;
+  private volatile long    _messages    =  0;
+  private volatile long    _dropped     =  0;
+
+  /**
+   * Creates a server for the specified light sources, listening on the specified UDP port.
+   * Use port 0 to pick a free port, see getPort().
+   * @param lights
+   * @param port
+   * @throws IOException
+   */
+  public OscServer( List<? extends Light> lights, int port ) throws IOException
+  {
+    int maxID  =  -1;
+    for( Light light : lights )
+    {
+      maxID  =  Math.max( maxID, light.getLightID() );
+    }
+    this._lights  =  new Light[maxID + 1];
+    for( Light light : lights )
+    {
+      if( this._lights[light.getLightID()] != null )
+      {
+        throw new IllegalArgumentException( "Light id " + light.getLightID() + " is used by more than one light source" );
+      }
+      this._lights[light.getLightID()]  =  light;
+    }
+    this._channel  =  DatagramChannel.open();
+    this._channel.bind( new InetSocketAddress( port ) );
+  }
+
+  /**
+   * Routes an address with one '#' (which matches the decimal light id) to a parameter.
+   * @param pattern
+   * @param parameter STATE, INTENSITY, COLOR or CCT
+   */
+  public void addRoute( String pattern, int parameter )
+  {
+    int hash  =  pattern.indexOf( '#' );
+    if( hash < 0 || pattern.indexOf( '#', hash + 1 ) >= 0 )
+    {
+      throw new IllegalArgumentException( "Route pattern " + pattern + " should contain one # for the light id" );
+    }
+    this.addRoute( new Route( pattern.substring( 0, hash ), pattern.substring( hash + 1 ), -1, parameter ) );
+  }
+  /**
+   * Routes an exact address to a parameter of a light id.
+   * @param address
+   * @param lightID
+   * @param parameter STATE, INTENSITY, COLOR or CCT
+   */
+  public void addRoute( String address, int lightID, int parameter )
+  {
+    this.addRoute( new Route( address, "", lightID, parameter ) );
+  }
+  private synchronized void addRoute( Route route )
+  {
+    Route[] routes  =  Arrays.copyOf( this._routes, this._routes.length + 1 );
+    routes[routes.length - 1]  =  route;
+    this._routes  =  routes;
+  }
+
+  /**
+   * Sets whether updates fire a LightEvent (standard true).
+   * @param fireEvents
+   */
+  public void setFireEvents( boolean fireEvents )
+  {
+    this._fireEvents  =  fireEvents;
+  }
+
+  /**
+   * Returns the port this server is listening on.
+   * @return int
+   */
+  public int getPort()
+  {
+    return this._channel.socket().getLocalPort();
+  }
+  /**
+   * Returns the number of packets received.
+   * @return long
+   */
+  public long getPacketCount()
+  {
+    return this._packets;
+  }
+  /**
+   * Returns the number of messages that have been applied.
+   * @return long
+   */
+  public long getMessageCount()
+  {
+    return this._messages;
+  }
+  /**
+   * Returns the number of messages that were ignored: no matching route, unknown light id or malformed.
+   * @return long
+   */
+  public long getDroppedCount()
+  {
+    return this._dropped;
+  }
+
+  /**
+   * Starts receiving in a background thread.
+   */
+  public synchronized void start()
+  {
+    if( this._running )
+    {
+      return;
+    }
+    this._running  =  true;
+    this._thread   =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        OscServer.this.receiveLoop();
+      }
+    }, "OscServer" );
+    this._thread.setDaemon( true );
+    this._thread.start();
+  }
+
+  /**
+   * Stops receiving and closes the socket.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    this._running  =  false;
+    this._channel.close();
+    if( this._thread != null )
+    {
+      try
+      {
+        this._thread.join( 1000 );
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void receiveLoop()
+  {
+    while( this._running )
+    {
+      try
+      {
+        this._buffer.clear();
+        this._channel.receive( this._buffer );
+        this._buffer.flip();
+        this.handlePacket( this._buffer );
+      }
+      catch( ClosedChannelException e )
+      {
+        break;
+      }
+      catch( IOException e )
+      {
+        //A failed receive only loses that packet
+      }
+      catch( RuntimeException e )
+      {
+        //E.g. a failing listener, the rest of the packet is lost but the server keeps receiving
+        this._dropped++;
+        Arrays.fill( this._updateLights, null );
+      }
+    }
+  }
+
+  /**
+   * Parses a packet (a message or a bundle) from the buffer, between its position and limit, and
+   * applies its updates. Returns the number of applied updates.
+   */
+  int handlePacket( ByteBuffer buffer )
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    this._updateCount  =  0;
+    int dropped  =  this.parse( buffer, buffer.position(), buffer.limit() );
+    boolean fire  =  this._fireEvents;
+    for( int u = 0; u < this._updateCount; u++ )
+    {
+      apply( this._updateLights[u], this._updateParams[u], this._updateValues[u], fire );
+      this._updateLights[u]  =  null;
+    }
+    this._packets++;
+    this._messages  +=  this._updateCount;
+    this._dropped   +=  dropped;
+    bulk.finish( "osc packet", this._lights.length, this._updateCount );
+    return this._updateCount;
+  }
+
+  //Parses a message or bundle between start and end; returns the number of dropped messages
+  private int parse( ByteBuffer buffer, int start, int end )
+  {
+    if( end - start >= 16 && this.startsWith( buffer, start, end, BUNDLE ) && buffer.get( start + 7 ) == 0 )
+    {
+      int dropped  =  0;
+      int p        =  start + 16;  //"#bundle\0" and the time tag
+      while( p + 4 <= end )
+      {
+        int size  =  buffer.getInt( p );
+        p  +=  4;
+        if( size < 0 || p + size > end )
+        {
+          return dropped + 1;
+        }
+        dropped  +=  this.parse( buffer, p, p + size );
+        p  +=  size;
+      }
+      return dropped;
+    }
+    return this.parseMessage( buffer, start, end ) ? 0 : 1;
+  }
+
+  private boolean parseMessage( ByteBuffer buffer, int start, int end )
+  {
+    int addressEnd  =  indexOfZero( buffer, start, end );
+    if( addressEnd < 0 )
+    {
+      return false;
+    }
+    int tags  =  pad( addressEnd + 1, start );
+    if( tags >= end || buffer.get( tags ) != ',' )
+    {
+      return false;
+    }
+    int tagsEnd  =  indexOfZero( buffer, tags, end );
+    if( tagsEnd < 0 || tagsEnd == tags + 1 )
+    {
+      return false;
+    }
+    int args  =  pad( tagsEnd + 1, start );
+    byte tag  =  buffer.get( tags + 1 );
+
+    Route[] routes  =  this._routes;
+    for( int r = 0; r < routes.length; r++ )
+    {
+      int lightID  =  routes[r].match( buffer, start, addressEnd );
+      if( lightID < 0 )
+      {
+        continue;
+      }
+      if( lightID >= this._lights.length || this._lights[lightID] == null || this._updateCount == MAX_UPDATES )
+      {
+        return false;
+      }
+      Light light    =  this._lights[lightID];
+      int parameter  =  routes[r]._parameter;
+      int value;
+      switch( tag )
+      {
+        case 'i':
+        case 'r':
+          if( args + 4 > end )
+          {
+            return false;
+          }
+          value  =  buffer.getInt( args );
+          if( tag == 'r' )
+          {
+            value  =  value >>> 8;  //OSC colours are RGBA
+          }
+          break;
+        case 'f':
+          if( args + 4 > end )
+          {
+            return false;
+          }
+          value  =  scale( light, parameter, buffer.getFloat( args ) );
+          break;
+        case 'T':
+          value  =  1;
+          break;
+        case 'F':
+          value  =  0;
+          break;
+        default:
+          return false;
+      }
+      this._updateLights[this._updateCount]  =  light;
+      this._updateParams[this._updateCount]  =  parameter;
+      this._updateValues[this._updateCount]  =  value;
+      this._updateCount++;
+      return true;
+    }
+    return false;
+  }
+
+  //Converts a fraction (0-1) to the range of the parameter of the light source
+  private static int scale( Light light, int parameter, float fraction )
+  {
+    fraction  =  Math.max( 0, Math.min( 1, fraction ) );
+    switch( parameter )
+    {
+      case INTENSITY:
+        return light.getMinIntensity() + Math.round( fraction * (light.getMaxIntensity() - light.getMinIntensity()) );
+      case CCT:
+        if( light instanceof CCTLight )
+        {
+          CCTLight cctLight  =  (CCTLight) light;
+          return cctLight.getMinCCT() + Math.round( fraction * (cctLight.getMaxCCT() - cctLight.getMinCCT()) );
+        }
+        return 0;
+      case COLOR:
+        int level  =  Math.round( fraction * 255 );
+        return level << 16 | level << 8 | level;
+      default:
+        return fraction > 0 ? 1 : 0;
+    }
+  }
+
+  private static void apply( Light light, int parameter, int value, boolean fire )
+  {
+    switch( parameter )
+    {
+      case STATE:
+        light.setState( value != 0, fire );
+        break;
+      case INTENSITY:
+        light.setIntensity( value, fire );
+        break;
+      case COLOR:
+        if( light instanceof ColorLight )
+        {
+          ((ColorLight) light).setColor( value & 0xFFFFFF, fire );
+        }
+        break;
+      case CCT:
+        if( light instanceof CCTLight )
+        {
+          ((CCTLight) light).setCCT( value, fire );
+        }
+        break;
+    }
+  }
+
+  private boolean startsWith( ByteBuffer buffer, int start, int end, byte[] prefix )
+  {
+    if( end - start < prefix.length )
+    {
+      return false;
+    }
+    for( int i = 0; i < prefix.length; i++ )
+    {
+      if( buffer.get( start + i ) != prefix[i] )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOfZero( ByteBuffer buffer, int start, int end )
+  {
+    for( int i = start; i < end; i++ )
+    {
+      if( buffer.get( i ) == 0 )
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  //OSC strings are padded to a multiple of 4 bytes, counted from the start of the message
+  private static int pad( int position, int start )
+  {
+    return start + ((position - start + 3) & ~3);
+  }
+
+  /**
+   * A compiled route: the address bytes before and after the light id, or an exact address.
+   */
+  private static class Route
+  {
+    final byte[] _prefix;
+    final byte[] _suffix;
+    final int    _lightID;    //-1 when the address contains the light id
+    final int    _parameter;
+
+    Route( String prefix, String suffix, int lightID, int parameter )
+    {
+      this._prefix     =  prefix.getBytes( StandardCharsets.US_ASCII );
+      this._suffix     =  suffix.getBytes( StandardCharsets.US_ASCII );
+      this._lightID    =  lightID;
+      this._parameter  =  parameter;
+    }
+
+    //Returns the light id when the address between start and end matches, -1 otherwise
+    int match( ByteBuffer buffer, int start, int end )
+    {
+      int length  =  end - start;
+      if( length < this._prefix.length + this._suffix.length + (this._lightID < 0 ? 1 : 0) )
+      {
+        return -1;
+      }
+      for( int i = 0; i < this._prefix.length; i++ )
+      {
+        if( buffer.get( start + i ) != this._prefix[i] )
+        {
+          return -1;
+        }
+      }
+      int suffixStart  =  end - this._suffix.length;
+      for( int i = 0; i < this._suffix.length; i++ )
+      {
+        if( buffer.get( suffixStart + i ) != this._suffix[i] )
+        {
+          return -1;
+        }
+      }
+      if( this._lightID >= 0 )
+      {
+        return start + this._prefix.length == suffixStart ? this._lightID : -1;
+      }
+      int lightID  =  0;
+      for( int i = start + this._prefix.length; i < suffixStart; i++ )
+      {
+        int digit  =  buffer.get( i ) - '0';
+        if( digit < 0 || digit > 9 || lightID > 100000000 )
+        {
+          return -1;
+        }
+        lightID  =  lightID * 10 + digit;
+      }
+      return lightID;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package ili.lights;
+
+import java.util.Arrays;
+
+/**
+ * The OutputCalibration converts a packed frame (see LightFrame and FrameSnapshot) into calibrated
+ * hardware levels, using the CalibrationProfile of every fixture. It sits between the light model and
+ * the output: the light sources keep their linear values, only the output is corrected.
+ * Lights that are off produce 0 on all channels.
+ *
+ * The output holds three channels (red, green, blue) per light source. apply() writes 16 bit levels
+ * into an int[], apply8() writes 8 bit levels into a byte[] (e.g. a DMX or pixel buffer). Both work on
+ * caller-supplied buffers and do not allocate.
+ */
+public class OutputCalibration
+{
+  /** Number of output channels per light source **/
+  public static final int CHANNELS  =  3;
+
+  private final CalibrationProfile[] _profiles;
+  private final int[] _scratch  =  new int[CHANNELS];
+
+  /**
+   * Creates a calibration stage for the specified number of light sources, all using the identity profile.
+   * @param lightCount
+   */
+  public OutputCalibration( int lightCount )
+  {
+    this._profiles  =  new CalibrationProfile[lightCount];
+    Arrays.fill( this._profiles, CalibrationProfile.IDENTITY );
+  }
+
+  /**
+   * Sets the profile of the light source at the specified index.
+   * @param index
+   * @param profile
+   */
+  public void setProfile( int index, CalibrationProfile profile )
+  {
+    this._profiles[index]  =  profile;
+  }
+  /**
+   * Sets the profile of the light sources from index 'from' (inclusive) to 'to' (exclusive).
+   * @param from
+   * @param to
+   * @param profile
+   */
+  public void setProfile( int from, int to, CalibrationProfile profile )
+  {
+    Arrays.fill( this._profiles, from, to, profile );
+  }
+  /**
+   * Returns the profile of the light source at the specified index.
+   * @param index
+   * @return CalibrationProfile
+   */
+  public CalibrationProfile getProfile( int index )
+  {
+    return this._profiles[index];
+  }
+
+  /**
+   * Returns the number of light sources of this stage.
+   * @return int
+   */
+  public int getLightCount()
+  {
+    return this._profiles.length;
+  }
+
+  /**
+   * Converts the frame into 16 bit levels, CHANNELS values per light source.
+   * @param frame
+   * @param output
+   */
+  public void apply( int[] frame, int[] output )
+  {
+    for( int i = 0; i < this._profiles.length; i++ )
+    {
+      int offset  =  i * LightFrame.STRIDE;
+      if( frame[offset + LightFrame.STATE] == 0 )
+      {
+        output[i * CHANNELS]      =  0;
+        output[i * CHANNELS + 1]  =  0;
+        output[i * CHANNELS + 2]  =  0;
+      }
+      else
+      {
+        this._profiles[i].apply( frame[offset + LightFrame.COLOR], frame[offset + LightFrame.INTENSITY],
+                                 output, i * CHANNELS );
+      }
+    }
+  }
+
+  /**
+   * Converts the frame into 8 bit levels, CHANNELS values per light source. Only one thread at a time
+   * may call this function.
+   * @param frame
+   * @param output
+   */
+  public void apply8( int[] frame, byte[] output )
+  {
+    int[] levels  =  this._scratch;
+    for( int i = 0; i < this._profiles.length; i++ )
+    {
+      int offset  =  i * LightFrame.STRIDE;
+      if( frame[offset + LightFrame.STATE] == 0 )
+      {
+        output[i * CHANNELS]      =  0;
+        output[i * CHANNELS + 1]  =  0;
+        output[i * CHANNELS + 2]  =  0;
+      }
+      else
+      {
+        this._profiles[i].apply( frame[offset + LightFrame.COLOR], frame[offset + LightFrame.INTENSITY], levels, 0 );
+        output[i * CHANNELS]      =  to8( levels[0] );
+        output[i * CHANNELS + 1]  =  to8( levels[1] );
+        output[i * CHANNELS + 2]  =  to8( levels[2] );
+      }
+    }
+  }
+
+  //Rounds a 16 bit level to the nearest 8 bit level (level / 257), so 65535 stays 255 instead of wrapping to 0
+  private static byte to8( int level )
+  {
+    int rounded  =  level + 0x80;
+    return (byte) ((rounded - (rounded >>> 8)) >>> 8);
+  }
+}
@@ -0,0 +1,10 @@
+package ili.lights;
+
+/**
+ * A PartitionTask runs on the thread that owns a partition of a LightPartitions, once per tick of that
+ * partition. It may change the light sources of its partition directly, without locks.
+ */
+public interface PartitionTask
+{
+  public void tick( int partition, Light[] lights );
+}
@@ -0,0 +1,294 @@
+package ili.lights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import processing.core.PImage;
+
+/**
+ * The PixelMapper maps video content (a PImage or an int[] of pixels) onto colour light sources that
+ * are positioned on the image. Every light source takes the average colour of a square area of pixels
+ * around its position. The pixel indices of those areas are computed once, when the mapper is created,
+ * so mapping a frame only needs to add up pixels.
+ *
+ * map() computes the colours of all light sources in parallel on all cores, then sets the colour of the
+ * light sources whose colour changed from the calling thread, without firing events. The light sources
+ * should not be changed by other threads during map().
+ */
+public class PixelMapper
+{
+  private static ExecutorService _sharedPool;
+
+  private final ColorLight[] _lights;
+  private final int     _width;
+  private final int     _height;
+  private final int[]   _tableStart;  //Per light: first entry in _table, the last light ends at _table.length
+  private final int[]   _table;       //Pixel indices of all sampling areas
+  private final long[]  _weights;     //Per light: 2^32 / number of pixels in its area, rounded up
+  private final int[]   _colors;
+  private final int[]   _changed;     //Per slice, from its first light: indices of the changed light sources
+  private final int[]   _changedCount;
+  private final List<Slice> _slices  =  new ArrayList<Slice>();
+  private int[] _pixels;
+
+  /**
+   * Creates a mapper that takes the nearest pixel for every light source.
+   * @param lights
+   * @param x the horizontal position of every light source, in pixels of the source
+   * @param y the vertical position of every light source, in pixels of the source
+   * @param sourceWidth
+   * @param sourceHeight
+   */
+  public PixelMapper( List<? extends ColorLight> lights, float[] x, float[] y, int sourceWidth, int sourceHeight )
+  {
+    this( lights, x, y, sourceWidth, sourceHeight, 1 );
+  }
+  /**
+   * Creates a mapper that averages a square area of 'area' x 'area' pixels around every light source.
+   * Parts of an area outside the source are ignored.
+   * @param lights
+   * @param x the horizontal position of every light source, in pixels of the source
+   * @param y the vertical position of every light source, in pixels of the source
+   * @param sourceWidth
+   * @param sourceHeight
+   * @param area
+   */
+  public PixelMapper( List<? extends ColorLight> lights, float[] x, float[] y, int sourceWidth, int sourceHeight, int area )
+  {
+    this._lights      =  lights.toArray( new ColorLight[lights.size()] );
+    this._width       =  sourceWidth;
+    this._height      =  sourceHeight;
+    this._tableStart  =  new int[this._lights.length + 1];
+    this._weights     =  new long[this._lights.length];
+    this._colors      =  new int[this._lights.length];
+    this._changed     =  new int[this._lights.length];
+    area              =  Math.max( 1, area );
+
+    int[] table  =  new int[this._lights.length * Math.min( area * area, 16 )];
+    int size     =  0;
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._tableStart[i]  =  size;
+      int left    =  Math.round( x[i] - area / 2f );
+      int top     =  Math.round( y[i] - area / 2f );
+      int firstX  =  Math.max( 0, left );
+      int lastX   =  Math.min( sourceWidth, left + area );
+      int firstY  =  Math.max( 0, top );
+      int lastY   =  Math.min( sourceHeight, top + area );
+      if( firstX >= lastX || firstY >= lastY )
+      {
+        //Outside the source: take the nearest pixel
+        firstX  =  Math.max( 0, Math.min( sourceWidth - 1, Math.round( x[i] ) ) );
+        firstY  =  Math.max( 0, Math.min( sourceHeight - 1, Math.round( y[i] ) ) );
+        lastX   =  firstX + 1;
+        lastY   =  firstY + 1;
+      }
+      int count  =  (lastX - firstX) * (lastY - firstY);
+      if( size + count > table.length )
+      {
+        table  =  Arrays.copyOf( table, Math.max( size + count, table.length * 2 ) );
+      }
+      for( int py = firstY; py < lastY; py++ )
+      {
+        for( int px = firstX; px < lastX; px++ )
+        {
+          table[size++]  =  py * sourceWidth + px;
+        }
+      }
+      //Rounded up, so a full area of 255 stays 255 however large the area is
+      this._weights[i]  =  ((1L << 32) + count - 1) / count;
+    }
+    this._tableStart[this._lights.length]  =  size;
+    this._table  =  Arrays.copyOf( table, size );
+
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._colors[i]  =  this._lights[i].getColor();
+    }
+    int threads    =  Runtime.getRuntime().availableProcessors();
+    int sliceSize  =  Math.max( 4096, (this._lights.length + threads - 1) / threads );
+    for( int first = 0; first < this._lights.length; first += sliceSize )
+    {
+      this._slices.add( new Slice( this._slices.size(), first, Math.min( this._lights.length, first + sliceSize ) ) );
+    }
+    this._changedCount  =  new int[this._slices.size()];
+  }
+
+  /**
+   * Maps the pixels of the image onto the light sources. The image must have the source resolution.
+   * Returns the number of light sources whose colour changed.
+   * @param image
+   * @return int
+   */
+  public int map( PImage image )
+  {
+    if( image.width != this._width || image.height != this._height )
+    {
+      throw new IllegalArgumentException( "Image of " + image.width + "x" + image.height +
+                                          " does not match the source resolution " + this._width + "x" + this._height );
+    }
+    image.loadPixels();
+    return this.map( image.pixels );
+  }
+  /**
+   * Maps the pixels (sourceWidth x sourceHeight, row by row, 0xAARRGGBB) onto the light sources.
+   * Returns the number of light sources whose colour changed.
+   * @param pixels
+   * @return int
+   */
+  public synchronized int map( int[] pixels )
+  {
+    if( pixels.length < this._width * this._height )
+    {
+      throw new IllegalArgumentException( "Frame of " + pixels.length + " pixels is smaller than " + this._width + "x" + this._height );
+    }
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    this._pixels  =  pixels;
+    try
+    {
+      if( this._slices.size() == 1 )
+      {
+        this._slices.get( 0 ).call();
+      }
+      else
+      {
+        for( Future<Integer> result : pool().invokeAll( this._slices ) )
+        {
+          result.get();
+        }
+      }
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    catch( ExecutionException e )
+    {
+      throw new RuntimeException( e.getCause() );
+    }
+    finally
+    {
+      this._pixels  =  null;
+    }
+
+    //Light sources are not thread safe, they are updated from the calling thread
+    int updated  =  0;
+    for( Slice slice : this._slices )
+    {
+      int count  =  this._changedCount[slice._number];
+      for( int c = 0; c < count; c++ )
+      {
+        int index  =  this._changed[slice._first + c];
+        this._lights[index].setColor( this._colors[index], false );
+      }
+      updated  +=  count;
+    }
+    bulk.finish( "pixel map", this._lights.length, updated );
+    return updated;
+  }
+
+  /**
+   * Returns the colour of every light source after the last map(). The array is reused by the next map().
+   * @return int[]
+   */
+  public int[] getColors()
+  {
+    return this._colors;
+  }
+  /**
+   * Returns the number of pixels that are sampled per frame.
+   * @return int
+   */
+  public int getSampleCount()
+  {
+    return this._table.length;
+  }
+
+  private static synchronized ExecutorService pool()
+  {
+    if( _sharedPool == null )
+    {
+      _sharedPool  =  Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+      {
+        public Thread newThread( Runnable r )
+        {
+          Thread thread  =  new Thread( r, "PixelMapper" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return _sharedPool;
+  }
+
+  /**
+   * Maps the light sources from 'first' to 'last' and collects the indices that changed.
+   */
+  private class Slice implements Callable<Integer>
+  {
+    final int _number;
+    final int _first;
+    final int _last;
+
+    Slice( int number, int first, int last )
+    {
+      this._number  =  number;
+      this._first   =  first;
+      this._last    =  last;
+    }
+
+    public Integer call()
+    {
+      int[] pixels   =  PixelMapper.this._pixels;
+      int[] table    =  PixelMapper.this._table;
+      int[] start    =  PixelMapper.this._tableStart;
+      long[] weights =  PixelMapper.this._weights;
+      int[] colors   =  PixelMapper.this._colors;
+      int[] changed  =  PixelMapper.this._changed;
+      int count      =  0;
+      for( int i = this._first; i < this._last; i++ )
+      {
+        int first  =  start[i];
+        int last   =  start[i + 1];
+        int color;
+        if( last - first == 1 )
+        {
+          color  =  pixels[table[first]] & 0xFFFFFF;
+        }
+        else
+        {
+          int red    =  0;
+          int green  =  0;
+          int blue   =  0;
+          for( int p = first; p < last; p++ )
+          {
+            int pixel  =  pixels[table[p]];
+            red    +=  pixel >> 16 & 0xFF;
+            green  +=  pixel >> 8 & 0xFF;
+            blue   +=  pixel & 0xFF;
+          }
+          long weight  =  weights[i];
+          color  =  (int) ((red * weight + 0x80000000L) >>> 32) << 16 |
+                    (int) ((green * weight + 0x80000000L) >>> 32) << 8 |
+                    (int) ((blue * weight + 0x80000000L) >>> 32);
+        }
+        if( colors[i] != color )
+        {
+          colors[i]  =  color;
+          changed[this._first + count++]  =  i;
+        }
+      }
+      PixelMapper.this._changedCount[this._number]  =  count;
+      return count;
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package ili.lights;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The PowerMonitor estimates the power drawn by a collection of light sources and limits it to a
+ * budget. Every light source has a power model: the watts of its red, green and blue channel at full
+ * colour and maximum intensity (a light source without colour uses the sum of its channels). The
+ * monitor tracks the light sources (see LightTracker), so it also sees changes that do not fire an event,
+ * such as scene recalls, pixel mapping and merged output. It keeps a running total per circuit and for
+ * the whole collection, updated from the change of a single light source instead of by adding up all of them.
+ *
+ * When a budget is exceeded, the monitor computes a scale factor (global or per circuit). limit()
+ * applies that factor to the intensities of a packed output frame (see LightFrame), so the light
+ * sources themselves keep their values.
+ */
+public class PowerMonitor implements LightTracker
+{
+  private final Light[] _lights;
+  private final IdentityHashMap<Light, Integer> _indices  =  new IdentityHashMap<Light, Integer>();
+
+  //Power model per light source, in milliwatts at full colour and maximum intensity
+  private final int[]   _red;
+  private final int[]   _green;
+  private final int[]   _blue;
+  private final int[]   _circuits;
+  private final long[]  _lightDraw;      //Current draw per light source (mW)
+
+  private long[]  _circuitDraw     =  new long[1];
+  private long[]  _circuitBudget   =  new long[1];
+  private int[]   _circuitScale    =  { 65536 };
+  private long    _totalDraw       =  0;
+  private long    _peak            =  0;
+  private long    _budget          =  0;  //0 for no budget
+  private int     _scale           =  65536;
+
+  /**
+   * Creates a power monitor for the specified light sources and starts tracking them. All light
+   * sources are on circuit 0 and draw no power until their model is set.
+   * @param lights
+   */
+  public PowerMonitor( List<? extends Light> lights )
+  {
+    this._lights    =  lights.toArray( new Light[lights.size()] );
+    this._red       =  new int[this._lights.length];
+    this._green     =  new int[this._lights.length];
+    this._blue      =  new int[this._lights.length];
+    this._circuits  =  new int[this._lights.length];
+    this._lightDraw  =  new long[this._lights.length];
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this._indices.put( this._lights[i], i );
+      this._lights[i].addLightTracker( this );
+    }
+  }
+
+  /**
+   * Stops tracking the light sources.
+   */
+  public void close()
+  {
+    for( Light light : this._lights )
+    {
+      light.removeLightTracker( this );
+    }
+  }
+
+  /**
+   * Sets the power model of all light sources.
+   * @param red watts of the red channel at full colour and maximum intensity
+   * @param green watts of the green channel
+   * @param blue watts of the blue channel
+   */
+  public void setWatts( float red, float green, float blue )
+  {
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this.setWatts( i, red, green, blue );
+    }
+  }
+  /**
+   * Sets the power model of the light source at the specified index.
+   * @param index
+   * @param red watts of the red channel at full colour and maximum intensity
+   * @param green watts of the green channel
+   * @param blue watts of the blue channel
+   */
+  public synchronized void setWatts( int index, float red, float green, float blue )
+  {
+    this._red[index]    =  Math.round( red * 1000 );
+    this._green[index]  =  Math.round( green * 1000 );
+    this._blue[index]   =  Math.round( blue * 1000 );
+    this.update( index );
+  }
+  /**
+   * Sets the power model of a light source without colour: the watts at maximum intensity.
+   * @param index
+   * @param watts
+   */
+  public void setWatts( int index, float watts )
+  {
+    this.setWatts( index, watts, 0, 0 );
+  }
+
+  /**
+   * Puts the light source at the specified index on a circuit (standard 0). Every circuit can have its own budget.
+   * @param index
+   * @param circuit
+   */
+  public synchronized void setCircuit( int index, int circuit )
+  {
+    if( circuit >= this._circuitDraw.length )
+    {
+      int count  =  circuit + 1;
+      this._circuitDraw    =  Arrays.copyOf( this._circuitDraw, count );
+      this._circuitBudget  =  Arrays.copyOf( this._circuitBudget, count );
+      int[] scale  =  Arrays.copyOf( this._circuitScale, count );
+      Arrays.fill( scale, this._circuitScale.length, count, 65536 );
+      this._circuitScale   =  scale;
+    }
+    int previous  =  this._circuits[index];
+    this._circuitDraw[previous]  -=  this._lightDraw[index];
+    this._circuits[index]  =  circuit;
+    this._circuitDraw[circuit]  +=  this._lightDraw[index];
+    this.updateCircuitScale( previous );
+    this.updateCircuitScale( circuit );
+  }
+
+  /**
+   * Sets the maximum power (watts) of all light sources together. Use 0 for no budget (standard).
+   * @param watts
+   */
+  public synchronized void setBudget( float watts )
+  {
+    this._budget  =  Math.round( watts * 1000 );
+    this.updateScale();
+  }
+  /**
+   * Sets the maximum power (watts) of a circuit. Use 0 for no budget (standard).
+   * @param circuit
+   * @param watts
+   */
+  public synchronized void setCircuitBudget( int circuit, float watts )
+  {
+    this._circuitBudget[circuit]  =  Math.round( watts * 1000 );
+    this.updateCircuitScale( circuit );
+  }
+
+  /**
+   * Updates the draw of the light source that changed.
+   */
+  public void lightChanged( Light light )
+  {
+    Integer index  =  this._indices.get( light );
+    if( index != null )
+    {
+      this.update( index );
+    }
+  }
+
+  /**
+   * Updates the draw of the light source at the specified index, e.g. after changing its power model.
+   * @param index
+   */
+  public synchronized void update( int index )
+  {
+    long draw   =  this.estimate( index );
+    long delta  =  draw - this._lightDraw[index];
+    if( delta != 0 )
+    {
+      int circuit  =  this._circuits[index];
+      this._lightDraw[index]  =  draw;
+      this._totalDraw        +=  delta;
+      this._circuitDraw[circuit]  +=  delta;
+      this._peak  =  Math.max( this._peak, this._totalDraw );
+      this.updateScale();
+      this.updateCircuitScale( circuit );
+    }
+  }
+  /**
+   * Recomputes the draw of all light sources.
+   */
+  public synchronized void recalculate()
+  {
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      this.update( i );
+    }
+  }
+
+  //Draw (mW) of a light source from its current state, intensity and colour
+  private long estimate( int index )
+  {
+    Light light  =  this._lights[index];
+    if( !light.getState() || light.getMaxIntensity() <= 0 )
+    {
+      return 0;
+    }
+    long channels;
+    if( light instanceof ColorLight )
+    {
+      ColorLight colorLight  =  (ColorLight) light;
+      channels  =  ((long) colorLight.getRed() * this._red[index] +
+                    (long) colorLight.getGreen() * this._green[index] +
+                    (long) colorLight.getBlue() * this._blue[index]) / 255;
+    }
+    else
+    {
+      channels  =  (long) this._red[index] + this._green[index] + this._blue[index];
+    }
+    return channels * Math.max( 0, light.getIntensity() ) / light.getMaxIntensity();
+  }
+
+  private void updateScale()
+  {
+    this._scale  =  this._budget > 0 && this._totalDraw > this._budget ? (int) ((this._budget << 16) / this._totalDraw) : 65536;
+  }
+  private void updateCircuitScale( int circuit )
+  {
+    long budget  =  this._circuitBudget[circuit];
+    long draw    =  this._circuitDraw[circuit];
+    this._circuitScale[circuit]  =  budget > 0 && draw > budget ? (int) ((budget << 16) / draw) : 65536;
+  }
+
+  /**
+   * Scales the intensities of a packed frame of these light sources (see LightFrame, same order as the
+   * list passed to the constructor) so every circuit and the total stay within their budget.
+   * @param frame
+   */
+  public synchronized void limit( int[] frame )
+  {
+    int global  =  this._scale;
+    for( int i = 0; i < this._lights.length; i++ )
+    {
+      int scale  =  Math.min( global, this._circuitScale[this._circuits[i]] );
+      if( scale < 65536 )
+      {
+        int offset  =  i * LightFrame.STRIDE + LightFrame.INTENSITY;
+        frame[offset]  =  (int) ((long) frame[offset] * scale >> 16);
+      }
+    }
+  }
+
+  /**
+   * Returns the estimated power (watts) of all light sources together, before limiting.
+   * @return float
+   */
+  public synchronized float getPower()
+  {
+    return this._totalDraw / 1000f;
+  }
+  /**
+   * Returns the estimated power (watts) of a circuit, before limiting.
+   * @param circuit
+   * @return float
+   */
+  public synchronized float getCircuitPower( int circuit )
+  {
+    return circuit < this._circuitDraw.length ? this._circuitDraw[circuit] / 1000f : 0;
+  }
+  /**
+   * Returns the estimated power (watts) of the light source at the specified index.
+   * @param index
+   * @return float
+   */
+  public synchronized float getPower( int index )
+  {
+    return this._lightDraw[index] / 1000f;
+  }
+  /**
+   * Returns the highest total power (watts) since the monitor was created.
+   * @return float
+   */
+  public synchronized float getPeakPower()
+  {
+    return this._peak / 1000f;
+  }
+  /**
+   * Returns the estimated power (watts) of all light sources together, after limiting.
+   * @return float
+   */
+  public synchronized float getLimitedPower()
+  {
+    long limited  =  0;
+    for( int c = 0; c < this._circuitDraw.length; c++ )
+    {
+      limited  +=  this._circuitDraw[c] * Math.min( this._scale, this._circuitScale[c] ) >> 16;
+    }
+    return limited / 1000f;
+  }
+  /**
+   * Returns the global scale factor (0-1) that limit() applies.
+   * @return float
+   */
+  public synchronized float getScale()
+  {
+    return this._scale / 65536f;
+  }
+  /**
+   * Returns the scale factor (0-1) of a circuit, without the global scale factor.
+   * @param circuit
+   * @return float
+   */
+  public synchronized float getCircuitScale( int circuit )
+  {
+    return circuit < this._circuitScale.length ? this._circuitScale[circuit] / 65536f : 1;
+  }
+}
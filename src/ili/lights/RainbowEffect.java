@@ -0,0 +1,59 @@
+package ili.lights;
+
+/**
+ * The RainbowEffect sweeps the hue over the group, like calling setHue() on every light source with
+ * a hue that depends on its position and the time.
+ */
+public class RainbowEffect extends Effect
+{
+  private static final int[] HUES  =  new int[256];
+  static
+  {
+    for( int h = 0; h < 256; h++ )
+    {
+      HUES[h]  =  ColorLight.toRGB( h, 255, 255 );
+    }
+  }
+
+  private volatile float _speed;
+  private volatile int   _spread;  //Hue cycles over the group, 8.8 fixed point
+
+  /**
+   * Creates a rainbow.
+   * @param speed the number of hue cycles per second
+   * @param spread the number of hue cycles over the group (e.g. 1 shows every hue once)
+   */
+  public RainbowEffect( float speed, float spread )
+  {
+    this.setSpeed( speed );
+    this.setSpread( spread );
+  }
+
+  /**
+   * Sets the number of hue cycles per second.
+   * @param speed
+   */
+  public void setSpeed( float speed )
+  {
+    this._speed  =  speed;
+  }
+  /**
+   * Sets the number of hue cycles over the group.
+   * @param spread
+   */
+  public void setSpread( float spread )
+  {
+    this._spread  =  Math.round( spread * 256 );
+  }
+
+  protected void render( float time, int[] positions, int[] colors, int first, int last )
+  {
+    int spread  =  this._spread;
+    int offset  =  (int) ((long) Math.floor( time * this._speed * 65536 ) & 0xFFFF);
+    for( int i = first; i < last; i++ )
+    {
+      int hue    =  (int) (((long) positions[i] * spread >> 8) + offset);
+      colors[i]  =  HUES[hue >> 8 & 0xFF];
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package ili.lights;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * The ReplicaReceiver listens for a LightReplicator and applies the received changes to its own
+ * light sources. Changes are applied without firing LightEvents. When a message is missing (the
+ * sequence number skips) the receiver ignores all deltas until the next full resync arrives. Malformed
+ * messages are counted as protocol errors and handled the same way: the receiver drops deltas until the
+ * next full resync, so a bad message never leaves the light sources half updated.
+ * The receiver runs its own thread, call start() to begin listening and close() to stop.
+ */
+public class ReplicaReceiver
+{
+  private final Light[] _lights;
+  private final ServerSocketChannel _server;
+  private final ByteBuffer _lengthBuffer  =  ByteBuffer.allocate( 4 );
+  private ByteBuffer       _buffer;
+
+  private Thread           _thread;
+  private volatile boolean _running       =  false;
+  private volatile long    _sequence      =  0;
+  private volatile boolean _inSync        =  false;
+  private volatile long    _appliedCount  =  0;
+  private volatile long    _errorCount    =  0;
+
+  /**
+   * Creates a new receiver for the specified light sources, listening on the specified port.
+   * Use port 0 to pick a free port, see getPort().
+   * @param lights
+   * @param port
+   * @throws IOException
+   */
+  public ReplicaReceiver( List<? extends Light> lights, int port ) throws IOException
+  {
+    this._lights  =  lights.toArray( new Light[lights.size()] );
+    this._buffer  =  ByteBuffer.allocateDirect( LightReplicator.HEADER_SIZE + this._lights.length * (5 + 4 * LightFrame.STRIDE) );
+    this._server  =  ServerSocketChannel.open();
+    this._server.socket().bind( new InetSocketAddress( port ) );
+  }
+
+  /**
+   * Returns the port this receiver is listening on.
+   * @return int
+   */
+  public int getPort()
+  {
+    return this._server.socket().getLocalPort();
+  }
+
+  /**
+   * Starts accepting replicators in a background thread.
+   */
+  public synchronized void start()
+  {
+    if( this._running )
+    {
+      return;
+    }
+    this._running  =  true;
+    this._thread   =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        ReplicaReceiver.this.acceptLoop();
+      }
+    }, "ReplicaReceiver" );
+    this._thread.setDaemon( true );
+    this._thread.start();
+  }
+
+  /**
+   * Stops listening and closes the connection.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    this._running  =  false;
+    this._server.close();
+    if( this._thread != null )
+    {
+      try
+      {
+        this._thread.join( 1000 );
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence number of the last applied message.
+   * @return long
+   */
+  public long getSequence()
+  {
+    return this._sequence;
+  }
+  /**
+   * Returns true when all messages since the last full resync have been received.
+   * @return boolean
+   */
+  public boolean isInSync()
+  {
+    return this._inSync;
+  }
+  /**
+   * Returns the number of messages that have been applied.
+   * @return long
+   */
+  public long getAppliedCount()
+  {
+    return this._appliedCount;
+  }
+  /**
+   * Returns the number of messages that were dropped because they were malformed.
+   * @return long
+   */
+  public long getErrorCount()
+  {
+    return this._errorCount;
+  }
+
+  private void acceptLoop()
+  {
+    while( this._running )
+    {
+      SocketChannel channel  =  null;
+      try
+      {
+        channel        =  this._server.accept();
+        this._inSync   =  false;
+        while( this._running )
+        {
+          this.readMessage( channel );
+          try
+          {
+            this.applyMessage();
+          }
+          catch( RuntimeException e )
+          {
+            //Truncated message or failing light source, resync
+            this._errorCount++;
+            this._inSync  =  false;
+          }
+        }
+      }
+      catch( IOException e )
+      {
+        //The replicator disconnected or the server was closed, wait for the next replicator
+        this._inSync  =  false;
+      }
+      finally
+      {
+        if( channel != null )
+        {
+          try
+          {
+            channel.close();
+          }
+          catch( IOException e ) { }
+        }
+      }
+    }
+  }
+
+  private void readMessage( SocketChannel channel ) throws IOException
+  {
+    this._lengthBuffer.clear();
+    readFully( channel, this._lengthBuffer );
+    int length  =  this._lengthBuffer.getInt( 0 );
+    if( length < 0 || length > this._buffer.capacity() )
+    {
+      throw new IOException( "Replication message of " + length + " bytes exceeds the light collection" );
+    }
+    this._buffer.clear();
+    this._buffer.limit( length );
+    readFully( channel, this._buffer );
+    this._buffer.flip();
+  }
+
+  private static void readFully( SocketChannel channel, ByteBuffer buffer ) throws IOException
+  {
+    while( buffer.hasRemaining() )
+    {
+      if( channel.read( buffer ) < 0 )
+      {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private void applyMessage()
+  {
+    ByteBuffer buffer  =  this._buffer;
+    if( buffer.remaining() < LightReplicator.HEADER_SIZE || !this.isValid( buffer ) )
+    {
+      this._errorCount++;
+      this._inSync  =  false;
+      return;
+    }
+    byte type          =  buffer.get();
+    long sequence      =  buffer.getLong();
+    int records        =  buffer.getInt();
+
+    if( type == LightReplicator.FULL )
+    {
+      this._inSync  =  true;
+    }
+    else if( sequence != this._sequence + 1 )
+    {
+      this._inSync  =  false;
+    }
+    this._sequence  =  sequence;
+    if( !this._inSync )
+    {
+      return;
+    }
+
+    for( int r = 0; r < records; r++ )
+    {
+      int index  =  buffer.getInt();
+      int mask   =  buffer.get();
+      Light light  =  this._lights[index];
+      if( (mask & (1 << LightFrame.STATE)) != 0 )
+      {
+        light.setState( buffer.getInt() != 0, false );
+      }
+      if( (mask & (1 << LightFrame.INTENSITY)) != 0 )
+      {
+        light.setIntensity( buffer.getInt(), false );
+      }
+      if( (mask & (1 << LightFrame.COLOR)) != 0 )
+      {
+        int color  =  buffer.getInt();
+        if( light instanceof ColorLight )
+        {
+          ((ColorLight) light).setColor( color, false );
+        }
+      }
+      if( (mask & (1 << LightFrame.CCT)) != 0 )
+      {
+        int cct  =  buffer.getInt();
+        if( light instanceof CCTLight )
+        {
+          ((CCTLight) light).setCCT( cct, false );
+        }
+      }
+    }
+    this._appliedCount++;
+  }
+
+  //Checks the type, the record count and every record (index, mask and length) before anything is applied
+  private boolean isValid( ByteBuffer buffer )
+  {
+    int start     =  buffer.position();
+    byte type     =  buffer.get( start );
+    int records   =  buffer.getInt( start + 9 );
+    if( (type != LightReplicator.DELTA && type != LightReplicator.FULL) || records < 0 || records > this._lights.length )
+    {
+      return false;
+    }
+    int position  =  start + LightReplicator.HEADER_SIZE;
+    for( int r = 0; r < records; r++ )
+    {
+      if( buffer.limit() - position < 5 )
+      {
+        return false;
+      }
+      int index  =  buffer.getInt( position );
+      int mask   =  buffer.get( position + 4 );
+      if( index < 0 || index >= this._lights.length || (mask & ~LightReplicator.ALL_FIELDS) != 0 )
+      {
+        return false;
+      }
+      position  +=  5 + 4 * Integer.bitCount( mask );
+    }
+    return position == buffer.limit();
+  }
+}
@@ -0,0 +1,297 @@
+package ili.lights;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The SceneStore captures the state of a collection of light sources as named scenes (presets) and
+ * recalls them. A scene is stored as packed chunks (see LightFrame) of CHUNK_LIGHTS light sources.
+ * Identical chunks are stored only once and shared by all scenes that contain them, so scenes that
+ * only differ in a few light sources take little memory.
+ *
+ * Recalling a scene restores only the light sources that differ from the scene, without firing a
+ * LightEvent per light source. Instead, the store fires a single LightEvent.SCENE event to its own
+ * listeners; the source of that event is the SceneStore.
+ */
+public class SceneStore
+{
+  /** Number of light sources per chunk **/
+  public static final int CHUNK_LIGHTS  =  16;
+
+  private final Light[] _lights;
+  private final int[]   _scratch;
+  private final HashMap<Chunk, Chunk>   _chunks  =  new HashMap<Chunk, Chunk>();
+  private final HashMap<String, Chunk[]> _scenes  =  new HashMap<String, Chunk[]>();
+  private String _currentScene  =  null;
+
+  ArrayList<LightListener> _lightListeners  =  new ArrayList<LightListener>();
+
+  /**
+   * Creates a new scene store for the specified light sources.
+   * @param lights
+   */
+  public SceneStore( List<? extends Light> lights )
+  {
+    this._lights   =  lights.toArray( new Light[lights.size()] );
+    this._scratch  =  new int[LightFrame.size( this._lights.length )];
+  }
+
+  /**
+   * Captures the current state of all light sources as a scene with the specified name. An existing
+   * scene with the same name is replaced.
+   * @param name
+   */
+  public synchronized void capture( String name )
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    LightFrame.packAll( this._lights, this._scratch );
+    int chunkInts  =  CHUNK_LIGHTS * LightFrame.STRIDE;
+    Chunk[] scene  =  new Chunk[(this._scratch.length + chunkInts - 1) / chunkInts];
+    Chunk probe    =  new Chunk( this._scratch, 0, 0 );
+    for( int c = 0; c < scene.length; c++ )
+    {
+      probe._offset  =  c * chunkInts;
+      probe._length  =  Math.min( chunkInts, this._scratch.length - probe._offset );
+      probe._hash    =  probe.computeHash();
+      Chunk chunk    =  this._chunks.get( probe );
+      if( chunk == null )
+      {
+        int[] data   =  new int[probe._length];
+        System.arraycopy( this._scratch, probe._offset, data, 0, probe._length );
+        chunk        =  new Chunk( data, 0, probe._length );
+        this._chunks.put( chunk, chunk );
+      }
+      chunk._references++;
+      scene[c]       =  chunk;
+    }
+    this.release( this._scenes.put( name, scene ) );
+    bulk.finish( "scene capture", this._lights.length, this._lights.length );
+  }
+
+  /**
+   * Restores the state of all light sources to the scene with the specified name and fires a
+   * LightEvent.SCENE event. Returns the number of light sources that changed, or -1 if there is no
+   * scene with this name.
+   * @param name
+   * @return int
+   */
+  public int recall( String name )
+  {
+    BulkOperationEvent bulk  =  new BulkOperationEvent();
+    bulk.begin();
+    int changed  =  0;
+    synchronized( this )
+    {
+      Chunk[] scene  =  this._scenes.get( name );
+      if( scene == null )
+      {
+        return -1;
+      }
+      for( int c = 0; c < scene.length; c++ )
+      {
+        int[] data  =  scene[c]._data;
+        int first   =  c * CHUNK_LIGHTS;
+        for( int i = 0; i < data.length / LightFrame.STRIDE; i++ )
+        {
+          Light light  =  this._lights[first + i];
+          if( !LightFrame.matches( data, i, light ) )
+          {
+            LightFrame.unpack( data, i, light, false );
+            changed++;
+          }
+        }
+      }
+      this._currentScene  =  name;
+    }
+    bulk.finish( "scene recall", this._lights.length, changed );
+    this.fireLightEvent( LightEvent.SCENE );
+    return changed;
+  }
+
+  /**
+   * Copies the scene with the specified name into a packed frame (see LightFrame), e.g. to crossfade
+   * between scenes. Returns false if there is no scene with this name.
+   * @param name
+   * @param frame
+   * @return boolean
+   */
+  public synchronized boolean getScene( String name, int[] frame )
+  {
+    Chunk[] scene  =  this._scenes.get( name );
+    if( scene == null )
+    {
+      return false;
+    }
+    int offset  =  0;
+    for( Chunk chunk : scene )
+    {
+      System.arraycopy( chunk._data, 0, frame, offset, chunk._data.length );
+      offset  +=  chunk._data.length;
+    }
+    return true;
+  }
+
+  /**
+   * Removes the scene with the specified name. Returns true if the scene existed.
+   * @param name
+   * @return boolean
+   */
+  public synchronized boolean remove( String name )
+  {
+    Chunk[] scene  =  this._scenes.remove( name );
+    this.release( scene );
+    return scene != null;
+  }
+
+  /**
+   * Returns true if a scene with the specified name exists.
+   * @param name
+   * @return boolean
+   */
+  public synchronized boolean hasScene( String name )
+  {
+    return this._scenes.containsKey( name );
+  }
+  /**
+   * Returns the names of all scenes.
+   * @return Set<String>
+   */
+  public synchronized Set<String> getSceneNames()
+  {
+    return new TreeSet<String>( this._scenes.keySet() );
+  }
+  /**
+   * Returns the name of the scene that was recalled last, or null.
+   * @return String
+   */
+  public String getCurrentScene()
+  {
+    return this._currentScene;
+  }
+  /**
+   * Returns the number of distinct chunks stored for all scenes together.
+   * @return int
+   */
+  public synchronized int getChunkCount()
+  {
+    return this._chunks.size();
+  }
+  /**
+   * Returns the approximate number of bytes used by the stored scene data.
+   * @return long
+   */
+  public synchronized long getMemoryUsage()
+  {
+    long bytes  =  0;
+    for( Chunk chunk : this._chunks.keySet() )
+    {
+      bytes  +=  chunk._data.length * 4L;
+    }
+    for( Chunk[] scene : this._scenes.values() )
+    {
+      bytes  +=  scene.length * 4L;
+    }
+    return bytes;
+  }
+
+  private void release( Chunk[] scene )
+  {
+    if( scene == null )
+    {
+      return;
+    }
+    for( Chunk chunk : scene )
+    {
+      chunk._references--;
+      if( chunk._references == 0 )
+      {
+        this._chunks.remove( chunk );
+      }
+    }
+  }
+
+  /**  Adds an object to listen to this scene store  **/
+  public synchronized void addLightListener( LightListener l )
+  {
+    _lightListeners.add( l );
+  }
+  /**  Removes an object to listen to this scene store  **/
+  public synchronized void removeLightListener( LightListener l )
+  {
+    _lightListeners.remove( l );
+  }
+  /**  Fires an event from this scene store  **/
+  protected synchronized void fireLightEvent( int eventType )
+  {
+    LightEvent event = new LightEvent( this, eventType );
+
+    //Loop by index, an Iterator would be allocated for every event
+    for( int i = 0; i < _lightListeners.size(); i++ )
+    {
+      LightListener listener        =  _lightListeners.get( i );
+      ListenerDispatchEvent timing  =  ListenerDispatchEvent.start();
+      listener.lightEventReceived( event );
+      ListenerDispatchEvent.finish( timing, event, listener );
+    }
+  }
+
+  /**
+   * A range of packed light values that can be shared between scenes. Equality is based on the values.
+   */
+  private static class Chunk
+  {
+    final int[] _data;
+    int _offset;
+    int _length;
+    int _hash;
+    int _references  =  0;
+
+    Chunk( int[] data, int offset, int length )
+    {
+      this._data    =  data;
+      this._offset  =  offset;
+      this._length  =  length;
+      this._hash    =  this.computeHash();
+    }
+
+    int computeHash()
+    {
+      int hash  =  1;
+      for( int i = this._offset; i < this._offset + this._length; i++ )
+      {
+        hash  =  31 * hash + this._data[i];
+      }
+      return hash;
+    }
+
+    public int hashCode()
+    {
+      return this._hash;
+    }
+
+    public boolean equals( Object other )
+    {
+      if( !(other instanceof Chunk) )
+      {
+        return false;
+      }
+      Chunk chunk  =  (Chunk) other;
+      if( chunk._length != this._length || chunk._hash != this._hash )
+      {
+        return false;
+      }
+      for( int i = 0; i < this._length; i++ )
+      {
+        if( this._data[this._offset + i] != chunk._data[chunk._offset + i] )
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package ili.lights;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * The SharedLightTable shares the state of light sources between processes (e.g. a Processing sketch
+ * and a headless output daemon) through a memory-mapped file. Both processes open the same file; the
+ * writing process attaches its light sources, which then update their record through the normal
+ * setters. The reading process reads consistent values directly from memory with read() or copyTo().
+ *
+ * The file starts with a HEADER_SIZE byte header, followed by one RECORD_SIZE byte record per light
+ * id (0 to capacity - 1), in native byte order:
+ * <pre>
+ * int sequence   (odd while the record is being written)
+ * int type       (0 = empty, 1 = Light, 2 = ColorLight, 3 = CCTLight)
+ * int state      int intensity    int min intensity   int max intensity
+ * int color      int cct
+ * </pre>
+ * Every record is protected by a seqlock: the writer makes the sequence odd, writes the values and
+ * makes it even again, and a reader retries until it read the same even sequence before and after the
+ * values. There should be only one writing process per light id. When a record stays odd for longer
+ * than READ_TIMEOUT (e.g. the writing process died while writing it), read() throws an
+ * IllegalStateException instead of waiting forever.
+ */
+public class SharedLightTable implements LightTracker
+{
+  public static final int HEADER_SIZE    =  64;
+  public static final int RECORD_SIZE    =  32;
+
+  public static final int SEQUENCE       =  0;
+  public static final int TYPE           =  1;
+  public static final int STATE          =  2;
+  public static final int INTENSITY      =  3;
+  public static final int MIN_INTENSITY  =  4;
+  public static final int MAX_INTENSITY  =  5;
+  public static final int COLOR          =  6;
+  public static final int CCT            =  7;
+
+  /** Number of int fields per record, the size of the array passed to read() **/
+  public static final int FIELDS         =  RECORD_SIZE / 4;
+
+  /** Time (ms) a reader waits for a record that is being written **/
+  public static final long READ_TIMEOUT  =  1000;
+
+  static final int MAGIC                 =  0x494C4931;  //"ILI1"
+
+  private static final VarHandle INT     =  MethodHandles.byteBufferViewVarHandle( int[].class, ByteOrder.nativeOrder() );
+
+  private final RandomAccessFile _file;
+  private final MappedByteBuffer _buffer;
+  private final int              _capacity;
+
+  /**
+   * Opens (or creates) the shared table in the specified file, with room for light ids 0 to capacity - 1.
+   * Both processes must use the same capacity.
+   * @param file
+   * @param capacity
+   * @throws IOException
+   */
+  public SharedLightTable( File file, int capacity ) throws IOException
+  {
+    this._capacity  =  capacity;
+    this._file      =  new RandomAccessFile( file, "rw" );
+    long size       =  HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    this._buffer    =  this._file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+    this._buffer.order( ByteOrder.nativeOrder() );
+    int magic       =  this._buffer.getInt( 0 );
+    if( magic == 0 )
+    {
+      this._buffer.putInt( 4, RECORD_SIZE );
+      this._buffer.putInt( 8, capacity );
+      INT.setRelease( this._buffer, 0, MAGIC );
+    }
+    else if( magic != MAGIC || this._buffer.getInt( 8 ) != capacity )
+    {
+      this._file.close();
+      throw new IOException( file + " is not a shared light table with capacity " + capacity );
+    }
+  }
+
+  /**
+   * Returns the number of light ids this table can hold.
+   * @return int
+   */
+  public int getCapacity()
+  {
+    return this._capacity;
+  }
+
+  /**
+   * Writes the state of the light source into the table and keeps it up to date by tracking its
+   * changes, with or without events.
+   * @param light
+   */
+  public void attach( Light light )
+  {
+    this.write( light );
+    light.addLightTracker( this );
+  }
+  /**
+   * Attaches all specified light sources.
+   * @param lights
+   */
+  public void attach( List<? extends Light> lights )
+  {
+    for( Light light : lights )
+    {
+      this.attach( light );
+    }
+  }
+  /**
+   * Stops updating the table for the light source.
+   * @param light
+   */
+  public void detach( Light light )
+  {
+    light.removeLightTracker( this );
+  }
+
+  /**
+   * Updates the record of the changed light source. Called by the attached light sources.
+   */
+  public void lightChanged( Light light )
+  {
+    this.write( light );
+  }
+
+  /**
+   * Writes the current state of the light source into the record of its light id.
+   * @param light
+   */
+  public void write( Light light )
+  {
+    int offset    =  this.offset( light.getLightID() );
+    int type      =  1;
+    int color     =  LightFrame.NO_COLOR;
+    int cct       =  0;
+    if( light instanceof ColorLight )
+    {
+      type        =  2;
+      color       =  ((ColorLight) light).getColor();
+    }
+    else if( light instanceof CCTLight )
+    {
+      type        =  3;
+      color       =  ((CCTLight) light).getLightColor();
+      cct         =  ((CCTLight) light).getCCT();
+    }
+    synchronized( this )
+    {
+      int sequence  =  (int) INT.getOpaque( this._buffer, offset );
+      INT.setOpaque( this._buffer, offset, sequence + 1 );
+      VarHandle.storeStoreFence();
+      this._buffer.putInt( offset + TYPE * 4, type );
+      this._buffer.putInt( offset + STATE * 4, light.getState() ? 1 : 0 );
+      this._buffer.putInt( offset + INTENSITY * 4, light.getIntensity() );
+      this._buffer.putInt( offset + MIN_INTENSITY * 4, light.getMinIntensity() );
+      this._buffer.putInt( offset + MAX_INTENSITY * 4, light.getMaxIntensity() );
+      this._buffer.putInt( offset + COLOR * 4, color );
+      this._buffer.putInt( offset + CCT * 4, cct );
+      INT.setRelease( this._buffer, offset, sequence + 2 );
+    }
+  }
+
+  /**
+   * Reads a consistent copy of the record of the light id into the array (FIELDS values, indexed by
+   * SEQUENCE, TYPE, STATE, etc). Returns false if no light source has been written for this id.
+   * Throws an IllegalStateException when the record could not be read within READ_TIMEOUT.
+   * @param lightID
+   * @param values
+   * @return boolean
+   */
+  public boolean read( int lightID, int[] values )
+  {
+    int offset  =  this.offset( lightID );
+    int spins   =  0;
+    long start  =  0;
+    while( true )
+    {
+      int before  =  (int) INT.getAcquire( this._buffer, offset );
+      if( (before & 1) != 0 )
+      {
+        //Only look at the clock when the writer takes unusually long
+        if( (++spins & 1023) == 0 )
+        {
+          long now  =  System.nanoTime();
+          if( spins == 1024 )
+          {
+            start  =  now;
+          }
+          else if( now - start > READ_TIMEOUT * 1000000L )
+          {
+            throw new IllegalStateException( "The record of light id " + lightID + " has been written for more than " +
+                                             READ_TIMEOUT + "ms, the writing process may have died" );
+          }
+        }
+        Thread.onSpinWait();
+        continue;
+      }
+      for( int f = 1; f < FIELDS; f++ )
+      {
+        values[f]  =  this._buffer.getInt( offset + f * 4 );
+      }
+      VarHandle.loadLoadFence();
+      if( (int) INT.getOpaque( this._buffer, offset ) == before )
+      {
+        values[SEQUENCE]  =  before;
+        return values[TYPE] != 0;
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence of the record of the light id. It changes every time the record is written,
+   * so a reader can skip records that did not change.
+   * @param lightID
+   * @return int
+   */
+  public int getSequence( int lightID )
+  {
+    return (int) INT.getAcquire( this._buffer, this.offset( lightID ) );
+  }
+
+  /**
+   * Copies the record of the light id of the light source into the light source, without firing events.
+   * Returns false if no light source has been written for this id. Throws an IllegalStateException
+   * like read().
+   * @param light
+   * @param values a scratch array of FIELDS values
+   * @return boolean
+   */
+  public boolean copyTo( Light light, int[] values )
+  {
+    if( !this.read( light.getLightID(), values ) )
+    {
+      return false;
+    }
+    light.setRange( values[MIN_INTENSITY], values[MAX_INTENSITY] );
+    light.setState( values[STATE] != 0, false );
+    light.setIntensity( values[INTENSITY], false );
+    if( light instanceof ColorLight )
+    {
+      ((ColorLight) light).setColor( values[COLOR], false );
+    }
+    else if( light instanceof CCTLight )
+    {
+      ((CCTLight) light).setCCT( values[CCT], false );
+    }
+    return true;
+  }
+
+  /**
+   * Forces the table to disk and closes the file. The mapped memory stays valid until it is garbage collected.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    this._buffer.force();
+    this._file.close();
+  }
+
+  private int offset( int lightID )
+  {
+    if( lightID < 0 || lightID >= this._capacity )
+    {
+      throw new IndexOutOfBoundsException( "Light id " + lightID + " does not fit in a shared table of " + this._capacity );
+    }
+    return HEADER_SIZE + lightID * RECORD_SIZE;
+  }
+}
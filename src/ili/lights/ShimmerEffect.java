@@ -0,0 +1,75 @@
+package ili.lights;
+
+/**
+ * The ShimmerEffect makes every light source flicker independently, with a smooth random brightness
+ * around a colour (value noise per light source).
+ */
+public class ShimmerEffect extends Effect
+{
+  private volatile int   _color;
+  private volatile float _speed;
+  private volatile int   _depth;  //0-256
+
+  /**
+   * Creates a shimmer.
+   * @param color the colour at full brightness
+   * @param speed the number of brightness changes per second
+   * @param depth how much darker a light source can get (0-1)
+   */
+  public ShimmerEffect( int color, float speed, float depth )
+  {
+    this.setColor( color );
+    this.setSpeed( speed );
+    this.setDepth( depth );
+  }
+
+  /**
+   * Sets the colour at full brightness.
+   * @param color
+   */
+  public void setColor( int color )
+  {
+    this._color  =  color & 0xFFFFFF;
+  }
+  /**
+   * Sets the number of brightness changes per second.
+   * @param speed
+   */
+  public void setSpeed( float speed )
+  {
+    this._speed  =  speed;
+  }
+  /**
+   * Sets how much darker a light source can get (0-1).
+   * @param depth
+   */
+  public void setDepth( float depth )
+  {
+    this._depth  =  Math.round( Math.max( 0, Math.min( 1, depth ) ) * 256 );
+  }
+
+  protected void render( float time, int[] positions, int[] colors, int first, int last )
+  {
+    int color    =  this._color;
+    int depth    =  this._depth;
+    double step  =  Math.floor( time * this._speed * 256 );
+    int key      =  (int) ((long) step >> 8);
+    int fraction =  (int) ((long) step & 0xFF);
+    for( int i = first; i < last; i++ )
+    {
+      int from   =  noise( i, key );
+      int noise  =  from + ((noise( i, key + 1 ) - from) * fraction >> 8);
+      colors[i]  =  scale( color, 256 - (depth * noise >> 8) );
+    }
+  }
+
+  //Random value 0-255 for a light source and a time step
+  private static int noise( int index, int key )
+  {
+    int hash  =  index * 0x9E3779B1 + key * 0x85EBCA77;
+    hash  ^=  hash >>> 15;
+    hash  *=  0x2C1B3C6D;
+    hash  ^=  hash >>> 12;
+    return hash & 0xFF;
+  }
+}
@@ -0,0 +1,58 @@
+package ili.lights;
+
+import java.util.Arrays;
+
+/**
+ * The StrobeEffect flashes the whole group in a colour at a fixed frequency.
+ */
+public class StrobeEffect extends Effect
+{
+  private volatile int   _color;
+  private volatile float _frequency;
+  private volatile float _duty;
+
+  /**
+   * Creates a strobe.
+   * @param color the colour of the flashes
+   * @param frequency the number of flashes per second
+   * @param duty the part of every period the flash is on (0-1)
+   */
+  public StrobeEffect( int color, float frequency, float duty )
+  {
+    this.setColor( color );
+    this.setFrequency( frequency );
+    this.setDuty( duty );
+  }
+
+  /**
+   * Sets the colour of the flashes.
+   * @param color
+   */
+  public void setColor( int color )
+  {
+    this._color  =  color & 0xFFFFFF;
+  }
+  /**
+   * Sets the number of flashes per second.
+   * @param frequency
+   */
+  public void setFrequency( float frequency )
+  {
+    this._frequency  =  frequency;
+  }
+  /**
+   * Sets the part of every period the flash is on (0-1).
+   * @param duty
+   */
+  public void setDuty( float duty )
+  {
+    this._duty  =  duty;
+  }
+
+  protected void render( float time, int[] positions, int[] colors, int first, int last )
+  {
+    double cycles  =  (double) time * this._frequency;
+    boolean on     =  cycles - Math.floor( cycles ) < this._duty;
+    Arrays.fill( colors, first, last, on ? this._color : 0 );
+  }
+}
@@ -0,0 +1,317 @@
+package ili.lights;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UpdateCoalescer limits how often the parameters of a light source are updated. Send fast
+ * changing inputs (sliders, sensors) to the coalescer instead of the light source itself: values are
+ * kept until the light source may be updated again, intermediate values are dropped and the last
+ * value is always delivered. The light sources fire their LightEvents as usual, but never more often
+ * than the maximum rate.
+ *
+ * A single timer thread delivers the updates of all light sources. Call close() to stop it. An update
+ * that throws (e.g. a failing listener) is counted in getErrorCount() and does not stop the thread.
+ */
+public class UpdateCoalescer
+{
+  private static final int INTENSITY  =  1;
+  private static final int COLOR      =  2;
+  private static final int HUE        =  4;
+  private static final int CCT        =  8;
+
+  private final ConcurrentHashMap<Light, Pending> _pending  =  new ConcurrentHashMap<Light, Pending>();
+  private final DelayQueue<Pending> _queue                  =  new DelayQueue<Pending>();
+  private final Thread _timer;
+  private volatile boolean _running                         =  true;
+  private volatile long _defaultInterval;
+  private volatile long _errors                             =  0;
+
+  /**
+   * Creates a new coalescer that updates every light source at most 'maxRate' times per second.
+   * @param maxRate
+   */
+  public UpdateCoalescer( float maxRate )
+  {
+    this._defaultInterval  =  toInterval( maxRate );
+    this._timer  =  new Thread( new Runnable()
+    {
+      public void run()
+      {
+        UpdateCoalescer.this.deliverLoop();
+      }
+    }, "UpdateCoalescer" );
+    this._timer.setDaemon( true );
+    this._timer.start();
+  }
+
+  /**
+   * Sets the maximum update rate (updates per second) for all light sources without their own rate.
+   * @param maxRate
+   */
+  public void setMaxRate( float maxRate )
+  {
+    this._defaultInterval  =  toInterval( maxRate );
+  }
+  /**
+   * Sets the maximum update rate (updates per second) of the specified light source.
+   * @param light
+   * @param maxRate
+   */
+  public void setMaxRate( Light light, float maxRate )
+  {
+    this.pending( light ).setInterval( toInterval( maxRate ) );
+  }
+  /**
+   * Sets the maximum update rate (updates per second) of every light source in the group.
+   * @param lights
+   * @param maxRate
+   */
+  public void setMaxRate( List<? extends Light> lights, float maxRate )
+  {
+    for( Light light : lights )
+    {
+      this.setMaxRate( light, maxRate );
+    }
+  }
+
+  /**
+   * Updates the intensity of the light source, at most at the maximum rate.
+   * @param light
+   * @param intensity
+   */
+  public void setIntensity( Light light, int intensity )
+  {
+    Pending pending  =  this.pending( light );
+    synchronized( pending )
+    {
+      pending._intensity  =  intensity;
+      pending._fields     |=  INTENSITY;
+      this.schedule( pending );
+    }
+  }
+  /**
+   * Updates the colour of the light source, at most at the maximum rate.
+   * @param light
+   * @param lightColor
+   */
+  public void setColor( ColorLight light, int lightColor )
+  {
+    Pending pending  =  this.pending( light );
+    synchronized( pending )
+    {
+      pending._color   =  lightColor;
+      pending._fields  =  (pending._fields & ~HUE) | COLOR;
+      this.schedule( pending );
+    }
+  }
+  /**
+   * Updates the hue of the light source, at most at the maximum rate.
+   * @param light
+   * @param hue
+   */
+  public void setHue( ColorLight light, int hue )
+  {
+    Pending pending  =  this.pending( light );
+    synchronized( pending )
+    {
+      pending._hue     =  hue;
+      pending._fields  =  (pending._fields & ~COLOR) | HUE;
+      this.schedule( pending );
+    }
+  }
+  /**
+   * Updates the hue of the light source, at most at the maximum rate.
+   * @param light
+   * @param hue
+   */
+  public void setHue( ColorLight light, float hue )
+  {
+    this.setHue( light, (int) hue );
+  }
+  /**
+   * Updates the colour temperature of the light source, at most at the maximum rate.
+   * @param light
+   * @param cct
+   */
+  public void setCCT( CCTLight light, int cct )
+  {
+    Pending pending  =  this.pending( light );
+    synchronized( pending )
+    {
+      pending._cct     =  cct;
+      pending._fields  |=  CCT;
+      this.schedule( pending );
+    }
+  }
+
+  /**
+   * Returns the number of light sources that have an update waiting.
+   * @return int
+   */
+  public int getPendingCount()
+  {
+    return this._queue.size();
+  }
+
+  /**
+   * Returns the number of updates that failed because the light source or one of its listeners threw
+   * an exception. The other updates are still delivered.
+   * @return long
+   */
+  public long getErrorCount()
+  {
+    return this._errors;
+  }
+
+  /**
+   * Stops the timer thread. Updates that are still waiting are dropped.
+   */
+  public void close()
+  {
+    this._running  =  false;
+    this._timer.interrupt();
+  }
+
+  private Pending pending( Light light )
+  {
+    Pending pending  =  this._pending.get( light );
+    if( pending == null )
+    {
+      Pending created  =  new Pending( light );
+      pending          =  this._pending.putIfAbsent( light, created );
+      if( pending == null )
+      {
+        pending  =  created;
+      }
+    }
+    return pending;
+  }
+
+  //Must be called while holding the lock of the pending update
+  private void schedule( Pending pending )
+  {
+    if( !pending._queued )
+    {
+      long interval   =  pending._interval >= 0 ? pending._interval : this._defaultInterval;
+      pending._due    =  Math.max( System.nanoTime(), pending._lastDelivered + interval );
+      pending._queued =  true;
+      this._queue.add( pending );
+    }
+  }
+
+  private void deliverLoop()
+  {
+    while( this._running )
+    {
+      Pending pending;
+      try
+      {
+        pending  =  this._queue.take();
+      }
+      catch( InterruptedException e )
+      {
+        continue;
+      }
+      int fields, intensity, color, hue, cct;
+      synchronized( pending )
+      {
+        fields                  =  pending._fields;
+        intensity               =  pending._intensity;
+        color                   =  pending._color;
+        hue                     =  pending._hue;
+        cct                     =  pending._cct;
+        pending._fields         =  0;
+        pending._queued         =  false;
+        pending._lastDelivered  =  System.nanoTime();
+      }
+      Light light  =  pending._light;
+      if( (fields & INTENSITY) != 0 )
+      {
+        this.deliver( light, INTENSITY, intensity );
+      }
+      if( (fields & COLOR) != 0 )
+      {
+        this.deliver( light, COLOR, color );
+      }
+      if( (fields & HUE) != 0 )
+      {
+        this.deliver( light, HUE, hue );
+      }
+      if( (fields & CCT) != 0 )
+      {
+        this.deliver( light, CCT, cct );
+      }
+    }
+  }
+
+  //Updates one field; a failing listener is counted, it must not stop the timer thread
+  private void deliver( Light light, int field, int value )
+  {
+    try
+    {
+      switch( field )
+      {
+        case INTENSITY:
+          light.setIntensity( value );
+          break;
+        case COLOR:
+          ((ColorLight) light).setColor( value );
+          break;
+        case HUE:
+          ((ColorLight) light).setHue( value );
+          break;
+        case CCT:
+          ((CCTLight) light).setCCT( value );
+          break;
+      }
+    }
+    catch( RuntimeException e )
+    {
+      this._errors++;
+    }
+  }
+
+  private static long toInterval( float maxRate )
+  {
+    return maxRate > 0 ? (long) (1000000000L / maxRate) : 0;
+  }
+
+  /**
+   * The latest values of one light source that still have to be delivered.
+   */
+  private static class Pending implements Delayed
+  {
+    final Light _light;
+    volatile long _interval  =  -1;  //-1 uses the default interval of the coalescer
+    long    _lastDelivered   =  Long.MIN_VALUE / 2;
+    long    _due;
+    boolean _queued          =  false;
+    int     _fields          =  0;
+    int     _intensity, _color, _hue, _cct;
+
+    Pending( Light light )
+    {
+      this._light  =  light;
+    }
+
+    void setInterval( long interval )
+    {
+      this._interval  =  interval;
+    }
+
+    public long getDelay( TimeUnit unit )
+    {
+      return unit.convert( this._due - System.nanoTime(), TimeUnit.NANOSECONDS );
+    }
+
+    public int compareTo( Delayed other )
+    {
+      long difference  =  this._due - ((Pending) other)._due;
+      return difference < 0 ? -1 : ( difference > 0 ? 1 : 0 );
+    }
+  }
+}